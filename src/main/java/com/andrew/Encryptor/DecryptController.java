@@ -20,18 +20,16 @@ package com.andrew.Encryptor;
 import com.andrew.Encryptor.EncryptorService.*;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
-import javafx.concurrent.Task;
 import javafx.fxml.FXML;
-import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.geometry.Pos;
 import javafx.scene.control.*;
-import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
 import javafx.scene.paint.Paint;
 import javafx.scene.text.TextAlignment;
 import javafx.stage.FileChooser;
+import javafx.stage.Window;
 import org.kordamp.ikonli.javafx.FontIcon;
 
 import java.io.File;
@@ -39,7 +37,6 @@ import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -108,9 +105,12 @@ public class DecryptController implements Initializable {
     private int SceneId = 1;
 
     private final DrawScene scene0 = ()-> {
+        //a job that finished after the user went back to the home screen, nothing left to redraw
+        if(pane.getScene()==null){
+            return;
+        }
         try{
-            AnchorPane anchorPane = FXMLLoader.load(DecryptController.class.getResource("Main.fxml"));
-            pane.getScene().setRoot(anchorPane);
+            pane.getScene().setRoot(ViewCache.home());
         }catch (Exception e){
             e.printStackTrace();
             Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -136,9 +136,17 @@ public class DecryptController implements Initializable {
 
     };
     /**
-     * Shows progress indicator in the center of the pane
+     * Shows progress indicator in the center of the pane, the back button leaves the job running in the queue and returns home
+     */
+    private final DrawScene scene3 = () -> {
+        backButton.setTooltip(new Tooltip("Continue in background"));
+        backButton.setOnAction(e -> changeScene(0));
+        pane.getChildren().setAll(indicator,backButton);
+    };
+    /**
+     * Window the wizard was shown in, captured at submission so the save dialog works after leaving the wizard
      */
-    private final DrawScene scene3 = () -> pane.getChildren().setAll(indicator);
+    private Window window;
 
     /**
      * Default constructor used to initialize controller
@@ -296,49 +304,61 @@ public class DecryptController implements Initializable {
             }
         }
         String finalSecret = secret;
-        Task<Path> task = new Task<>() {
-            @Override
-            protected Path call() throws Exception {
-                Encryptor encryptor;
-                if (passOrKey) {
-                    switch (encryptedFile.getEncryptionType()) {
-                        case AES -> encryptor = AESEncryptor.init_password(finalSecret, encryptedFile.getIV());
-                        case XOR -> throw new UnsupportedOperationException("Xor encryption not implemented");
-                        case BLOWFISH -> throw new UnsupportedOperationException("Blowfish encryption not implemented");
-                        default -> throw new IllegalStateException("Not possible state");
-                    }
-                } else {
-                    switch (encryptedFile.getEncryptionType()) {
-                        case AES -> encryptor = AESEncryptor.init_key(finalSecret, encryptedFile.getIV());
-                        case XOR -> throw new UnsupportedOperationException("Xor encryption not implemented");
-                        case BLOWFISH -> throw new UnsupportedOperationException("Blowfish encryption not implemented");
-                        default -> throw new IllegalStateException("Not possible state");
-                    }
+        window = pane.getScene().getWindow();
+        Job<Path> job = new Job<>(encryptedFile.getFile().getName(), Job.Kind.DECRYPT, Job.Priority.HIGH, currentJob -> {
+            Encryptor encryptor;
+            if (passOrKey) {
+                switch (encryptedFile.getEncryptionType()) {
+                    case AES -> encryptor = KeyDerivationService.shared().derive(finalSecret, encryptedFile);
+                    case XOR -> throw new UnsupportedOperationException("Xor encryption not implemented");
+                    case BLOWFISH -> throw new UnsupportedOperationException("Blowfish encryption not implemented");
+                    default -> throw new IllegalStateException("Not possible state");
                 }
-                return encryptor.decrypt(encryptedFile);
+            } else {
+                switch (encryptedFile.getEncryptionType()) {
+                    case AES -> encryptor = AESEncryptor.init_key(finalSecret, encryptedFile.getIV());
+                    case XOR -> throw new UnsupportedOperationException("Xor encryption not implemented");
+                    case BLOWFISH -> throw new UnsupportedOperationException("Blowfish encryption not implemented");
+                    default -> throw new IllegalStateException("Not possible state");
+                }
+            }
+            //opening the same file again in this session is a copy of the earlier output
+            if (encryptor instanceof AESEncryptor aesEncryptor) {
+                aesEncryptor.setDecryptCache(DecryptCache.shared());
             }
-        };
+            currentJob.attach(encryptor);
+            return encryptor.decrypt(encryptedFile);
+        });
         changeScene(++SceneId);
-        task.setOnFailed(e -> Platform.runLater(() -> {
+        job.addListener(updated -> Platform.runLater(() -> indicator.setProgress(updated.getProgress()<0?ProgressIndicator.INDETERMINATE_PROGRESS:updated.getProgress())));
+        job.getResult().whenComplete((path, throwable) -> Platform.runLater(() -> {
+                if(throwable==null){
+                    handleFileSaving(path);
+                    return;
+                }
+                if(job.getState()==Job.State.CANCELLED){
+                    changeScene(0);
+                    return;
+                }
                 Alert alert = new Alert(Alert.AlertType.ERROR);
                 alert.setTitle("Unable to decrypt File");
                 alert.setHeaderText("Decryption precess failed");
-                MainController.createErrorDialog(task.getException()==null?new Exception("Something went wrong!"):(Exception)task.getException(),alert);
+                MainController.createErrorDialog(throwable instanceof Exception exception?exception:new Exception("Something went wrong!",throwable),alert);
                 changeScene(0);
         }));
-        task.setOnSucceeded(e -> Platform.runLater(() -> handleFileSaving(task.getValue())));
-        Thread thread = new Thread(task);
-        thread.start();
+        JobQueue.shared().submit(job);
     }
     private void handleFileSaving(Path path){
         FileChooser fileChooser = new FileChooser();
         fileChooser.setInitialFileName(encryptedFile.getFileName()+encryptedFile.getFileType());
-        File file = fileChooser.showSaveDialog(pane.getScene().getWindow());
+        File file = fileChooser.showSaveDialog(window);
         //if user selects file save file into destination
         if(file!=null){
             try {
                 //user is warned beforehand that file is going to be overwritten, so we should assume they would like this operation to occur
-                Files.copy(path, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                CryptoEvents.FileTransfer transfer = new CryptoEvents.FileTransfer("save", file.toString()).start();
+                new OutputCommitter(Durability.PER_FILE).publish(path, file.toPath(), true, null);
+                transfer.finish(file.length());
                 //once file has been copied delete the temp resource
                 Files.deleteIfExists(path);
                 Alert alert = new Alert(Alert.AlertType.INFORMATION);
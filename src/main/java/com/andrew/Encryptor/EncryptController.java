@@ -20,18 +20,16 @@ package com.andrew.Encryptor;
 import com.andrew.Encryptor.EncryptorService.*;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
-import javafx.concurrent.Task;
 import javafx.fxml.FXML;
-import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.geometry.Pos;
 import javafx.scene.control.*;
-import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
 import javafx.scene.paint.Paint;
 import javafx.scene.text.TextAlignment;
 import javafx.stage.FileChooser;
+import javafx.stage.Window;
 import org.kordamp.ikonli.javafx.FontIcon;
 //inbuilt java imports
 import java.io.File;
@@ -39,14 +37,11 @@ import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.ResourceBundle;
 //static imports
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
-
 public class EncryptController implements Initializable {
     private boolean preDrawl = true;
 
@@ -78,9 +73,12 @@ public class EncryptController implements Initializable {
 
     //for drag and drop behavior
     private final DrawScene scene0 = () -> {
+        //a job that finished after the user went back to the home screen, nothing left to redraw
+        if (pane.getScene() == null) {
+            return;
+        }
         try {
-            AnchorPane anchorPane = FXMLLoader.load(EncryptController.class.getResource("Main.fxml"));
-            pane.getScene().setRoot(anchorPane);
+            pane.getScene().setRoot(ViewCache.home());
         } catch (Exception e) {
             e.printStackTrace();
             Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -111,7 +109,18 @@ public class EncryptController implements Initializable {
         nextButton.setText("Encrypt");
         nextButton.setOnAction(event -> handleEncryptionMethod());
     };
-    private final DrawScene scene4 = () -> pane.getChildren().setAll(indicator);
+    /**
+     * Shows job progress, the back button leaves the job running in the queue and returns home
+     */
+    private final DrawScene scene4 = () -> {
+        backButton.setTooltip(new Tooltip("Continue in background"));
+        backButton.setOnAction(e -> changeScene(0));
+        pane.getChildren().setAll(indicator, backButton);
+    };
+    /**
+     * Window the wizard was shown in, captured at submission so the save dialog works after leaving the wizard
+     */
+    private Window window;
 
     @SuppressWarnings("Duplicates")
     @Override
@@ -234,46 +243,52 @@ public class EncryptController implements Initializable {
             password = stringOptional.get();
         }
         String finalPassword = password;
-
-        Task<PathPair<Path, Path>> task = new Task<>() {
-            @Override
-            protected PathPair<Path, Path> call() throws GeneralSecurityException, IOException {
-                Encryptor encryptor;
-                switch (encryptionMethod.getSelectionModel().getSelectedItem()) {
-                    case Key -> {
-                        switch (encryptedFile.getEncryptionType()) {
-                            case AES -> encryptor = AESEncryptor.init();
-                            case BLOWFISH ->
-                                    throw new UnsupportedOperationException("Blowfish encryption not implemented");
-                            case XOR -> throw new UnsupportedOperationException("Xor encryption not implemented");
-                            default -> throw new IllegalStateException("Default value should not be possible");
-                        }
+        EncryptionMethod method = encryptionMethod.getSelectionModel().getSelectedItem();
+        window = pane.getScene().getWindow();
+        Job<PathPair<Path, Path>> job = new Job<>(encryptedFile.getFileName() + encryptedFile.getFileType(), Job.Kind.ENCRYPT, Job.Priority.HIGH, currentJob -> {
+            Encryptor encryptor;
+            switch (method) {
+                case Key -> {
+                    switch (encryptedFile.getEncryptionType()) {
+                        case AES -> encryptor = AESEncryptor.init();
+                        case BLOWFISH ->
+                                throw new UnsupportedOperationException("Blowfish encryption not implemented");
+                        case XOR -> throw new UnsupportedOperationException("Xor encryption not implemented");
+                        default -> throw new IllegalStateException("Default value should not be possible");
                     }
-                    case Password -> {
-                        switch (encryptedFile.getEncryptionType()) {
-                            case AES -> encryptor = AESEncryptor.init(finalPassword);
-                            case BLOWFISH ->
-                                    throw new UnsupportedOperationException("Blowfish encryption not implemented");
-                            case XOR -> throw new UnsupportedOperationException("Xor encryption not implemented");
-                            default -> throw new IllegalStateException("Default value should not be possible");
-                        }
+                }
+                case Password -> {
+                    switch (encryptedFile.getEncryptionType()) {
+                        case AES -> encryptor = AESEncryptor.init(finalPassword, KdfCalibrator.current());
+                        case BLOWFISH ->
+                                throw new UnsupportedOperationException("Blowfish encryption not implemented");
+                        case XOR -> throw new UnsupportedOperationException("Xor encryption not implemented");
+                        default -> throw new IllegalStateException("Default value should not be possible");
                     }
-                    default -> throw new IllegalStateException("Default value should not be possible");
                 }
-                return encryptor.encrypt(encryptedFile);
+                default -> throw new IllegalStateException("Default value should not be possible");
+            }
+            currentJob.attach(encryptor);
+            return encryptor.encrypt(encryptedFile);
+        });
+        job.addListener(updated -> Platform.runLater(() -> indicator.setProgress(updated.getProgress() < 0 ? ProgressIndicator.INDETERMINATE_PROGRESS : updated.getProgress())));
+        job.getResult().whenComplete((pathPair, throwable) -> Platform.runLater(() -> {
+            if (throwable == null) {
+                HandleFileSaving(pathPair);
+                return;
+            }
+            if (job.getState() == Job.State.CANCELLED) {
+                changeScene(0);
+                return;
             }
-        };
-        task.setOnSucceeded(e -> Platform.runLater(() -> HandleFileSaving(task.getValue())));
-        task.setOnFailed(e -> Platform.runLater(() -> {
             Alert alert = new Alert(Alert.AlertType.ERROR);
             alert.setTitle("Unable to process file");
             alert.setContentText("failed to either create resource or a runtime error has occurred");
-            MainController.createErrorDialog(task.getException()==null?new Exception("Something went wrong!"):(Exception)task.getException(), alert);
+            MainController.createErrorDialog(throwable instanceof Exception exception ? exception : new Exception("Something went wrong!", throwable), alert);
             //return to main menu after alert has been closed
             changeScene(0);
         }));
-        Thread thread = new Thread(task::run);
-        thread.start();
+        JobQueue.shared().submit(job);
         changeScene(++SceneId);
     }
 
@@ -308,16 +323,20 @@ public class EncryptController implements Initializable {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("save encrypted File");
         fileChooser.setInitialFileName(encryptedFile.getFileName() + ".enc");
-        File file = fileChooser.showSaveDialog(pane.getScene().getWindow());
+        File file = fileChooser.showSaveDialog(window);
         if (file != null) {
             Path dest = file.toPath();
             Path root = dest.getParent();
             try {
-                Files.copy(pathPair.getFile(), dest, REPLACE_EXISTING);
+                CryptoEvents.FileTransfer transfer = new CryptoEvents.FileTransfer("save", dest.toString()).start();
+                //staged next to the destination and renamed, a crash never leaves a half written file under the chosen name
+                OutputCommitter committer = new OutputCommitter(Durability.PER_FILE);
+                committer.publish(pathPair.getFile(), dest, true, null);
                 //if key file present
                 if(pathPair.getKey() != null){
-                    Files.copy(pathPair.getKey(), root.resolve(Utils.getFileName(file.getName())+".key"), REPLACE_EXISTING);
+                    committer.publish(pathPair.getKey(), root.resolve(Utils.getFileName(file.getName())+".key"), true, null);
                 }
+                transfer.finish(Files.size(dest));
                 Alert alert = new Alert(Alert.AlertType.INFORMATION);
                 alert.setTitle("Files saved");
                 alert.setHeaderText("Files were successfully saved into directory: " + root.toString());
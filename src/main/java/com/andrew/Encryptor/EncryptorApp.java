@@ -17,21 +17,42 @@
 
 package com.andrew.Encryptor;
 
+import com.andrew.Encryptor.EncryptorService.CryptoWarmup;
+import com.andrew.Encryptor.EncryptorService.Metrics;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
-import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.layout.AnchorPane;
 import javafx.stage.Stage;
+import javafx.util.Duration;
+
+import java.util.concurrent.TimeUnit;
 
 public class EncryptorApp extends Application {
+    /**
+     * Time after the window is shown before the wizard views are built ahead of time
+     */
+    private static final int PREFETCH_DELAY_MS = 300;
+
     @Override
     public void start(Stage primaryStage) throws Exception {
-        AnchorPane pane = FXMLLoader.load(EncryptorApp.class.getResource("Main.fxml"));
+        //provider lookup, seeding and calibration run while the window is built instead of during the first job
+        CryptoWarmup.startInBackground();
+        AnchorPane pane = ViewCache.home();
         Scene scene = new Scene(pane,800,600);
         primaryStage.setTitle("Encryptor Application");
         primaryStage.setScene(scene);
         primaryStage.setResizable(false);
         primaryStage.show();
+        ProcessHandle.current().info().startInstant().ifPresent(started ->
+                Metrics.timer("startup.window").record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - started.toEpochMilli())));
+        //build the wizards once the first frame is out, a click then only swaps the scene root
+        PauseTransition idle = new PauseTransition(Duration.millis(PREFETCH_DELAY_MS));
+        idle.setOnFinished(e -> {
+            ViewCache.prefetch("Encrypt.fxml");
+            ViewCache.prefetch("Decrypt.fxml");
+        });
+        idle.play();
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.andrew.Encryptor;
+
+import com.andrew.Encryptor.EncryptorService.AESEncryptor;
+import com.andrew.Encryptor.EncryptorService.AutoTuner;
+import com.andrew.Encryptor.EncryptorService.CryptoWarmup;
+import com.andrew.Encryptor.EncryptorService.DedupStore;
+import com.andrew.Encryptor.EncryptorService.Durability;
+import com.andrew.Encryptor.EncryptorService.EncryptedFile;
+import com.andrew.Encryptor.EncryptorService.EncryptorDaemon;
+import com.andrew.Encryptor.EncryptorService.FolderWatcher;
+import com.andrew.Encryptor.EncryptorService.HeaderIndex;
+import com.andrew.Encryptor.EncryptorService.IntegrityTree;
+import com.andrew.Encryptor.EncryptorService.ObjectStoreSink;
+import com.andrew.Encryptor.EncryptorService.OutputCommitter;
+import com.andrew.Encryptor.EncryptorService.RateLimiter;
+import com.andrew.Encryptor.EncryptorService.TuningProfile;
+import com.andrew.Encryptor.EncryptorService.UnsupportedFileException;
+import com.andrew.Encryptor.EncryptorService.Utils;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * Headless entry point, used when the application is started with arguments instead of opening the window
+ */
+public final class EncryptorCli {
+    private static final String USAGE = """
+            usage:
+              keygen <key file>
+                  writes a new random AES key
+              watch <directory> --out <directory> --key <key file> [--quiet-ms n] [--workers n] [--rate MB/s] [--delete-source] [--sparse] [--integrity] [--durability none|file|group]
+                  encrypts every file that lands in the directory, runs until interrupted
+              daemon [--socket path] [--workers n] [--rate MB/s] [--durability none|file|group]
+                  serves encrypt, decrypt and verify requests on a unix domain socket, runs until interrupted
+              limit [--socket path] [--rate MB/s] [--workers n]
+                  changes the bandwidth cap (0 for none) and worker count of a running daemon and prints them
+              index <directory> [--search text]
+                  updates the header index of every .enc file below the directory and lists the matching files
+              split <file> --out <directory> --key <key file> --part-mb n
+                  encrypts the file into numbered parts of at most n MB each, written as name.ext.enc.001 and so on
+              join <part file> --out <directory> --key <key file>
+                  decrypts every part of the split file the given part belongs to back into one file
+              dedup <file> --store <directory> --key <key file> --out <directory>
+                  adds the new chunks of the file to a dedup store and writes its manifest as name.ext.enc
+              restore <manifest> --store <directory> --key <key file> --out <directory>
+                  rebuilds the file a dedup manifest describes
+              upload <file> --url <endpoint/bucket> --key <key file> [--name object] [--part-mb n] [--workers n] [--sparse]
+                  encrypts the file straight into an S3 style object store, parts are uploaded while the file is encrypted
+              scrub <file or directory> --key <key file> [--offset n --length n]
+                  checks the integrity tree of the file or of every .enc file below the directory, exits with 1 on damage
+              warmup
+                  exercises the crypto path and loads the window classes, the training run of the image's CDS archive
+            """;
+
+    /**
+     * Classes the window loads on start up and on the first click, see {@link #warmup()}
+     */
+    private static final String[] TRAINING_CLASSES = {
+            "com.andrew.Encryptor.EncryptorApp",
+            "com.andrew.Encryptor.ViewCache",
+            "com.andrew.Encryptor.MainController",
+            "com.andrew.Encryptor.EncryptController",
+            "com.andrew.Encryptor.DecryptController",
+            "com.andrew.Encryptor.QueueController",
+            "javafx.fxml.FXMLLoader",
+            "javafx.scene.control.Button",
+            "javafx.scene.control.ComboBox",
+            "javafx.scene.control.PasswordField",
+            "javafx.scene.control.ProgressIndicator",
+            "javafx.scene.control.Tooltip",
+            "org.kordamp.ikonli.javafx.FontIcon"
+    };
+
+    private EncryptorCli() {
+
+    }
+
+    /**
+     * @param args command line arguments, the first one is the command
+     * @return process exit code
+     */
+    public static int run(String[] args) {
+        try {
+            switch (args[0]) {
+                case "keygen" -> {
+                    return keygen(args);
+                }
+                case "watch" -> {
+                    return watch(args);
+                }
+                case "daemon" -> {
+                    return daemon(args);
+                }
+                case "limit" -> {
+                    return limit(args);
+                }
+                case "index" -> {
+                    return index(args);
+                }
+                case "split" -> {
+                    return split(args);
+                }
+                case "join" -> {
+                    return join(args);
+                }
+                case "dedup" -> {
+                    return dedup(args);
+                }
+                case "restore" -> {
+                    return restore(args);
+                }
+                case "upload" -> {
+                    return upload(args);
+                }
+                case "scrub" -> {
+                    return scrub(args);
+                }
+                case "warmup" -> {
+                    return warmup();
+                }
+                default -> {
+                    System.err.print(USAGE);
+                    return 2;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return 2;
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private static int keygen(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("keygen takes exactly one key file");
+        }
+        Path keyFile = Path.of(args[1]);
+        if (Files.exists(keyFile)) {
+            throw new IllegalArgumentException("Refusing to overwrite existing key file " + keyFile);
+        }
+        SecretKey key = AESEncryptor.generateKey();
+        Files.writeString(keyFile, Utils.encodeBase64(key.getEncoded()), StandardCharsets.UTF_8);
+        System.out.println("wrote key to " + keyFile);
+        return 0;
+    }
+
+    private static int watch(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("watch needs a directory");
+        }
+        Map<String, String> options = parseOptions(args, 2);
+        String out = require(options, "--out");
+        String keyFile = require(options, "--key");
+        TuningProfile profile = AutoTuner.current();
+        if (options.containsKey("--workers")) {
+            profile = profile.withWorkerCount(parseInt(options, "--workers"));
+            AutoTuner.override(profile);
+        }
+        Duration quiet = Duration.ofMillis(options.containsKey("--quiet-ms") ? parseInt(options, "--quiet-ms") : 2000);
+        SecretKey key = AESEncryptor.loadKey(Path.of(keyFile));
+        FolderWatcher watcher = new FolderWatcher(Path.of(args[1]), Path.of(out), key, profile.getWorkerCount(), quiet, options.containsKey("--delete-source"));
+        if (options.containsKey("--rate")) {
+            watcher.setRateLimiter(new RateLimiter(parseInt(options, "--rate") * 1024L * 1024L));
+        }
+        watcher.setSparse(options.containsKey("--sparse"));
+        if (options.containsKey("--integrity")) {
+            watcher.setIntegrityChunkSize(IntegrityTree.DEFAULT_CHUNK_SIZE);
+        }
+        if (options.containsKey("--durability")) {
+            watcher.setDurability(Durability.parse(options.get("--durability")));
+        }
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                System.err.println("failed to stop watcher cleanly");
+            }
+            System.out.println("encrypted " + watcher.getEncryptedCount() + " files, " + watcher.getFailedCount() + " failed, " + watcher.getSkippedCount() + " already encrypted");
+            stopped.countDown();
+        }));
+        watcher.start();
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    private static int daemon(String[] args) throws IOException {
+        Map<String, String> options = parseOptions(args, 1);
+        Path socket = options.containsKey("--socket") ? Path.of(options.get("--socket")) : EncryptorDaemon.defaultSocketPath();
+        int workers = options.containsKey("--workers") ? parseInt(options, "--workers") : AutoTuner.current().getWorkerCount();
+        EncryptorDaemon daemon = new EncryptorDaemon(socket, workers);
+        CryptoWarmup.startInBackground();
+        if (options.containsKey("--durability")) {
+            daemon.setDurability(Durability.parse(options.get("--durability")));
+        }
+        if (options.containsKey("--rate")) {
+            daemon.getRateLimiter().setRate(parseInt(options, "--rate") * 1024L * 1024L);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                System.err.println("failed to remove daemon socket");
+            }
+        }));
+        daemon.serve();
+        System.out.println("daemon stopped after " + daemon.getServedCount() + " requests");
+        return 0;
+    }
+
+    /**
+     * Sends a LIMIT request to a running daemon
+     */
+    private static int limit(String[] args) throws IOException {
+        Map<String, String> options = parseOptions(args, 1);
+        Path socket = options.containsKey("--socket") ? Path.of(options.get("--socket")) : EncryptorDaemon.defaultSocketPath();
+        StringBuilder request = new StringBuilder("LIMIT");
+        if (options.containsKey("--rate")) {
+            request.append("\trate=").append(parseInt(options, "--rate"));
+        }
+        if (options.containsKey("--workers")) {
+            request.append("\tworkers=").append(parseInt(options, "--workers"));
+        }
+        String response;
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8)) {
+            writer.write(request + "\n");
+            writer.flush();
+            response = reader.readLine();
+        }
+        if (response == null) {
+            throw new IOException("daemon closed the connection without answering");
+        }
+        System.out.println(response.replace('\t', ' '));
+        return response.startsWith("OK") ? 0 : 1;
+    }
+
+    private static int index(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("index needs a directory");
+        }
+        Map<String, String> options = parseOptions(args, 2);
+        HeaderIndex index = HeaderIndex.open(Path.of(args[1]));
+        long start = System.nanoTime();
+        int read = index.refresh();
+        List<HeaderIndex.Entry> entries = options.containsKey("--search") ? index.search(options.get("--search")) : index.getEntries();
+        for (HeaderIndex.Entry entry : entries) {
+            System.out.println(entry.getFileName() + entry.getFileType() + "\t" + entry.getSize() + "\t" + entry.getPath());
+        }
+        System.err.printf("%d files listed, %d headers read in %d ms%n", entries.size(), read, (System.nanoTime() - start) / 1_000_000);
+        return 0;
+    }
+
+    private static int split(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("split needs a file");
+        }
+        Map<String, String> options = parseOptions(args, 2);
+        Path out = Files.createDirectories(Path.of(require(options, "--out")));
+        SecretKey key = AESEncryptor.loadKey(Path.of(require(options, "--key")));
+        long maxPartSize = parseInt(options, "--part-mb") * 1024L * 1024L;
+        File file = new File(args[1]);
+        EncryptedFile encryptedFile = new EncryptedFile(Utils.getFileName(file.getName()), Utils.getFileExtension(file.getName()), EncryptedFile.EncryptionType.AES, file);
+        AESEncryptor encryptor = AESEncryptor.init(key);
+        encryptor.setWorkDirectory(out);
+        long start = System.nanoTime();
+        List<Path> parts = encryptor.encryptSplit(encryptedFile, maxPartSize);
+        OutputCommitter committer = new OutputCommitter(Durability.PER_FILE);
+        for (int i = 0; i < parts.size(); i++) {
+            Path target = out.resolve(file.getName() + ".enc." + AESEncryptor.partSuffix(i));
+            committer.publish(parts.get(i), target, false, null);
+            System.out.println(target);
+        }
+        System.err.printf("%d parts written in %d ms%n", parts.size(), (System.nanoTime() - start) / 1_000_000);
+        return 0;
+    }
+
+    private static int join(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("join needs a part file");
+        }
+        Map<String, String> options = parseOptions(args, 2);
+        Path out = Files.createDirectories(Path.of(require(options, "--out")));
+        SecretKey key = AESEncryptor.loadKey(Path.of(require(options, "--key")));
+        List<EncryptedFile> parts = findParts(Path.of(args[1]));
+        EncryptedFile first = parts.get(0);
+        AESEncryptor encryptor = AESEncryptor.init_key(Utils.encodeBase64(key.getEncoded()), first.getIV());
+        encryptor.setWorkDirectory(out);
+        long start = System.nanoTime();
+        Path target = out.resolve(first.getFileName() + first.getFileType());
+        new OutputCommitter(Durability.PER_FILE).publish(encryptor.decryptParts(parts), target, false, null);
+        System.out.println(target);
+        System.err.printf("%d parts joined in %d ms%n", parts.size(), (System.nanoTime() - start) / 1_000_000);
+        return 0;
+    }
+
+    private static int upload(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("upload needs a file");
+        }
+        Map<String, String> options = parseOptions(args, 2);
+        URI bucket = URI.create(require(options, "--url"));
+        SecretKey key = AESEncryptor.loadKey(Path.of(require(options, "--key")));
+        File file = new File(args[1]);
+        String name = options.getOrDefault("--name", file.getName() + ".enc");
+        int workers = options.containsKey("--workers") ? parseInt(options, "--workers") : 4;
+        EncryptedFile encryptedFile = new EncryptedFile(Utils.getFileName(file.getName()), Utils.getFileExtension(file.getName()), EncryptedFile.EncryptionType.AES, file);
+        AESEncryptor encryptor = AESEncryptor.init(key);
+        encryptor.setSparse(options.containsKey("--sparse"));
+        long start = System.nanoTime();
+        try (ObjectStoreSink sink = new ObjectStoreSink(bucket, workers)) {
+            if (options.containsKey("--part-mb")) {
+                sink.setPartSize(partSize(options));
+            }
+            System.out.println(encryptor.encryptTo(encryptedFile, sink, name));
+        }
+        System.err.printf("%d bytes encrypted and uploaded in %d ms%n", file.length(), (System.nanoTime() - start) / 1_000_000);
+        return 0;
+    }
+
+    /**
+     * @return the --part-mb option in bytes, checked against the part sizes an upload can use
+     */
+    private static int partSize(Map<String, String> options) {
+        long megabytes;
+        try {
+            megabytes = Long.parseLong(options.get("--part-mb"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --part-mb needs a number");
+        }
+        long min = ObjectStoreSink.MIN_PART_SIZE / (1024L * 1024L);
+        long max = ObjectStoreSink.MAX_PART_SIZE / (1024L * 1024L);
+        if (megabytes < min || megabytes > max) {
+            throw new IllegalArgumentException("Option --part-mb must be between " + min + " and " + max);
+        }
+        return (int) (megabytes * 1024L * 1024L);
+    }
+
+    private static int scrub(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("scrub needs a file or directory");
+        }
+        Map<String, String> options = parseOptions(args, 2);
+        SecretKey key = AESEncryptor.loadKey(Path.of(require(options, "--key")));
+        long offset = options.containsKey("--offset") ? Long.parseLong(options.get("--offset")) : 0;
+        long length = options.containsKey("--length") ? Long.parseLong(options.get("--length")) : Long.MAX_VALUE;
+        List<Path> files = new ArrayList<>();
+        Path root = Path.of(args[1]);
+        if (Files.isDirectory(root)) {
+            try (Stream<Path> walk = Files.walk(root)) {
+                walk.filter(path -> path.getFileName().toString().endsWith(".enc") && Files.isRegularFile(path)).sorted().forEach(files::add);
+            }
+        } else {
+            files.add(root);
+        }
+        long start = System.nanoTime();
+        int checked = 0;
+        int damaged = 0;
+        int skipped = 0;
+        for (Path path : files) {
+            EncryptedFile file;
+            try {
+                file = EncryptedFile.initRead(path.toFile());
+            } catch (UnsupportedFileException e) {
+                //a header that no longer parses is damage as well
+                damaged++;
+                System.out.println(path + "\theader unreadable: " + e.getMessage());
+                continue;
+            }
+            //files written before trees were turned on are skipped, they can only be checked by decrypting them
+            if (!file.hasIntegrityTree()) {
+                skipped++;
+                continue;
+            }
+            IntegrityTree.Report report = AESEncryptor.init_key(Utils.encodeBase64(key.getEncoded()), file.getIV()).verifyIntegrity(file, offset, length);
+            checked++;
+            if (!report.isIntact()) {
+                damaged++;
+                System.out.println(path + "\t" + report);
+            }
+        }
+        System.err.printf("%d files checked, %d damaged, %d without a tree skipped in %d ms%n", checked, damaged, skipped, (System.nanoTime() - start) / 1_000_000);
+        return damaged == 0 ? 0 : 1;
+    }
+
+    private static int dedup(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("dedup needs a file");
+        }
+        Map<String, String> options = parseOptions(args, 2);
+        Path out = Files.createDirectories(Path.of(require(options, "--out")));
+        SecretKey key = AESEncryptor.loadKey(Path.of(require(options, "--key")));
+        DedupStore store = DedupStore.open(Path.of(require(options, "--store")), key);
+        File file = new File(args[1]);
+        EncryptedFile encryptedFile = new EncryptedFile(Utils.getFileName(file.getName()), Utils.getFileExtension(file.getName()), EncryptedFile.EncryptionType.AES, file);
+        long start = System.nanoTime();
+        DedupStore.Result result = store.store(encryptedFile);
+        Path target = out.resolve(file.getName() + ".enc");
+        new OutputCommitter(Durability.PER_FILE).publish(result.getManifest(), target, false, null);
+        System.out.println(target);
+        System.err.printf("%d of %d chunks new, %d bytes stored in %d ms%n", result.getNewChunkCount(), result.getChunkCount(), result.getNewBytes(), (System.nanoTime() - start) / 1_000_000);
+        return 0;
+    }
+
+    private static int restore(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("restore needs a manifest");
+        }
+        Map<String, String> options = parseOptions(args, 2);
+        Path out = Files.createDirectories(Path.of(require(options, "--out")));
+        SecretKey key = AESEncryptor.loadKey(Path.of(require(options, "--key")));
+        DedupStore store = DedupStore.open(Path.of(require(options, "--store")), key);
+        EncryptedFile manifest;
+        try {
+            manifest = EncryptedFile.initRead(new File(args[1]));
+        } catch (UnsupportedFileException e) {
+            throw new IllegalArgumentException(args[1] + " is not an encrypted file: " + e.getMessage());
+        }
+        Path target = out.resolve(manifest.getFileName() + manifest.getFileType());
+        new OutputCommitter(Durability.PER_FILE).publish(store.restore(manifest), target, false, null);
+        System.out.println(target);
+        return 0;
+    }
+
+    /**
+     * Loads, without initialising, the classes the window needs, so they end up in the class data sharing archive.
+     * Initialising them would start the JavaFX toolkit, which the headless build machine can not do
+     */
+    private static int warmup() {
+        CryptoWarmup.run();
+        ClassLoader loader = EncryptorCli.class.getClassLoader();
+        for (String name : TRAINING_CLASSES) {
+            try {
+                Class.forName(name, false, loader);
+            } catch (ClassNotFoundException e) {
+                System.err.println("training class not found: " + name);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param part any part of a split file
+     * @return every file next to it with the same name up to the part number that belongs to the same set
+     */
+    private static List<EncryptedFile> findParts(Path part) throws IOException {
+        EncryptedFile given;
+        try {
+            given = EncryptedFile.initRead(part.toFile());
+        } catch (UnsupportedFileException e) {
+            throw new IllegalArgumentException(part + " is not an encrypted file: " + e.getMessage());
+        }
+        if (!given.isPart()) {
+            throw new IllegalArgumentException(part + " is not part of a split file");
+        }
+        String name = part.getFileName().toString();
+        String prefix = name.substring(0, name.lastIndexOf('.') + 1);
+        Path directory = part.toAbsolutePath().getParent();
+        List<EncryptedFile> parts = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, entry -> entry.getFileName().toString().startsWith(prefix))) {
+            for (Path candidate : stream) {
+                try {
+                    EncryptedFile file = EncryptedFile.initRead(candidate.toFile());
+                    if (given.getPartSet().equals(file.getPartSet())) {
+                        parts.add(file);
+                    }
+                } catch (UnsupportedFileException e) {
+                    //not ours, a file that merely shares the prefix
+                }
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Collects --name value pairs, options listed in the usage without a value map to an empty string
+     */
+    private static Map<String, String> parseOptions(String[] args, int start) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = start; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + name);
+            }
+            if (name.equals("--delete-source") || name.equals("--sparse") || name.equals("--integrity")) {
+                options.put(name, "");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+        }
+        return options;
+    }
+
+    private static String require(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing required option " + name);
+        }
+        return value;
+    }
+
+    private static int parseInt(Map<String, String> options, String name) {
+        try {
+            return Integer.parseInt(options.get(name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " needs a number");
+        }
+    }
+}
@@ -19,18 +19,38 @@ import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -40,9 +60,10 @@ import java.util.Optional;
  */
 public class AESEncryptor implements Encryptor {
     /**
-     * Cipher instance to be used for encryption and decryption methods
+     * Whether the cipher should be initialised for encryption or decryption, the cipher itself is taken from
+     * {@link CryptoProviders} on the thread doing the work
      */
-    private Cipher cipher;
+    private int cipherMode;
     /**
      * The key that was used to encrypt the file
      */
@@ -63,29 +84,110 @@ public class AESEncryptor implements Encryptor {
     /**
      * The nonce byte size
      */
-    private static final int IV_SIZE = 16;
+    static final int IV_SIZE = 16;
     /**
      * the tag length to be used by GCM
      */
     private static final int T_LEN = 128;
     /**
-     * Name of hash algorithm for password based key generation
+     * Name of hash algorithm for password based key generation, also assumed for files without a KDF header entry
      */
-    private static final String PBKDF2_NAME = "PBKDF2WithHmacSHA256";
+    static final String PBKDF2_NAME = "PBKDF2WithHmacSHA256";
     /**
-     * Number of hashes to perform
+     * Default number of hashes to perform, also assumed for files without a KDFIterations header entry
      */
-    private static final int PBKDF2_ITER_COUNT = 50000;
+    static final int PBKDF2_ITER_COUNT = 50000;
+    /**
+     * Lowest iteration count accepted when encrypting
+     */
+    static final int MIN_KDF_ITERATIONS = 10000;
+    /**
+     * Highest iteration count accepted, guards against headers that would make decryption hang
+     */
+    static final int MAX_KDF_ITERATIONS = 10000000;
+    /**
+     * Number of hashes used to derive the key of this encryptor, only meaningful in password mode
+     */
+    private int kdfIterations;
+    /**
+     * Key derivation algorithm used by this encryptor, only meaningful in password mode
+     */
+    private String kdfAlgorithm;
     /**
      * Salt, of encryption method
      */
     private byte[] salt;
 
     private boolean PasswordEncryption;
+    /**
+     * True when the key was supplied by the caller, the caller already holds it so no key file is written
+     */
+    private boolean keyProvided;
+    /**
+     * Directory temp output is created in, null for the system temp directory
+     */
+    private Path workDirectory;
     /**
      * The name of the encryption algorithm to be used
      */
     private static final String ALGORITHM = "AES/CBC/PKCS5Padding";
+    /**
+     * Bytes pushed through the cipher by all encryptors, marked per buffer so the rate follows long files live
+     */
+    private static final Metrics.Meter THROUGHPUT = Metrics.meter("cipher.bytes");
+    /**
+     * Largest body {@link #decryptToMemory(EncryptedFile)} accepts, it holds the cipher text and plain text at once
+     */
+    public static final int MEMORY_DECRYPT_LIMIT = 16 * 1024 * 1024;
+    /**
+     * Size in bytes of the random id that ties the parts of one split file together
+     */
+    private static final int PART_SET_ID_SIZE = 12;
+    /**
+     * Granularity of zero detection in sparse mode, only whole all-zero blocks of this size are skipped
+     */
+    static final int SPARSE_BLOCK_SIZE = 64 * 1024;
+    /**
+     * Compared against every block in sparse mode, the comparison is vectorised by the JDK
+     */
+    private static final ByteBuffer ZERO_BLOCK = ByteBuffer.allocateDirect(SPARSE_BLOCK_SIZE).asReadOnlyBuffer();
+    private static final int SPARSE_MAC_SIZE = 32;
+    /**
+     * Header entry holding the encrypted SHA-256 of the plain text
+     */
+    static final String PLAIN_DIGEST_HEADER = "PlainDigest";
+    /**
+     * Written in place of the plain text digest until the body is done, same length as the hex of the real value
+     */
+    private static final String PLAIN_DIGEST_PLACEHOLDER = "0".repeat(64);
+    /**
+     * True to hash the plain text while encrypting, see {@link #setPlainDigest(boolean)}
+     */
+    private boolean plainDigest = true;
+    /**
+     * True to skip all-zero blocks, see {@link #setSparse(boolean)}
+     */
+    private boolean sparse;
+    /**
+     * Chunk size of the integrity tree written after the body, 0 for no tree
+     */
+    private int integrityChunkSize;
+    /**
+     * Extra entries written into the header of every file this encryptor produces
+     */
+    private final Map<String,String> headerProperties = new LinkedHashMap<>();
+    /**
+     * Receives progress after every buffer, may be null
+     */
+    private ProgressListener progressListener;
+    /**
+     * Throttles the read loop, may be null
+     */
+    private RateLimiter rateLimiter;
+    /**
+     * Cache of decrypted outputs, may be null
+     */
+    private DecryptCache decryptCache;
 
     /**
      * Private Constructor to prevent improper construction
@@ -96,35 +198,112 @@ public class AESEncryptor implements Encryptor {
 
     @Override
     public Path decrypt(EncryptedFile file) throws IOException,GeneralSecurityException {
+        checkWholeFile(file);
+        return decryptFile(file);
+    }
+
+    /**
+     * Decrypts the chunk list of a dedup manifest, only {@link DedupStore#restore(EncryptedFile)} reads it
+     * @throws IllegalArgumentException if the file is not a dedup manifest
+     */
+    Path decryptManifest(EncryptedFile manifest) throws IOException, GeneralSecurityException {
+        if (!manifest.isDedupManifest()) {
+            throw new IllegalArgumentException(manifest.getFile().getName() + " is not a dedup manifest");
+        }
+        return decryptFile(manifest);
+    }
+
+    private Path decryptFile(EncryptedFile file) throws IOException, GeneralSecurityException {
         Path path;
         try{
-            path = Files.createTempFile(file.getFileName(),file.getFileType().replaceFirst(".",""));
+            path = createTempFile(file.getFileName(),file.getFileType().replaceFirst(".",""));
         }catch (IOException e){
             System.err.println("Failed to create temp file for decryption file");
             throw new IOException(e);
         }
-        try(FileInputStream fileInputStream = new FileInputStream(file.getFile()); FileLock ignored = fileInputStream.getChannel().tryLock(0,Long.MAX_VALUE,true); FileOutputStream fileOutputStream = new FileOutputStream(path.toFile()); FileLock ignored1 = fileOutputStream.getChannel().tryLock()){
-            byte[] buffer = new byte[4096];
-            long byteOffset;
-            long reamingBytes = file.getByteOffset();
-            //skip header of the file
-            do{
-                byteOffset = fileInputStream.skip(reamingBytes);
-                reamingBytes = reamingBytes-byteOffset;
-            }while(reamingBytes>0); //needed as we are not guaranteed the fact that all bytes have been read
-            int bytesRead;
-            //read till buffer is empty
-            while((bytesRead = fileInputStream.read(buffer))!=-1){
-                byte[] bytesCipher = cipher.update(buffer,0,bytesRead);
-                if(bytesCipher!=null) {
-                    fileOutputStream.write(bytesCipher);
+        if(file.isSparse()){
+            try{
+                decryptSparse(file, path);
+            }catch (IOException | GeneralSecurityException e){
+                Files.deleteIfExists(path);
+                throw e;
+            }
+            return path;
+        }
+        DecryptCache.Key cacheKey = decryptCacheKey(file);
+        if(cacheKey != null && decryptCache.copyTo(cacheKey, path)){
+            long size = Files.size(path);
+            reportProgress(size, size);
+            return path;
+        }
+        //the upper bound of older files without a plain length is the body size
+        long cacheSize = file.getPlainLength() >= 0 ? file.getPlainLength() : file.getFile().length() - file.getByteOffset();
+        try(SharedReadChannels.Handle inputChannel = SharedReadChannels.shared().open(file.getFile().toPath()); FileOutputStream fileOutputStream = new FileOutputStream(path.toFile()); FileLock ignored1 = fileOutputStream.getChannel().tryLock(); BufferPool.Lease lease = leaseBuffers(); DecryptCache.Pending cached = cacheKey == null ? null : decryptCache.begin(cacheKey, cacheSize)){
+            inputChannel.lock(0, Long.MAX_VALUE);
+            ByteBuffer input = inputBuffer(lease);
+            ByteBuffer output = outputBuffer(lease);
+            FileChannel outputChannel = fileOutputStream.getChannel();
+            Cipher cipher = prepareCipher();
+            CryptoEvents.CipherLoop event = new CryptoEvents.CipherLoop("decrypt", file.getFile().getName(), input.capacity()).start();
+            //skip header of the file, the body ends where an integrity tree starts
+            long position = file.getByteOffset();
+            long bodyEnd = contentEnd(inputChannel, file);
+            long bytesTotal = bodyEnd - position;
+            long bytesDone = 0;
+            long written = 0;
+            //files from before the length was stored are checked against their padded size instead
+            long plainLength = file.getPlainLength();
+            checkFreeSpace(path, plainLength >= 0 ? plainLength : bytesTotal);
+            preallocate(outputChannel, plainLength);
+            //checked as the plain text goes by, a round trip costs no extra read of either file
+            MessageDigest digest = plainDigestOf(file);
+            //read till the body is done
+            while(position < bodyEnd){
+                input.limit((int) Math.min(input.capacity(), bodyEnd - position));
+                int bytesRead = inputChannel.read(input, position);
+                if(bytesRead == -1){
+                    throw new EOFException("File shrank while it was being read");
+                }
+                position += bytesRead;
+                throttle(bytesRead);
+                input.flip();
+                output.clear();
+                cipher.update(input, output);
+                output.flip();
+                written += output.remaining();
+                if (digest != null) {
+                    digest.update(output.duplicate());
                 }
+                if (cached != null) {
+                    cached.write(output.duplicate());
+                }
+                writeFully(outputChannel, output);
+                input.clear();
+                bytesDone += bytesRead;
+                THROUGHPUT.mark(bytesRead);
+                reportProgress(bytesDone, bytesTotal);
+            }
+            input.flip();
+            output.clear();
+            cipher.doFinal(input, output);
+            output.flip();
+            written += output.remaining();
+            if (digest != null) {
+                digest.update(output.duplicate());
             }
-            byte[] finalBytes = cipher.doFinal();
-            if(finalBytes!=null){
-                fileOutputStream.write(finalBytes);
+            if (cached != null) {
+                cached.write(output.duplicate());
             }
-            fileOutputStream.flush();
+            writeFully(outputChannel, output);
+            checkPlainLength(file, written);
+            checkPlainDigest(file, digest, IV);
+            //only output that passed every check is served again
+            if (cached != null) {
+                cached.commit();
+            }
+            //drops whatever the preallocation reserved past the last byte written
+            outputChannel.truncate(written);
+            event.finish(bytesDone);
         }catch (IOException e){
             e.printStackTrace();
             if(Files.deleteIfExists(path)){
@@ -146,6 +325,146 @@ public class AESEncryptor implements Encryptor {
         return path;
     }
 
+    /**
+     * A part on its own is only a slice of the original, decrypting it alone would give a truncated file under the
+     * original name and verifying it would not notice the missing parts. A dedup manifest only holds the list of
+     * its chunks, decrypting it would hand that list out as the user's file
+     * @throws IllegalArgumentException if the file is one part of a split file or a dedup manifest
+     */
+    private static void checkWholeFile(EncryptedFile file) {
+        if (file.isPart()) {
+            throw new IllegalArgumentException(file.getFile().getName() + " is part " + (file.getPartIndex() + 1) + " of " + file.getPartCount() + " of a split file, the parts have to be decrypted together with decryptParts");
+        }
+        if (file.isDedupManifest()) {
+            throw new IllegalArgumentException(file.getFile().getName() + " is a dedup manifest, it has to be restored from its store with DedupStore.restore");
+        }
+    }
+
+    /**
+     * Decrypts the whole body with one read and one doFinal call, no temp file, locks or buffer loop. Meant for
+     * configs, keys and other small secrets where the setup of {@link #decrypt(EncryptedFile)} dominates
+     * @param file the file to decrypt
+     * @return the plain bytes
+     * @throws IllegalArgumentException if the body is larger than {@link #MEMORY_DECRYPT_LIMIT}, the file is one part
+     * of a split file or a dedup manifest
+     * @throws IOException if the file can not be read
+     * @throws GeneralSecurityException if the key does not match or the file is damaged
+     */
+    @Override
+    public byte[] decryptToMemory(EncryptedFile file) throws IOException, GeneralSecurityException {
+        checkWholeFile(file);
+        try (SharedReadChannels.Handle channel = SharedReadChannels.shared().open(file.getFile().toPath())) {
+            channel.lock(0, Long.MAX_VALUE);
+            if (file.isSparse()) {
+                throw new IllegalArgumentException("Sparse files can not be decrypted into memory");
+            }
+            long bodySize = contentEnd(channel, file) - file.getByteOffset();
+            if (bodySize > MEMORY_DECRYPT_LIMIT) {
+                throw new IllegalArgumentException("File is too large to decrypt into memory: " + bodySize + " bytes");
+            }
+            int length = (int) bodySize;
+            //the cipher text counts against the buffer budget like the buffers of the streaming loops
+            try (BufferPool.Lease lease = leaseExactly(length)) {
+                //a plain read beats mapping at these sizes, mapping only pays off once page faults are cheaper than a copy
+                ByteBuffer input = lease.buffer().limit(length);
+                long position = file.getByteOffset();
+                while (input.hasRemaining()) {
+                    int read = channel.read(input, position);
+                    if (read == -1) {
+                        throw new EOFException("File shrank while it was being read");
+                    }
+                    position += read;
+                }
+                input.flip();
+                throttle(length);
+                Cipher cipher = prepareCipher();
+                CryptoEvents.CipherLoop event = new CryptoEvents.CipherLoop("decrypt-memory", file.getFile().getName(), length).start();
+                byte[] plainText = new byte[cipher.getOutputSize(length)];
+                int written = cipher.doFinal(input, ByteBuffer.wrap(plainText));
+                try {
+                    checkPlainLength(file, written);
+                    MessageDigest digest = plainDigestOf(file);
+                    if (digest != null) {
+                        digest.update(plainText, 0, written);
+                    }
+                    checkPlainDigest(file, digest, IV);
+                } catch (IOException | GeneralSecurityException e) {
+                    Arrays.fill(plainText, (byte) 0);
+                    throw e;
+                }
+                THROUGHPUT.mark(length);
+                reportProgress(length, length);
+                event.finish(length);
+                if (written == plainText.length) {
+                    return plainText;
+                }
+                //padding makes the output shorter than the size reported up front
+                byte[] trimmed = Arrays.copyOf(plainText, written);
+                Arrays.fill(plainText, (byte) 0);
+                return trimmed;
+            }
+        }
+    }
+
+    /**
+     * Runs the whole decryption without writing any output, used to check a password or key and the file before
+     * committing to a real decryption. CBC has no authentication tag, a wrong key is detected through the padding of
+     * the last block which catches all but roughly 1 in 256 wrong keys
+     * @param file the file to check
+     * @throws IllegalArgumentException if the file is one part of a split file or a dedup manifest
+     * @throws IOException if the file can not be read
+     * @throws GeneralSecurityException if the key does not match or the file is damaged
+     */
+    public void verify(EncryptedFile file) throws IOException, GeneralSecurityException {
+        checkWholeFile(file);
+        try(SharedReadChannels.Handle inputChannel = SharedReadChannels.shared().open(file.getFile().toPath()); BufferPool.Lease lease = leaseBuffers()){
+            inputChannel.lock(0, Long.MAX_VALUE);
+            ByteBuffer input = inputBuffer(lease);
+            ByteBuffer output = outputBuffer(lease);
+            Cipher cipher = prepareCipher();
+            CryptoEvents.CipherLoop event = new CryptoEvents.CipherLoop("verify", file.getFile().getName(), input.capacity()).start();
+            //the manifest of a sparse file is checked first, its cipher text ends where the manifest starts
+            long bodyEnd = file.isSparse() ? readSparseManifest(inputChannel, file).bodyEnd : contentEnd(inputChannel, file);
+            long position = file.getByteOffset();
+            long bytesTotal = bodyEnd - position;
+            long bytesDone = 0;
+            long written = 0;
+            //the body of a sparse file lacks its zero runs, only the manifest mac covers it
+            MessageDigest digest = file.isSparse() ? null : plainDigestOf(file);
+            while(position < bodyEnd){
+                input.limit((int) Math.min(input.capacity(), bodyEnd - position));
+                int bytesRead = inputChannel.read(input, position);
+                if(bytesRead == -1){
+                    throw new EOFException("File shrank while it was being read");
+                }
+                position += bytesRead;
+                throttle(bytesRead);
+                input.flip();
+                output.clear();
+                written += cipher.update(input, output);
+                if (digest != null) {
+                    digest.update(output.flip());
+                }
+                input.clear();
+                bytesDone += bytesRead;
+                THROUGHPUT.mark(bytesRead);
+                reportProgress(bytesDone, bytesTotal);
+            }
+            input.flip();
+            output.clear();
+            written += cipher.doFinal(input, output);
+            if (digest != null) {
+                digest.update(output.flip());
+            }
+            //a sparse body only holds the data runs, its length is checked against the manifest instead
+            if (!file.isSparse()) {
+                checkPlainLength(file, written);
+            }
+            checkPlainDigest(file, digest, IV);
+            event.finish(bytesDone);
+        }
+    }
+
     /**
      * Encrypts the given encryptedFile object, writes into a tmp file, once fished it return a Path pair contain paths needed to get the temp resources
      * @param encryptedFile the file that is supposed to be encrypted, this method is non-destructive and only reads the file bytes
@@ -157,40 +476,56 @@ public class AESEncryptor implements Encryptor {
     public PathPair<Path,Path> encrypt(EncryptedFile encryptedFile) throws IOException, GeneralSecurityException {
         //path to encrypted file
         Path path;
-        //path to key file if one is generated null otherwise
-        Path keyPath = null;
         try {
-            path = Files.createTempFile(encryptedFile.getFileName(), ".enc");
+            path = createTempFile(encryptedFile.getFileName(), ".enc");
         } catch (IOException e) {
             System.err.println("Failed to create Temp file");
             throw new IOException(e);
         }
+        //the length is taken once, the header promises it and the loops read exactly that much
+        long plainLength = encryptedFile.getFile().length();
+        byte[] header = header(encryptedFile, IV, plainLength, withPlainDigest(headerProperties));
+        //sparse output only holds the data blocks, its size is not known up front
+        long outputLength = sparse ? -1 : header.length + cipherTextLength(plainLength) + (integrityChunkSize > 0 ? IntegrityTree.trailerLength(cipherTextLength(plainLength), integrityChunkSize) : 0);
+        try {
+            checkFreeSpace(path, sparse ? header.length : outputLength);
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
         //try with resource to handle auto closing of file streams and locks
-        try (FileOutputStream writer = new FileOutputStream(path.toFile()); FileLock ignored1 = writer.getChannel().tryLock(); FileInputStream fileInputStream = new FileInputStream(encryptedFile.getFile()); FileLock ignored = fileInputStream.getChannel().tryLock(0, Long.MAX_VALUE, true)) {
-            writeHeader(encryptedFile, writer);
-            //creates an internal buffer of 4kb
-            byte[] buffer = new byte[4096];
-            //read till end of file
-            int bytesRead;
-            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                    byte[] cipherOutPut = cipher.update(buffer,0,bytesRead);
-                    if(cipherOutPut!=null){
-                        writer.write(cipherOutPut);
-                    }
+        try (FileOutputStream writer = new FileOutputStream(path.toFile()); FileLock ignored1 = writer.getChannel().tryLock(); SharedReadChannels.Handle inputChannel = SharedReadChannels.shared().open(encryptedFile.getFile().toPath()); BufferPool.Lease lease = leaseBuffers()) {
+            inputChannel.lock(0, Long.MAX_VALUE);
+            FileChannel outputChannel = writer.getChannel();
+            writeHeader(header, writer);
+            preallocate(outputChannel, outputLength);
+            //with a tree every byte after the header goes through the leaf macs on its way to the file
+            IntegrityTree.Builder tree = integrityChunkSize > 0 ? new IntegrityTree.Builder(outputChannel, secretKey, IV, integrityChunkSize) : null;
+            MessageDigest digest = plainDigest ? MessageDigest.getInstance("SHA-256") : null;
+            encryptBody(encryptedFile, inputChannel, tree == null ? outputChannel : tree, plainLength, lease, "encrypt", digest);
+            if (tree != null) {
+                tree.finish(outputChannel, placeholderPosition(header, IntegrityTree.ROOT_HEADER));
             }
-            byte[] outputBytes = cipher.doFinal();
-            if(outputBytes!=null){
-                writer.write(outputBytes);
+            if (digest != null) {
+                writePlainDigest(outputChannel, header, digest, IV);
             }
-            writer.flush();
+            //drops whatever the preallocation reserved past the last byte written
+            outputChannel.truncate(outputChannel.position());
             //don't need to close files streams as try with resource will take care of that
-        } catch (IOException | OverlappingFileLockException exception) {
+        } catch (OverlappingFileLockException exception) {
             if (Files.deleteIfExists(path)) {
                 System.out.println("deleted temp files");
             } else {
                 System.err.println("Failed to delete temp files after io error");
             }
             throw new IOException("File was unable to be locked, this could be caused by another process is using the file");
+        } catch (IOException exception) {
+            if (Files.deleteIfExists(path)) {
+                System.out.println("deleted temp files");
+            } else {
+                System.err.println("Failed to delete temp files after io error");
+            }
+            throw exception;
         }catch (GeneralSecurityException e) {
             if (Files.deleteIfExists(path)) {
                 System.out.println("deleted temp files");
@@ -200,8 +535,96 @@ public class AESEncryptor implements Encryptor {
             System.err.println("cipher error occurred");
             throw new GeneralSecurityException(e);
         }
+        return finishEncrypt(encryptedFile, path);
+    }
+
+    /**
+     * Encrypts straight into a sink, cipher text leaves as soon as the sink has a part of it ready, so reading,
+     * encrypting and shipping the output overlap instead of running one after another. The key must come from a
+     * password or {@link #init(SecretKey)} since there is no key file to go with the output. Integrity trees do not
+     * apply, their root goes into the header which has already left by the time the tree is done. For the same reason
+     * the output carries no plain text digest
+     * @param encryptedFile the file to encrypt, this method is non-destructive and only reads the file bytes
+     * @param sink where the output goes
+     * @param name name of the object in the sink
+     * @return where the sink stored the object
+     * @throws IOException if an io error occurs or the sink fails, nothing is left in the sink
+     * @throws GeneralSecurityException if any cipher error occurs
+     */
+    public String encryptTo(EncryptedFile encryptedFile, OutputSink sink, String name) throws IOException, GeneralSecurityException {
+        if (!PasswordEncryption && !keyProvided) {
+            throw new IllegalStateException("Sink output needs a password or a provided key");
+        }
+        if (integrityChunkSize > 0) {
+            throw new IllegalStateException("Integrity trees need seekable output and can not be written to a sink");
+        }
+        long plainLength = encryptedFile.getFile().length();
+        byte[] header = header(encryptedFile, IV, plainLength, headerProperties);
+        long sizeHint = sparse ? -1 : header.length + cipherTextLength(plainLength);
+        try (SharedReadChannels.Handle inputChannel = SharedReadChannels.shared().open(encryptedFile.getFile().toPath()); OutputSink.Target target = sink.open(name, sizeHint); BufferPool.Lease lease = leaseBuffers()) {
+            inputChannel.lock(0, Long.MAX_VALUE);
+            writeFully(target, ByteBuffer.wrap(header));
+            encryptBody(encryptedFile, inputChannel, target, plainLength, lease, "encrypt-sink", null);
+            return target.commit();
+        }
+    }
+
+    /**
+     * Runs the cipher loop over the whole source, everything after the header goes through here
+     * @param body where the cipher text and, in sparse mode, the manifest are written
+     * @param plainLength the length promised in the header, exactly this much is read
+     * @param eventName name of the flight recorder event of the loop
+     * @param digest fed every plain byte on its way into the cipher, may be null
+     */
+    private void encryptBody(EncryptedFile encryptedFile, SharedReadChannels.Handle inputChannel, WritableByteChannel body, long plainLength, BufferPool.Lease lease, String eventName, MessageDigest digest) throws IOException, GeneralSecurityException {
+        //buffer size is chosen by the auto tuner for this machine, shrunk by the pool when memory is tight
+        ByteBuffer input = inputBuffer(lease);
+        ByteBuffer output = outputBuffer(lease);
+        Cipher cipher = prepareCipher();
+        CryptoEvents.CipherLoop event = new CryptoEvents.CipherLoop(eventName, encryptedFile.getFile().getName(), input.capacity()).start();
+        if (sparse) {
+            event.finish(encryptSparseBody(inputChannel, body, input, output, cipher, plainLength, digest));
+            return;
+        }
+        //read the length promised in the header
+        long bytesDone = 0;
+        while (bytesDone < plainLength) {
+            input.limit((int) Math.min(input.capacity(), plainLength - bytesDone));
+            int bytesRead = inputChannel.read(input, bytesDone);
+            if (bytesRead == -1) {
+                throw new EOFException("File shrank while it was being read");
+            }
+            throttle(bytesRead);
+            input.flip();
+            if (digest != null) {
+                digest.update(input.duplicate());
+            }
+            output.clear();
+            cipher.update(input, output);
+            output.flip();
+            writeFully(body, output);
+            input.clear();
+            bytesDone += bytesRead;
+            THROUGHPUT.mark(bytesRead);
+            reportProgress(bytesDone, plainLength);
+        }
+        input.flip();
+        output.clear();
+        cipher.doFinal(input, output);
+        output.flip();
+        writeFully(body, output);
+        event.finish(bytesDone);
+    }
+
+    /**
+     * Writes the key file if one is needed
+     * @return the result of {@link #encrypt(EncryptedFile)}
+     */
+    private PathPair<Path,Path> finishEncrypt(EncryptedFile encryptedFile, Path path) throws IOException {
+        //path to key file if one is generated null otherwise
+        Path keyPath = null;
         //need to write the key file if not password based
-        if(!PasswordEncryption){
+        if(!PasswordEncryption && !keyProvided){
             try{
                 keyPath = Files.createTempFile(encryptedFile.getFileName(),".key");
             }catch (IOException e){
@@ -227,26 +650,1028 @@ public class AESEncryptor implements Encryptor {
         return new PathPair<>(path, Optional.ofNullable(keyPath));
     }
 
+    /**
+     * Encrypts only the blocks that hold data, all-zero blocks are recorded as runs in a manifest appended after the
+     * cipher text as manifest, manifest length and an HMAC over IV and manifest. Holes are still read since java can
+     * not ask the file system where they are, but the kernel serves them without disk I/O and they are never encrypted
+     * @return number of plain bytes read
+     */
+    private long encryptSparseBody(SharedReadChannels.Handle inputChannel, WritableByteChannel outputChannel, ByteBuffer input, ByteBuffer output, Cipher cipher, long plainLength, MessageDigest digest) throws IOException, GeneralSecurityException {
+        //a small lease under memory pressure detects zeros at a finer grain, the runs are byte ranges either way
+        int blockSize = Math.min(SPARSE_BLOCK_SIZE, input.capacity());
+        int readSize = input.capacity() / blockSize * blockSize;
+        ZeroRuns runs = new ZeroRuns();
+        long position = 0;
+        long skipped = 0;
+        while (position < plainLength) {
+            input.clear();
+            input.limit((int) Math.min(readSize, plainLength - position));
+            //fill the whole buffer so blocks stay aligned to file offsets
+            inputChannel.readFully(input, position);
+            int bytesRead = input.position();
+            throttle(bytesRead);
+            input.flip();
+            //the digest covers the zero runs too, it is the digest of the file as it comes back out
+            if (digest != null) {
+                digest.update(input.duplicate());
+            }
+            for (int offset = 0; offset < bytesRead; offset += blockSize) {
+                int length = Math.min(blockSize, bytesRead - offset);
+                ByteBuffer block = input.slice(offset, length);
+                if (block.mismatch(ZERO_BLOCK.slice(0, length)) == -1) {
+                    runs.add(position + offset, length);
+                    skipped += length;
+                } else {
+                    output.clear();
+                    cipher.update(block, output);
+                    output.flip();
+                    writeFully(outputChannel, output);
+                }
+            }
+            position += bytesRead;
+            THROUGHPUT.mark(bytesRead);
+            reportProgress(position, plainLength);
+        }
+        input.clear();
+        input.limit(0);
+        output.clear();
+        cipher.doFinal(input, output);
+        output.flip();
+        writeFully(outputChannel, output);
+        byte[] manifest = runs.toManifest(position);
+        ByteBuffer trailer = ByteBuffer.allocate(manifest.length + Integer.BYTES + SPARSE_MAC_SIZE);
+        trailer.put(manifest).putInt(manifest.length).put(sparseMac(manifest)).flip();
+        writeFully(outputChannel, trailer);
+        Metrics.counter("sparse.bytes.skipped").add(skipped);
+        return position;
+    }
+
+    /**
+     * @return HMAC over the IV and the manifest, under a key derived from the file key so a manifest can not be moved
+     * to another file or edited without the key
+     */
+    private byte[] sparseMac(byte[] manifest) throws GeneralSecurityException {
+        byte[] macKey = deriveKey("encryptor-sparse-manifest");
+        Mac mac = CryptoProviders.mac("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        Arrays.fill(macKey, (byte) 0);
+        mac.update(IV);
+        return mac.doFinal(manifest);
+    }
+
+    /**
+     * @param label purpose of the key, different labels give unrelated keys
+     * @return a 32 byte key derived from the file key, the caller zeros it once done
+     */
+    private byte[] deriveKey(String label) throws GeneralSecurityException {
+        Mac mac = CryptoProviders.mac("HmacSHA256");
+        mac.init(new SecretKeySpec(secretKey.getEncoded(), "HmacSHA256"));
+        return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encrypts or decrypts the two blocks of a plain text digest. They get their own key derived from the file key,
+     * so they never share key and IV with the body
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param iv IV of the file or part the digest belongs to
+     */
+    private byte[] cryptPlainDigest(byte[] digest, int mode, byte[] iv) throws GeneralSecurityException {
+        byte[] digestKey = deriveKey("encryptor-plain-digest");
+        try {
+            //own instance, the pooled cipher of this thread may be in the middle of a body
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(mode, new SecretKeySpec(digestKey, "AES"), new IvParameterSpec(iv));
+            return cipher.doFinal(digest);
+        } finally {
+            Arrays.fill(digestKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Encrypts the finished digest and writes it over its placeholder in the header
+     */
+    private void writePlainDigest(FileChannel output, byte[] header, MessageDigest digest, byte[] iv) throws IOException, GeneralSecurityException {
+        ByteBuffer hex = ByteBuffer.wrap(HexFormat.of().formatHex(cryptPlainDigest(digest.digest(), Cipher.ENCRYPT_MODE, iv)).getBytes(StandardCharsets.US_ASCII));
+        long position = placeholderPosition(header, PLAIN_DIGEST_HEADER);
+        while (hex.hasRemaining()) {
+            position += output.write(hex, position);
+        }
+    }
+
+    /**
+     * @return a digest to feed the decrypted bytes of the file into, null if the file has no stored digest
+     */
+    private static MessageDigest plainDigestOf(EncryptedFile file) throws NoSuchAlgorithmException {
+        return file.getPlainDigest() == null ? null : MessageDigest.getInstance("SHA-256");
+    }
+
+    /**
+     * @param digest digest of the decrypted bytes, nothing is checked if null
+     * @param iv IV of the file or part
+     * @throws BadPaddingException if the plain text does not hash to the digest in the header
+     */
+    private void checkPlainDigest(EncryptedFile file, MessageDigest digest, byte[] iv) throws GeneralSecurityException {
+        if (digest == null) {
+            return;
+        }
+        if (!MessageDigest.isEqual(digest.digest(), cryptPlainDigest(file.getPlainDigest(), Cipher.DECRYPT_MODE, iv))) {
+            throw new BadPaddingException("Plain text digest does not match, wrong key or damaged file");
+        }
+    }
+
+    /**
+     * Reveals the SHA-256 the encryptor took of the original while encrypting it, to compare with a hash taken elsewhere
+     * without decrypting the file
+     * @param file a file encrypted with this key
+     * @return SHA-256 of the plain text, null if the file was written without one
+     * @throws GeneralSecurityException if the key can not be used
+     */
+    public byte[] plainDigest(EncryptedFile file) throws GeneralSecurityException {
+        if (file.getPlainDigest() == null) {
+            return null;
+        }
+        return cryptPlainDigest(file.getPlainDigest(), Cipher.DECRYPT_MODE, Arrays.copyOf(Utils.decodeBase64(file.getIV()), IV_SIZE));
+    }
+
+    /**
+     * @return the given header entries with the plain digest placeholder added if digests are on
+     */
+    private Map<String,String> withPlainDigest(Map<String,String> properties) {
+        if (!plainDigest) {
+            return properties;
+        }
+        Map<String,String> withDigest = new LinkedHashMap<>(properties);
+        withDigest.put(PLAIN_DIGEST_HEADER, PLAIN_DIGEST_PLACEHOLDER);
+        return withDigest;
+    }
+
+    /**
+     * Reads and authenticates the manifest at the end of a sparse file
+     * @throws GeneralSecurityException if the manifest does not match its HMAC, also the result of a wrong key
+     */
+    private SparseManifest readSparseManifest(SharedReadChannels.Handle channel, EncryptedFile file) throws IOException, GeneralSecurityException {
+        long byteOffset = file.getByteOffset();
+        long size = contentEnd(channel, file);
+        ByteBuffer tail = ByteBuffer.allocate(Integer.BYTES + SPARSE_MAC_SIZE);
+        if (size - byteOffset < tail.capacity()) {
+            throw new EOFException("Sparse file is missing its manifest");
+        }
+        channel.readFully(tail, size - tail.capacity());
+        int manifestLength = tail.flip().getInt();
+        byte[] expected = new byte[SPARSE_MAC_SIZE];
+        tail.get(expected);
+        long bodyEnd = size - tail.capacity() - manifestLength;
+        if (manifestLength < 0 || bodyEnd < byteOffset) {
+            throw new IOException("Sparse manifest length is out of range");
+        }
+        ByteBuffer manifest = ByteBuffer.allocate(manifestLength);
+        channel.readFully(manifest, bodyEnd);
+        if (!MessageDigest.isEqual(expected, sparseMac(manifest.array()))) {
+            throw new BadPaddingException("Sparse manifest does not match, wrong key or damaged file");
+        }
+        return new SparseManifest(ZeroRuns.fromManifest(manifest.array()), bodyEnd);
+    }
+
+    /**
+     * @param plainLength number of plain bytes
+     * @return length of the cipher text CBC with PKCS5 padding turns them into
+     */
+    static long cipherTextLength(long plainLength) {
+        return (plainLength / IV_SIZE + 1) * IV_SIZE;
+    }
+
+    /**
+     * Fails before any output is written if the store holding the given path can not take the given number of bytes
+     * @param path file or directory on the store that will receive the output
+     * @param bytes number of bytes about to be written
+     * @throws IOException if the store does not have enough usable space
+     */
+    static void checkFreeSpace(Path path, long bytes) throws IOException {
+        long usable = Files.getFileStore(path).getUsableSpace();
+        if (bytes > usable) {
+            throw new IOException("Not enough free space for " + path.getFileName() + ": " + bytes + " bytes needed, " + usable + " bytes available");
+        }
+    }
+
+    /**
+     * Extends the channel to its final length up front so the file system can lay the file out in one go instead of
+     * growing it on every write. Java has no portable fallocate, writing the last byte is the closest it gets
+     * @param channel the output being written
+     * @param length final length of the output, nothing is done for a negative or zero length
+     */
+    private static void preallocate(FileChannel channel, long length) throws IOException {
+        if (length > 0 && channel.size() < length) {
+            channel.write(ByteBuffer.allocate(1), length - 1);
+        }
+    }
+
+    /**
+     * @param file the file that was decrypted
+     * @param written number of plain bytes the decryption produced
+     * @throws IOException if the header records a different plain length, files from before the length was stored are not checked
+     */
+    private static void checkPlainLength(EncryptedFile file, long written) throws IOException {
+        if (file.getPlainLength() >= 0 && written != file.getPlainLength()) {
+            throw new IOException("Decrypted length does not match the length in the header: " + written + " bytes, expected " + file.getPlainLength());
+        }
+    }
+
+    /**
+     * @return offset where the content written by the cipher loops ends, before the integrity tree if there is one
+     */
+    private static long contentEnd(SharedReadChannels.Handle channel, EncryptedFile file) throws IOException {
+        return channel.size() - IntegrityTree.trailerLength(channel, file);
+    }
+
+    /**
+     * Decrypts a file written in sparse mode, the data is written around the zero runs which are left as holes
+     */
+    private void decryptSparse(EncryptedFile file, Path path) throws IOException, GeneralSecurityException {
+        //only a newly created file can be made sparse on windows, elsewhere skipped regions become holes anyway
+        Files.deleteIfExists(path);
+        try (SharedReadChannels.Handle inputChannel = SharedReadChannels.shared().open(file.getFile().toPath()); FileChannel outputChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SPARSE); BufferPool.Lease lease = leaseBuffers()) {
+            inputChannel.lock(0, Long.MAX_VALUE);
+            SparseManifest manifest = readSparseManifest(inputChannel, file);
+            checkPlainLength(file, manifest.runs.plainLength);
+            //only the data runs take space, the zero runs stay holes
+            checkFreeSpace(path, manifest.bodyEnd - file.getByteOffset());
+            ByteBuffer input = inputBuffer(lease);
+            ByteBuffer output = outputBuffer(lease);
+            Cipher cipher = prepareCipher();
+            CryptoEvents.CipherLoop event = new CryptoEvents.CipherLoop("decrypt-sparse", file.getFile().getName(), input.capacity()).start();
+            SparseWriter writer = new SparseWriter(outputChannel, manifest.runs, plainDigestOf(file));
+            long position = file.getByteOffset();
+            long bytesTotal = manifest.bodyEnd - position;
+            while (position < manifest.bodyEnd) {
+                input.clear();
+                input.limit((int) Math.min(input.capacity(), manifest.bodyEnd - position));
+                int bytesRead = inputChannel.read(input, position);
+                if (bytesRead == -1) {
+                    throw new EOFException("File shrank while it was being read");
+                }
+                position += bytesRead;
+                throttle(bytesRead);
+                input.flip();
+                output.clear();
+                cipher.update(input, output);
+                output.flip();
+                writer.write(output);
+                THROUGHPUT.mark(bytesRead);
+                reportProgress(position - file.getByteOffset(), bytesTotal);
+            }
+            input.clear();
+            input.limit(0);
+            output.clear();
+            cipher.doFinal(input, output);
+            output.flip();
+            writer.write(output);
+            writer.finish();
+            checkPlainDigest(file, writer.digest, IV);
+            event.finish(position - file.getByteOffset());
+        }
+    }
+
+    /**
+     * Manifest of a sparse file and where its cipher text ends
+     */
+    private static final class SparseManifest {
+        private final ZeroRuns runs;
+        private final long bodyEnd;
+
+        private SparseManifest(ZeroRuns runs, long bodyEnd) {
+            this.runs = runs;
+            this.bodyEnd = bodyEnd;
+        }
+    }
+
+    /**
+     * All-zero byte ranges of a file in ascending order, adjacent ranges are merged as they are added
+     */
+    private static final class ZeroRuns {
+        /**
+         * Start and length of every run, one pair after the other
+         */
+        private long[] runs = new long[32];
+        private int count;
+        private long plainLength;
+
+        void add(long start, long length) {
+            if (count > 0 && runs[2 * count - 2] + runs[2 * count - 1] == start) {
+                runs[2 * count - 1] += length;
+                return;
+            }
+            if (2 * count == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[2 * count] = start;
+            runs[2 * count + 1] = length;
+            count++;
+        }
+
+        long start(int index) {
+            return runs[2 * index];
+        }
+
+        long length(int index) {
+            return runs[2 * index + 1];
+        }
+
+        byte[] toManifest(long plainLength) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Long.BYTES + Integer.BYTES + count * 2 * Long.BYTES);
+            try (DataOutputStream stream = new DataOutputStream(bytes)) {
+                stream.writeLong(plainLength);
+                stream.writeInt(count);
+                for (int i = 0; i < 2 * count; i++) {
+                    stream.writeLong(runs[i]);
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        static ZeroRuns fromManifest(byte[] manifest) throws IOException {
+            ZeroRuns zeroRuns = new ZeroRuns();
+            try (DataInputStream stream = new DataInputStream(new ByteArrayInputStream(manifest))) {
+                zeroRuns.plainLength = stream.readLong();
+                int count = stream.readInt();
+                if (count < 0 || count > manifest.length / (2 * Long.BYTES)) {
+                    throw new IOException("Sparse manifest run count is out of range");
+                }
+                for (int i = 0; i < count; i++) {
+                    zeroRuns.add(stream.readLong(), stream.readLong());
+                }
+            }
+            return zeroRuns;
+        }
+    }
+
+    /**
+     * Places decrypted data into the output around the zero runs
+     */
+    private static final class SparseWriter {
+        private final FileChannel channel;
+        private final ZeroRuns runs;
+        /**
+         * Index of the next run not yet skipped
+         */
+        private int run;
+        private long position;
+        /**
+         * Fed the plain text in file order, zero runs included, may be null
+         */
+        private final MessageDigest digest;
+
+        SparseWriter(FileChannel channel, ZeroRuns runs, MessageDigest digest) {
+            this.channel = channel;
+            this.runs = runs;
+            this.digest = digest;
+        }
+
+        void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                skipRuns();
+                long room = (run < runs.count ? runs.start(run) : runs.plainLength) - position;
+                if (room <= 0) {
+                    throw new IOException("Sparse file holds more data than its manifest describes");
+                }
+                int length = (int) Math.min(room, data.remaining());
+                ByteBuffer piece = data.slice(data.position(), length);
+                if (digest != null) {
+                    digest.update(piece.duplicate());
+                }
+                while (piece.hasRemaining()) {
+                    position += channel.write(piece, position);
+                }
+                data.position(data.position() + length);
+            }
+        }
+
+        void finish() throws IOException {
+            skipRuns();
+            if (run != runs.count || position != runs.plainLength) {
+                throw new IOException("Sparse file holds less data than its manifest describes");
+            }
+            //a trailing run is a hole the file length has to cover, writing its last byte extends the file without filling it
+            if (channel.size() < position) {
+                channel.write(ByteBuffer.allocate(1), position - 1);
+            }
+        }
+
+        private void skipRuns() {
+            while (run < runs.count && runs.start(run) == position) {
+                if (digest != null) {
+                    for (long left = runs.length(run); left > 0; left -= SPARSE_BLOCK_SIZE) {
+                        digest.update(ZERO_BLOCK.slice(0, (int) Math.min(SPARSE_BLOCK_SIZE, left)));
+                    }
+                }
+                position += runs.length(run);
+                run++;
+            }
+        }
+    }
+
     /**
      * Writes magic header to file, contains basic information about file like name, file extension and its IV and Salt
-     * @param file the file being encrypted
+     * @param header the header built by {@link #header(EncryptedFile, byte[], long, Map)}
      * @param stream Stream used to write to the file
      * @throws IOException if an IOError occurs at anypoint
      */
-    private void writeHeader(EncryptedFile file, OutputStream stream) throws IOException {
-        //fileName,fileType,EncryptionType,IV
-        byte[] IVAndSalt = new byte[IV_SIZE+SALT_SIZE];
-        System.arraycopy(IV,0,IVAndSalt,0,IV.length);
-        System.arraycopy(salt,0,IVAndSalt,IV.length,salt.length);
-        stream.write("BOF:6\n".getBytes(StandardCharsets.UTF_8));
-        stream.write(("FileName:" + file.getFileName() + "\n").getBytes(StandardCharsets.UTF_8));
-        stream.write(("FileType:" + file.getFileType() + "\n").getBytes(StandardCharsets.UTF_8));
-        stream.write(("EncryptionType:" + file.getEncryptionType().name() + "\n").getBytes(StandardCharsets.UTF_8));
-        stream.write(("IV:" + Utils.encodeBase64(IVAndSalt) + "\n").getBytes(StandardCharsets.UTF_8));
-        stream.write("EOF\n".getBytes(StandardCharsets.UTF_8));
+    private void writeHeader(byte[] header, OutputStream stream) throws IOException {
+        stream.write(header);
         stream.flush();
     }
 
+    /**
+     * @param entry name of a header entry that is filled in once the body is done
+     * @return offset of the value of the entry in a header written by this encryptor
+     */
+    private static long placeholderPosition(byte[] header, String entry) {
+        String text = new String(header, StandardCharsets.UTF_8);
+        int line = text.indexOf("\n" + entry + ":");
+        //offsets in the file are bytes, the file name before the entry may hold multi byte characters
+        return text.substring(0, line + entry.length() + 2).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * @param file the file being encrypted
+     * @param iv the IV of this output, stored together with the salt
+     * @param plainLength number of plain bytes in this output
+     * @param extra entries appended after the standard ones
+     * @return the header in the layout read by {@link EncryptedFile#initRead(java.io.File)}
+     */
+    private byte[] header(EncryptedFile file, byte[] iv, long plainLength, Map<String,String> extra) {
+        //fileName,fileType,EncryptionType,IV and KDF parameters when password based
+        byte[] IVAndSalt = new byte[IV_SIZE+SALT_SIZE];
+        System.arraycopy(iv,0,IVAndSalt,0,iv.length);
+        System.arraycopy(salt,0,IVAndSalt,iv.length,salt.length);
+        LinkedHashMap<String,String> properties = new LinkedHashMap<>();
+        properties.put("FileName", file.getFileName());
+        properties.put("FileType", file.getFileType());
+        properties.put("EncryptionType", file.getEncryptionType().name());
+        properties.put("IV", Utils.encodeBase64(IVAndSalt));
+        if(PasswordEncryption){
+            properties.put("KDF", kdfAlgorithm);
+            properties.put("KDFIterations", Integer.toString(kdfIterations));
+        }
+        properties.put("PlainLength", Long.toString(plainLength));
+        properties.putAll(extra);
+        //line count covers BOF and EOF lines as well
+        StringBuilder header = new StringBuilder("BOF:").append(properties.size() + 2).append('\n');
+        for(Map.Entry<String,String> property : properties.entrySet()){
+            header.append(property.getKey()).append(':').append(property.getValue()).append('\n');
+        }
+        header.append("EOF\n");
+        return header.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encrypts the file into several part files that each stay under a size limit. Every part covers its own range of
+     * the file and has its own header and IV, so the parts are encrypted in parallel and can later be decrypted in any
+     * order with {@link #decryptParts(List)}. The key must come from a password or {@link #init(SecretKey)}, a random
+     * key would have no key file to go with the parts. Parts are always written in full and without an integrity tree, sparse mode and
+     * {@link #setIntegrityChunkSize(int)} do not apply
+     * @param encryptedFile the file to encrypt, this method is non-destructive and only reads the file bytes
+     * @param maxPartSize upper bound in bytes of every part file, header included
+     * @return temp part files in order
+     * @throws IllegalArgumentException if the limit can not hold a header and one cipher block
+     * @throws IOException if an io error occurs, parts written so far are deleted
+     * @throws GeneralSecurityException if any cipher error occurs
+     */
+    public List<Path> encryptSplit(EncryptedFile encryptedFile, long maxPartSize) throws IOException, GeneralSecurityException {
+        if (!PasswordEncryption && !keyProvided) {
+            throw new IllegalStateException("Split output needs a password or a provided key");
+        }
+        byte[] setIdBytes = new byte[PART_SET_ID_SIZE];
+        CryptoProviders.secureRandom().nextBytes(setIdBytes);
+        String setId = Utils.encodeBase64(setIdBytes);
+        //size the parts for the widest header any part can get
+        int headerBound = header(encryptedFile, IV, Long.MAX_VALUE, withPlainDigest(partProperties(setId, Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE))).length;
+        //padding adds up to one block to every part
+        long partPlainSize = ((maxPartSize - headerBound) / IV_SIZE - 1) * IV_SIZE;
+        if (partPlainSize < IV_SIZE) {
+            throw new IllegalArgumentException("Part size of " + maxPartSize + " bytes can not hold a header and one block");
+        }
+        long total = encryptedFile.getFile().length();
+        int partCount = (int) Math.max(1, (total + partPlainSize - 1) / partPlainSize);
+        List<Path> parts = new ArrayList<>(partCount);
+        try (SharedReadChannels.Handle source = SharedReadChannels.shared().open(encryptedFile.getFile().toPath())) {
+            for (int i = 0; i < partCount; i++) {
+                parts.add(createTempFile(encryptedFile.getFileName(), ".enc." + partSuffix(i)));
+            }
+            //every full part carries one block of padding, the last one is padded like a whole file
+            checkFreeSpace(parts.get(0), (long) partCount * headerBound + cipherTextLength(total) + (long) (partCount - 1) * IV_SIZE);
+            ExecutorService executor = newPartExecutor(partCount);
+            try {
+                AtomicLong done = new AtomicLong();
+                List<Future<Long>> futures = new ArrayList<>(partCount);
+                for (int i = 0; i < partCount; i++) {
+                    long offset = i * partPlainSize;
+                    long length = Math.min(partPlainSize, total - offset);
+                    //parts share key and salt, reusing an IV under CBC would leak equal leading blocks
+                    byte[] iv = new byte[IV_SIZE];
+                    CryptoProviders.secureRandom().nextBytes(iv);
+                    byte[] header = header(encryptedFile, iv, length, withPlainDigest(partProperties(setId, i, partCount, offset)));
+                    Path target = parts.get(i);
+                    futures.add(executor.submit(() -> encryptPart(source, offset, length, header, iv, target, done, total)));
+                }
+                awaitParts(futures);
+            } finally {
+                executor.shutdownNow();
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+            throw e;
+        }
+        return parts;
+    }
+
+    /**
+     * @return suffix of the n-th part, zero padded so the parts sort in order
+     */
+    public static String partSuffix(int index) {
+        return String.format("%03d", index + 1);
+    }
+
+    private static Map<String,String> partProperties(String setId, int index, int count, long offset) {
+        LinkedHashMap<String,String> properties = new LinkedHashMap<>();
+        properties.put("PartSet", setId);
+        properties.put("PartIndex", Integer.toString(index));
+        properties.put("PartCount", Integer.toString(count));
+        properties.put("PartOffset", Long.toString(offset));
+        return properties;
+    }
+
+    /**
+     * Encrypts one range of the source into a part file, the shared source channel is only read with positional reads
+     * @return number of plain bytes encrypted
+     */
+    private long encryptPart(SharedReadChannels.Handle source, long offset, long length, byte[] header, byte[] iv, Path target, AtomicLong done, long total) throws IOException, GeneralSecurityException {
+        //each part locks only the slice of the source it reads, the locks go with the source handle
+        source.lock(offset, length);
+        try (FileChannel outputChannel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING); BufferPool.Lease lease = leaseBuffers()) {
+            ByteBuffer input = inputBuffer(lease);
+            ByteBuffer output = outputBuffer(lease);
+            Cipher cipher = prepareCipher(iv);
+            CryptoEvents.CipherLoop event = new CryptoEvents.CipherLoop("encrypt-part", target.getFileName().toString(), input.capacity()).start();
+            writeFully(outputChannel, ByteBuffer.wrap(header));
+            preallocate(outputChannel, header.length + cipherTextLength(length));
+            MessageDigest digest = plainDigest ? MessageDigest.getInstance("SHA-256") : null;
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                input.clear();
+                input.limit((int) Math.min(input.capacity(), end - position));
+                int bytesRead = source.read(input, position);
+                if (bytesRead == -1) {
+                    throw new EOFException("File shrank while it was being split");
+                }
+                position += bytesRead;
+                throttle(bytesRead);
+                input.flip();
+                if (digest != null) {
+                    digest.update(input.duplicate());
+                }
+                output.clear();
+                cipher.update(input, output);
+                output.flip();
+                writeFully(outputChannel, output);
+                THROUGHPUT.mark(bytesRead);
+                reportProgress(done.addAndGet(bytesRead), total);
+            }
+            input.clear();
+            input.limit(0);
+            output.clear();
+            cipher.doFinal(input, output);
+            output.flip();
+            writeFully(outputChannel, output);
+            if (digest != null) {
+                writePlainDigest(outputChannel, header, digest, iv);
+            }
+            event.finish(length);
+            return length;
+        }
+    }
+
+    /**
+     * Decrypts a complete part set written by {@link #encryptSplit(EncryptedFile, long)} into one temp file, the parts
+     * are decrypted concurrently and written straight to their offset
+     * @param parts every part of the set, in any order
+     * @return path to the reassembled temp file
+     * @throws IllegalArgumentException if parts are missing, repeated or belong to different sets
+     */
+    public Path decryptParts(List<EncryptedFile> parts) throws IOException, GeneralSecurityException {
+        List<EncryptedFile> ordered = orderParts(parts);
+        EncryptedFile first = ordered.get(0);
+        Path path = createTempFile(first.getFileName(), first.getFileType().replaceFirst(".", ""));
+        EncryptedFile last = ordered.get(ordered.size() - 1);
+        //parts written before plain lengths were stored are sized by their cipher text
+        long plainLength = last.getPartOffset() + (last.getPlainLength() >= 0 ? last.getPlainLength() : last.getFile().length() - last.getByteOffset());
+        try (FileChannel outputChannel = FileChannel.open(path, StandardOpenOption.WRITE); FileLock ignored = outputChannel.tryLock()) {
+            checkFreeSpace(path, plainLength);
+            preallocate(outputChannel, plainLength);
+            decryptParts(ordered, outputChannel);
+            outputChannel.truncate(outputChannel.position());
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return path;
+    }
+
+    /**
+     * Decrypts a complete part set onto a channel. A {@link FileChannel} is seekable so the parts are decrypted
+     * concurrently and written at their offset from the current position, any other channel gets a streaming merge
+     * that decrypts the parts one after another in order
+     * @param parts every part of the set, in any order
+     * @param output where the plain bytes go, left positioned after the last byte
+     * @throws IllegalArgumentException if parts are missing, repeated or belong to different sets
+     */
+    public void decryptParts(List<EncryptedFile> parts, WritableByteChannel output) throws IOException, GeneralSecurityException {
+        List<EncryptedFile> ordered = orderParts(parts);
+        long total = 0;
+        for (EncryptedFile part : ordered) {
+            total += part.getFile().length() - part.getByteOffset();
+        }
+        AtomicLong done = new AtomicLong();
+        List<Long> lengths = new ArrayList<>(ordered.size());
+        if (output instanceof FileChannel fileChannel) {
+            long base = fileChannel.position();
+            ExecutorService executor = newPartExecutor(ordered.size());
+            try {
+                List<Future<Long>> futures = new ArrayList<>(ordered.size());
+                for (EncryptedFile part : ordered) {
+                    long bodyTotal = total;
+                    futures.add(executor.submit(() -> decryptPart(part, fileChannel, base + part.getPartOffset(), done, bodyTotal)));
+                }
+                lengths.addAll(awaitParts(futures));
+            } finally {
+                executor.shutdownNow();
+            }
+            EncryptedFile last = ordered.get(ordered.size() - 1);
+            fileChannel.position(base + last.getPartOffset() + lengths.get(lengths.size() - 1));
+        } else {
+            for (EncryptedFile part : ordered) {
+                lengths.add(decryptPart(part, output, -1, done, total));
+            }
+        }
+        //a part that decrypts to a different length than its neighbour expects means the set was tampered with
+        for (int i = 0; i + 1 < ordered.size(); i++) {
+            if (ordered.get(i).getPartOffset() + lengths.get(i) != ordered.get(i + 1).getPartOffset()) {
+                throw new IOException("Part " + (i + 1) + " does not line up with part " + (i + 2));
+            }
+        }
+    }
+
+    /**
+     * Decrypts one part, at the given position of the output or appended to it when the position is negative
+     * @return number of plain bytes written
+     */
+    private long decryptPart(EncryptedFile part, WritableByteChannel outputChannel, long position, AtomicLong done, long total) throws IOException, GeneralSecurityException {
+        try (SharedReadChannels.Handle inputChannel = SharedReadChannels.shared().open(part.getFile().toPath()); BufferPool.Lease lease = leaseBuffers()) {
+            inputChannel.lock(0, Long.MAX_VALUE);
+            ByteBuffer input = inputBuffer(lease);
+            ByteBuffer output = outputBuffer(lease);
+            byte[] IVAndSalt = Utils.decodeBase64(part.getIV());
+            Cipher cipher = prepareCipher(Arrays.copyOf(IVAndSalt, IV_SIZE));
+            MessageDigest digest = plainDigestOf(part);
+            CryptoEvents.CipherLoop event = new CryptoEvents.CipherLoop("decrypt-part", part.getFile().getName(), input.capacity()).start();
+            long readPosition = part.getByteOffset();
+            long written = 0;
+            int bytesRead;
+            while ((bytesRead = inputChannel.read(input, readPosition)) != -1) {
+                readPosition += bytesRead;
+                throttle(bytesRead);
+                input.flip();
+                output.clear();
+                cipher.update(input, output);
+                output.flip();
+                if (digest != null) {
+                    digest.update(output.duplicate());
+                }
+                written += writeAt(outputChannel, output, position < 0 ? -1 : position + written);
+                input.clear();
+                THROUGHPUT.mark(bytesRead);
+                reportProgress(done.addAndGet(bytesRead), total);
+            }
+            input.flip();
+            output.clear();
+            cipher.doFinal(input, output);
+            output.flip();
+            if (digest != null) {
+                digest.update(output.duplicate());
+            }
+            written += writeAt(outputChannel, output, position < 0 ? -1 : position + written);
+            if (part.getPlainLength() >= 0 && written != part.getPlainLength()) {
+                throw new IOException("Part " + (part.getPartIndex() + 1) + " decrypted to " + written + " bytes but its header says " + part.getPlainLength());
+            }
+            checkPlainDigest(part, digest, Arrays.copyOf(IVAndSalt, IV_SIZE));
+            event.finish(written);
+            return written;
+        }
+    }
+
+    /**
+     * Checks that the parts form one complete set
+     * @return the parts sorted by index
+     */
+    private static List<EncryptedFile> orderParts(List<EncryptedFile> parts) {
+        if (parts.isEmpty()) {
+            throw new IllegalArgumentException("No parts given");
+        }
+        List<EncryptedFile> ordered = new ArrayList<>(parts);
+        ordered.sort(Comparator.comparingInt(EncryptedFile::getPartIndex));
+        EncryptedFile first = ordered.get(0);
+        for (int i = 0; i < ordered.size(); i++) {
+            EncryptedFile part = ordered.get(i);
+            if (!part.isPart()) {
+                throw new IllegalArgumentException(part.getFile().getName() + " is not part of a split file");
+            }
+            if (!part.getPartSet().equals(first.getPartSet())) {
+                throw new IllegalArgumentException(part.getFile().getName() + " belongs to a different split file");
+            }
+            if (part.getPartIndex() != i || part.getPartCount() != ordered.size()) {
+                throw new IllegalArgumentException("Split file has " + part.getPartCount() + " parts, part " + (i + 1) + " is missing or repeated");
+            }
+        }
+        if (first.getPartOffset() != 0) {
+            throw new IllegalArgumentException("First part does not start at offset 0");
+        }
+        return ordered;
+    }
+
+    /**
+     * Waits for every part, the first failure is rethrown as it was thrown by the part
+     * @return the result of every part in order
+     */
+    private static List<Long> awaitParts(List<Future<Long>> futures) throws IOException, GeneralSecurityException {
+        List<Long> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<Long> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for parts");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof GeneralSecurityException securityException) {
+                throw securityException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(cause);
+        }
+        return results;
+    }
+
+    private static ExecutorService newPartExecutor(int partCount) {
+        return WorkExecutors.cpu("split-part", Math.min(partCount, AutoTuner.current().getWorkerCount()));
+    }
+
+    /**
+     * Serves repeat decryptions of the same file from the cache and fills it on first decryption, see
+     * {@link DecryptCache}. Sparse files are never cached, a copy would fill in their holes
+     * @param decryptCache the cache to use, null to turn caching off
+     */
+    public void setDecryptCache(DecryptCache decryptCache) {
+        this.decryptCache = decryptCache;
+    }
+
+    /**
+     * @return the cache key of the file under this key, null if there is no cache or the file can not be looked at
+     */
+    private DecryptCache.Key decryptCacheKey(EncryptedFile file) {
+        if (decryptCache == null) {
+            return null;
+        }
+        try {
+            return decryptCache.key(file, secretKey);
+        } catch (IOException e) {
+            System.err.println("decrypting without cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void setProgressListener(ProgressListener listener) {
+        this.progressListener = listener;
+    }
+
+    @Override
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Adds an entry to the header of the files this encryptor writes, used to mark files with a special body
+     * @param name entry name, must not contain ':' or a line break
+     * @param value entry value, must not contain a line break
+     */
+    public void setHeaderProperty(String name, String value) {
+        if (name.contains(":") || name.contains("\n") || value.contains("\n")) {
+            throw new IllegalArgumentException("Header entries can not contain ':' in the name or line breaks");
+        }
+        headerProperties.put(name, value);
+    }
+
+    /**
+     * Sparse mode skips all-zero regions, meant for disk images and preallocated files that are mostly empty. The
+     * output records the zero runs in an authenticated manifest and decrypts back to a file with holes in their place
+     * @param sparse true to detect zero regions in {@link #encrypt(EncryptedFile)}
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+        if (sparse) {
+            headerProperties.put("Sparse", Integer.toString(SPARSE_BLOCK_SIZE));
+        } else {
+            headerProperties.remove("Sparse");
+        }
+    }
+
+    /**
+     * Hashes the plain text with SHA-256 in the same pass that encrypts it and stores the digest, encrypted, in the
+     * header. Decryption then checks the output against it while writing, so a round trip check needs no extra read.
+     * On by default, output written to an {@link OutputSink} never carries one
+     * @param plainDigest false to skip the hash on machines where it slows the encrypt loop down
+     */
+    public void setPlainDigest(boolean plainDigest) {
+        this.plainDigest = plainDigest;
+    }
+
+    /**
+     * Adds a Merkle tree of chunk macs to every file encrypted from now on, see {@link IntegrityTree}. It costs one
+     * HMAC pass over the cipher text and 32 bytes per chunk
+     * @param chunkSize bytes of cipher text covered by one leaf, a multiple of the AES block size, 0 to turn the tree off
+     */
+    public void setIntegrityChunkSize(int chunkSize) {
+        if (chunkSize < 0 || chunkSize % IV_SIZE != 0) {
+            throw new IllegalArgumentException("Integrity chunk size must be a multiple of " + IV_SIZE);
+        }
+        this.integrityChunkSize = chunkSize;
+        if (chunkSize > 0) {
+            headerProperties.put(IntegrityTree.CHUNK_SIZE_HEADER, Integer.toString(chunkSize));
+            headerProperties.put(IntegrityTree.ROOT_HEADER, IntegrityTree.ROOT_PLACEHOLDER);
+        } else {
+            headerProperties.remove(IntegrityTree.CHUNK_SIZE_HEADER);
+            headerProperties.remove(IntegrityTree.ROOT_HEADER);
+        }
+    }
+
+    /**
+     * Checks every chunk of a file against its integrity tree without decrypting it, the chunks are spread over the
+     * worker count of the tuning profile
+     * @param file a file written with {@link #setIntegrityChunkSize(int)}
+     * @return which regions are damaged
+     * @throws IllegalArgumentException if the file has no integrity tree
+     * @throws IOException if the file can not be read
+     * @throws GeneralSecurityException if the mac is not available
+     */
+    public IntegrityTree.Report verifyIntegrity(EncryptedFile file) throws IOException, GeneralSecurityException {
+        return verifyIntegrity(file, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Checks only the chunks overlapping a range of the encrypted body, the leaf list is still checked against the
+     * root so the answer does not depend on the rest of the file being intact
+     * @param file a file written with {@link #setIntegrityChunkSize(int)}
+     * @param offset start of the range in the body
+     * @param length length of the range
+     * @return which regions in the range are damaged
+     * @throws IllegalArgumentException if the file has no integrity tree
+     * @throws IOException if the file can not be read
+     * @throws GeneralSecurityException if the mac is not available
+     */
+    public IntegrityTree.Report verifyIntegrity(EncryptedFile file, long offset, long length) throws IOException, GeneralSecurityException {
+        return IntegrityTree.verify(file, secretKey, offset, length, rateLimiter);
+    }
+
+    /**
+     * Sets where temp output is written, using a directory on the same file system as the final destination lets
+     * callers move the result into place with an atomic rename instead of a copy
+     * @param directory existing directory, or null for the system temp directory
+     */
+    public void setWorkDirectory(Path directory) {
+        this.workDirectory = directory;
+    }
+
+    private Path createTempFile(String prefix, String suffix) throws IOException {
+        return workDirectory == null ? Files.createTempFile(prefix, suffix) : Files.createTempFile(workDirectory, prefix, suffix);
+    }
+
+    /**
+     * Leases the input and output buffer of one cipher loop from {@link BufferPool#shared()} as a single block, two
+     * separate leases could deadlock when several loops each hold one and wait for the second
+     * @return lease to split with {@link #inputBuffer(BufferPool.Lease)} and {@link #outputBuffer(BufferPool.Lease)}
+     * @throws InterruptedIOException if the thread is interrupted while waiting for memory
+     */
+    private static BufferPool.Lease leaseBuffers() throws InterruptedIOException {
+        //output needs one block more than the input for the padding of the final block
+        int preferred = 2 * AutoTuner.current().getBufferSize() + IV_SIZE;
+        int minimum = 2 * TuningProfile.MIN_BUFFER_SIZE + IV_SIZE;
+        try {
+            return BufferPool.shared().acquire(preferred, minimum);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for buffer memory");
+        }
+    }
+
+    private static BufferPool.Lease leaseExactly(int size) throws InterruptedIOException {
+        try {
+            return BufferPool.shared().acquire(Math.max(1, size), Math.max(1, size));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for buffer memory");
+        }
+    }
+
+    /**
+     * @return the first part of the lease, a whole number of cipher blocks
+     */
+    private static ByteBuffer inputBuffer(BufferPool.Lease lease) {
+        int capacity = lease.buffer().capacity();
+        return lease.buffer().slice(0, inputSize(capacity));
+    }
+
+    /**
+     * @return the rest of the lease, always at least one block larger than the input buffer
+     */
+    private static ByteBuffer outputBuffer(BufferPool.Lease lease) {
+        int capacity = lease.buffer().capacity();
+        return lease.buffer().slice(inputSize(capacity), capacity - inputSize(capacity));
+    }
+
+    private static int inputSize(int capacity) {
+        return ((capacity - IV_SIZE) / 2) & -IV_SIZE;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the buffer at a position of a file channel, or appends it when the position is negative
+     * @return number of bytes written
+     */
+    private static int writeAt(WritableByteChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        if (position < 0) {
+            writeFully(channel, buffer);
+            return length;
+        }
+        FileChannel fileChannel = (FileChannel) channel;
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+        return length;
+    }
+
+    /**
+     * Blocks until the rate limiter allows the given number of bytes through
+     * @throws InterruptedIOException if the job was cancelled while waiting
+     */
+    private void throttle(int bytes) throws InterruptedIOException {
+        if (rateLimiter == null) {
+            return;
+        }
+        try {
+            rateLimiter.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    private void reportProgress(long bytesDone, long bytesTotal) {
+        if (progressListener != null) {
+            progressListener.onProgress(bytesDone, bytesTotal);
+        }
+    }
+
+    /**
+     * Re-initialises this thread's pooled cipher with the key and nonce of this encryptor, called once per file
+     * @return cipher ready to process a file
+     */
+    private Cipher prepareCipher() throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
+        return prepareCipher(IV);
+    }
+
+    /**
+     * @param iv nonce of the output being processed, parts of a split file each have their own
+     */
+    private Cipher prepareCipher(byte[] iv) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
+        Cipher cipher = CryptoProviders.cipher(ALGORITHM);
+        cipher.init(cipherMode, secretKey, new IvParameterSpec(iv));
+        return cipher;
+    }
+
     /**
      * Method used to generate a random secret key based encryption mode instance of AESEncryptor
      *
@@ -254,8 +1679,9 @@ public class AESEncryptor implements Encryptor {
      * @see #init(String)
      */
     public static AESEncryptor init() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        CryptoEvents.KeySetup event = new CryptoEvents.KeySetup("random").start();
         AESEncryptor encryptor = new AESEncryptor();
-        SecureRandom random = new SecureRandom();
+        SecureRandom random = CryptoProviders.secureRandom();
         //make a byte array of SALT SIZE
         encryptor.salt = new byte[SALT_SIZE];
         //FIll salt array with random bytes
@@ -265,57 +1691,162 @@ public class AESEncryptor implements Encryptor {
         //FIll IV with random bytes from secure random
         random.nextBytes(encryptor.IV);
         //key gen for random generation of key
-        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        KeyGenerator keyGenerator = CryptoProviders.keyGenerator("AES");
         //get key from key gen
         encryptor.secretKey = keyGenerator.generateKey();
-        //get a cipher of AES GCM mode
-        encryptor.cipher = Cipher.getInstance(ALGORITHM);
-        //init cipher for encryption given above parameters
-        encryptor.cipher.init(Cipher.ENCRYPT_MODE, encryptor.secretKey, new IvParameterSpec(encryptor.IV));
+        //init cipher for encryption given above parameters, this also validates the key
+        encryptor.cipherMode = Cipher.ENCRYPT_MODE;
+        encryptor.prepareCipher();
         encryptor.PasswordEncryption = false;
+        event.finish();
         return encryptor;
     }
 
     /**
-     * method used to generate a password encryption mode instance of AESEncryptor
+     * Method used to generate an encryption mode instance of AESEncryptor that reuses an existing key, a fresh IV is
+     * generated so one key can safely encrypt many files. No key file is written by {@link #encrypt(EncryptedFile)}
+     *
+     * @param key the AES key, usually read with {@link #loadKey(Path)}
+     * @return AESEncryptor instance that is ready to encrypt file
+     * @see #init()
+     */
+    public static AESEncryptor init(SecretKey key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        CryptoEvents.KeySetup event = new CryptoEvents.KeySetup("key").start();
+        AESEncryptor encryptor = new AESEncryptor();
+        SecureRandom random = CryptoProviders.secureRandom();
+        //salt is unused for key based files but the header layout always carries one
+        encryptor.salt = new byte[SALT_SIZE];
+        random.nextBytes(encryptor.salt);
+        encryptor.IV = new byte[IV_SIZE];
+        random.nextBytes(encryptor.IV);
+        encryptor.secretKey = key;
+        encryptor.cipherMode = Cipher.ENCRYPT_MODE;
+        encryptor.prepareCipher();
+        encryptor.PasswordEncryption = false;
+        encryptor.keyProvided = true;
+        event.finish();
+        return encryptor;
+    }
+
+    /**
+     * @return a new random AES key of the size used by {@link #init()}
+     */
+    public static SecretKey generateKey() throws NoSuchAlgorithmException {
+        return CryptoProviders.keyGenerator("AES").generateKey();
+    }
+
+    /**
+     * Reads a key file in the format written by {@link #encrypt(EncryptedFile)}, a single base64 encoded key
+     * @param keyFile path to the key file
+     * @return the AES key
+     * @throws IOException if the file can not be read
+     * @throws InvalidKeyException if the file does not hold a valid AES key
+     */
+    public static SecretKey loadKey(Path keyFile) throws IOException, InvalidKeyException {
+        byte[] keyBytes;
+        try {
+            keyBytes = Utils.decodeBase64(Files.readString(keyFile, StandardCharsets.UTF_8).trim());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeyException("Key file is not base64 encoded");
+        }
+        if (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32) {
+            Arrays.fill(keyBytes, (byte) 0);
+            throw new InvalidKeyException("Key file does not hold an AES key");
+        }
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        Arrays.fill(keyBytes, (byte) 0);
+        return key;
+    }
+
+    /**
+     * method used to generate a password encryption mode instance of AESEncryptor using the default iteration count
      *
      * @param password the password to be hashed and be used as a secret key
      * @return AESEncryptor instance that is ready to encrypt file
      * @see #init()
+     * @see #init(String, int)
      */
     public static AESEncryptor init(String password) throws NoSuchAlgorithmException, IllegalArgumentException, InvalidKeySpecException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        return init(password, PBKDF2_ITER_COUNT);
+    }
+
+    /**
+     * method used to generate a password encryption mode instance of AESEncryptor, the iteration count is recorded in the file header
+     *
+     * @param password the password to be hashed and be used as a secret key
+     * @param iterations number of PBKDF2 iterations, see {@link KdfCalibrator} to pick one for this machine
+     * @return AESEncryptor instance that is ready to encrypt file
+     * @see #init(String)
+     */
+    public static AESEncryptor init(String password, int iterations) throws NoSuchAlgorithmException, IllegalArgumentException, InvalidKeySpecException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        CryptoEvents.KeySetup event = new CryptoEvents.KeySetup("password").start();
         AESEncryptor encryptor = new AESEncryptor();
         //invalid parameters
         if (password == null || password.equals("")) {
             throw new IllegalArgumentException("Empty or null string provided");
         }
+        if (iterations < MIN_KDF_ITERATIONS || iterations > MAX_KDF_ITERATIONS) {
+            throw new IllegalArgumentException("Iteration count must be between " + MIN_KDF_ITERATIONS + " and " + MAX_KDF_ITERATIONS);
+        }
+        encryptor.kdfAlgorithm = PBKDF2_NAME;
+        encryptor.kdfIterations = iterations;
         //gen salt and password hash
-        SecureRandom random = new SecureRandom();
+        SecureRandom random = CryptoProviders.secureRandom();
         encryptor.salt = new byte[SALT_SIZE];
         random.nextBytes(encryptor.salt);
-        //make a hash of 256 bytes long using the hash of the password plus salt
-        PBEKeySpec pwSpec = new PBEKeySpec(password.toCharArray(), encryptor.salt, PBKDF2_ITER_COUNT, KEY_SIZE);
-        //using hash generate a key
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(PBKDF2_NAME);
-        encryptor.secretKey = new SecretKeySpec(factory.generateSecret(pwSpec).getEncoded(),"AES");
+        //make a hash of 256 bytes long using the hash of the password plus salt, and using the hash generate a key
+        encryptor.secretKey = new SecretKeySpec(deriveKey(password, encryptor.salt, encryptor.kdfAlgorithm, encryptor.kdfIterations),"AES");
         encryptor.IV = new byte[IV_SIZE];
         random.nextBytes(encryptor.IV);
-        encryptor.cipher = Cipher.getInstance(ALGORITHM);
         //this init the cipher to be able to encrypt files and such
-        encryptor.cipher.init(Cipher.ENCRYPT_MODE, encryptor.secretKey, new IvParameterSpec(encryptor.IV));
+        encryptor.cipherMode = Cipher.ENCRYPT_MODE;
+        encryptor.prepareCipher();
         //at this point a file can be encrypted
         encryptor.PasswordEncryption = true;
+        event.finish();
         return encryptor;
     }
 
     /**
+     * Decryption init for files written before KDF parameters were stored in the header, uses the default KDF and iteration count
      * @param password the password used previously, for the AESEncryptor to be used to decrypt the file, this function uses PBKDF2
      * @param IV       the base64 encoded nonce this should also contain the 16 byte salt also used attached at the end
      * @return an instance of AESEncryptor configured for decryption using password based methods
+     * @see #init_password(String, EncryptedFile)
      * @see #init_key(String, String)
      */
     public static AESEncryptor init_password(String password, String IV) throws NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        return init_password(password, IV, PBKDF2_NAME, PBKDF2_ITER_COUNT);
+    }
+
+    /**
+     * Decryption init that takes the IV, salt and KDF parameters from the header of the file
+     * @param password the password used previously, for the AESEncryptor to be used to decrypt the file
+     * @param file the file read through {@link EncryptedFile#initRead(java.io.File)}
+     * @return an instance of AESEncryptor configured for decryption using password based methods
+     */
+    public static AESEncryptor init_password(String password, EncryptedFile file) throws NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        return init_password(password, file.getIV(), file.getKdfAlgorithm(), file.getKdfIterations());
+    }
+
+    /**
+     * @param password the password used previously, for the AESEncryptor to be used to decrypt the file
+     * @param IV       the base64 encoded nonce this should also contain the 16 byte salt also used attached at the end
+     * @param kdfAlgorithm the key derivation algorithm recorded in the header, only PBKDF2 variants are accepted
+     * @param iterations the iteration count recorded in the header
+     * @return an instance of AESEncryptor configured for decryption using password based methods
+     */
+    public static AESEncryptor init_password(String password, String IV, String kdfAlgorithm, int iterations) throws NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+        if (kdfAlgorithm == null || !kdfAlgorithm.startsWith("PBKDF2With")) {
+            throw new NoSuchAlgorithmException("Unsupported key derivation algorithm: " + kdfAlgorithm);
+        }
+        if (iterations < 1 || iterations > MAX_KDF_ITERATIONS) {
+            throw new InvalidKeySpecException("Iteration count out of range: " + iterations);
+        }
+        CryptoEvents.KeySetup event = new CryptoEvents.KeySetup("password-decrypt").start();
         AESEncryptor encryptor = new AESEncryptor();
+        encryptor.kdfAlgorithm = kdfAlgorithm;
+        encryptor.kdfIterations = iterations;
         //decode base64 IV-Salt into bytes
         byte[] IVAndSalt = Utils.decodeBase64(IV);
         //create new salt byte array of SALT_SIZE
@@ -326,16 +1857,45 @@ public class AESEncryptor implements Encryptor {
         System.arraycopy(IVAndSalt, 0, encryptor.IV, 0, IV_SIZE);
         //SALT is contained in the sequential bytes that follow the IV
         System.arraycopy(IVAndSalt, IV_SIZE, encryptor.salt, 0, SALT_SIZE);
-        //hash the password and use it to generate an AES cryptographic Key
-        PBEKeySpec pwSpec = new PBEKeySpec(password.toCharArray(), encryptor.salt, PBKDF2_ITER_COUNT, KEY_SIZE);
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(PBKDF2_NAME);
-        encryptor.secretKey = new SecretKeySpec(factory.generateSecret(pwSpec).getEncoded(),"AES");
+        //hash the password and use it to generate an AES cryptographic Key, reopening a file reuses the cached key
+        DerivedKeyCache cache = DerivedKeyCache.shared();
+        byte[] keyBytes = cache.get(password, encryptor.salt, kdfAlgorithm, iterations);
+        if (keyBytes == null) {
+            Metrics.counter("kdf.cache.miss").increment();
+            keyBytes = deriveKey(password, encryptor.salt, kdfAlgorithm, iterations);
+            cache.put(password, encryptor.salt, kdfAlgorithm, iterations, keyBytes);
+        } else {
+            Metrics.counter("kdf.cache.hit").increment();
+        }
+        encryptor.secretKey = new SecretKeySpec(keyBytes,"AES");
+        Arrays.fill(keyBytes, (byte) 0);
         //create AES cipher given IV and cryptographic Key
-        encryptor.cipher = Cipher.getInstance(ALGORITHM);
-        encryptor.cipher.init(Cipher.DECRYPT_MODE, encryptor.secretKey, new IvParameterSpec(encryptor.IV));
+        encryptor.cipherMode = Cipher.DECRYPT_MODE;
+        encryptor.prepareCipher();
+        event.finish();
         return encryptor;
     }
 
+    /**
+     * Runs PBKDF2 over the password and salt, this is the expensive part of password based init
+     * @param password the password to be hashed
+     * @param salt the salt stored in the file header
+     * @param algorithm the PBKDF2 variant to run
+     * @param iterations number of hashes to perform
+     * @return the raw AES key bytes, the caller owns the array and should zero it once done
+     */
+    static byte[] deriveKey(String password, byte[] salt, String algorithm, int iterations) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        CryptoEvents.KeyDerivation event = new CryptoEvents.KeyDerivation(algorithm, iterations).start();
+        PBEKeySpec pwSpec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_SIZE);
+        try {
+            byte[] key = CryptoProviders.secretKeyFactory(algorithm).generateSecret(pwSpec).getEncoded();
+            event.finish();
+            return key;
+        } finally {
+            pwSpec.clearPassword();
+        }
+    }
+
     /**
      * Method initializes encryptor service so that it can decrypt an Encrypted file using a secret key and IV
      *
@@ -345,14 +1905,16 @@ public class AESEncryptor implements Encryptor {
      * @see #init_password(String, String)
      */
     public static AESEncryptor init_key(String key, String IV) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
+        CryptoEvents.KeySetup event = new CryptoEvents.KeySetup("key-decrypt").start();
         AESEncryptor encryptor = new AESEncryptor();
         byte[] IVAndSalt = Utils.decodeBase64(IV);
         encryptor.IV = new byte[IV_SIZE];
         System.arraycopy(IVAndSalt, 0, encryptor.IV, 0, IV_SIZE);
         byte[] keyBytes = Utils.decodeBase64(key);
         encryptor.secretKey = new SecretKeySpec(keyBytes, "AES");
-        encryptor.cipher = Cipher.getInstance(ALGORITHM);
-        encryptor.cipher.init(Cipher.DECRYPT_MODE, encryptor.secretKey, new IvParameterSpec(encryptor.IV));
+        encryptor.cipherMode = Cipher.DECRYPT_MODE;
+        encryptor.prepareCipher();
+        event.finish();
         return encryptor;
     }
 }
@@ -0,0 +1,308 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+
+/**
+ * Chooses buffer size, chunk size and worker count for this machine. On first use a short calibration pushes a few
+ * megabytes through the cipher and through a temp file with several buffer sizes, the winner is persisted so later
+ * runs start instantly. Values can be overridden with the encryptor.bufferSize, encryptor.chunkSize and
+ * encryptor.workers system properties or at runtime through {@link #override(TuningProfile)}
+ */
+public final class AutoTuner {
+    /**
+     * Set to false to skip calibration and use {@link TuningProfile#DEFAULT}
+     */
+    public static final String AUTOTUNE_PROPERTY = "encryptor.autotune";
+    public static final String BUFFER_SIZE_PROPERTY = "encryptor.bufferSize";
+    public static final String CHUNK_SIZE_PROPERTY = "encryptor.chunkSize";
+    public static final String WORKERS_PROPERTY = "encryptor.workers";
+    /**
+     * Name of the file the calibrated profile is stored in, inside {@link Utils#getAppDirectory()}
+     */
+    private static final String PROFILE_FILE = "tuning.properties";
+    /**
+     * Version of the heuristics that produced a stored profile, profiles from older versions are recalibrated.
+     * Version 1 sized the worker pool from synced disk writes and almost always chose a single worker
+     */
+    private static final int PROFILE_VERSION = 2;
+    /**
+     * Bytes pushed through the cipher and disk for every candidate buffer size
+     */
+    private static final int CALIBRATION_BYTES = 4 * 1024 * 1024;
+    /**
+     * Buffer sizes tried during calibration
+     */
+    private static final int[] CANDIDATE_BUFFER_SIZES = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+    /**
+     * A smaller buffer is preferred if it is within this fraction of the fastest one
+     */
+    private static final double TOLERANCE = 0.10;
+
+    /**
+     * Profile loaded or calibrated on first use, read without locking once it is set since buffer leases ask for it on every call
+     */
+    private static volatile TuningProfile calibrated;
+    /**
+     * Profile set by the GUI or CLI, wins over everything else
+     */
+    private static volatile TuningProfile override;
+
+    private AutoTuner() {
+
+    }
+
+    /**
+     * @return the profile the encryptor services should use right now, calibrating first if this is the first use on this machine
+     */
+    public static TuningProfile current() {
+        TuningProfile runtimeOverride = override;
+        if (runtimeOverride != null) {
+            return runtimeOverride;
+        }
+        return applySystemProperties(calibrated());
+    }
+
+    /**
+     * Replaces the active profile until {@link #clearOverride()} is called, this is not persisted
+     * @param profile the profile to use
+     */
+    public static void override(TuningProfile profile) {
+        override = profile;
+    }
+
+    public static void clearOverride() {
+        override = null;
+    }
+
+    /**
+     * Runs calibration now and persists the result, replacing any stored profile
+     * @return the newly calibrated profile
+     */
+    public static synchronized TuningProfile recalibrate() {
+        calibrated = calibrate();
+        store(calibrated);
+        return calibrated;
+    }
+
+    private static TuningProfile calibrated() {
+        TuningProfile profile = calibrated;
+        if (profile != null) {
+            return profile;
+        }
+        synchronized (AutoTuner.class) {
+            if (calibrated == null) {
+                if (!Boolean.parseBoolean(System.getProperty(AUTOTUNE_PROPERTY, "true"))) {
+                    calibrated = TuningProfile.DEFAULT;
+                } else {
+                    profile = load();
+                    if (profile == null) {
+                        profile = calibrate();
+                        store(profile);
+                    }
+                    calibrated = profile;
+                }
+            }
+            return calibrated;
+        }
+    }
+
+    /**
+     * Times the cipher, a sequential write and a sequential read for every candidate buffer size
+     * @return the chosen profile, or the default profile if calibration could not run
+     */
+    static TuningProfile calibrate() {
+        byte[] data = new byte[CALIBRATION_BYTES];
+        CryptoProviders.secureRandom().nextBytes(data);
+        Path temp = null;
+        try {
+            byte[] keyBytes = new byte[32];
+            byte[] iv = new byte[16];
+            CryptoProviders.secureRandom().nextBytes(keyBytes);
+            CryptoProviders.secureRandom().nextBytes(iv);
+            SecretKeySpec key = new SecretKeySpec(keyBytes, "AES");
+            //own instance, calibration can run in the middle of a job that is holding this thread's pooled cipher
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            temp = Files.createTempFile("encryptor-calibration", ".tmp");
+            //untimed pass so class loading and jit warm up are not charged to the first candidate
+            timeCipher(cipher, key, iv, data, CANDIDATE_BUFFER_SIZES[0]);
+            long[] totals = new long[CANDIDATE_BUFFER_SIZES.length];
+            long bestCipher = Long.MAX_VALUE;
+            long bestDisk = Long.MAX_VALUE;
+            for (int i = 0; i < CANDIDATE_BUFFER_SIZES.length; i++) {
+                int size = CANDIDATE_BUFFER_SIZES[i];
+                long cipherNanos = timeCipher(cipher, key, iv, data, size);
+                long diskNanos = timeDisk(temp, data, size);
+                totals[i] = cipherNanos + diskNanos;
+                bestCipher = Math.min(bestCipher, cipherNanos);
+                bestDisk = Math.min(bestDisk, diskNanos);
+            }
+            int chosen = 0;
+            long fastest = Long.MAX_VALUE;
+            for (long total : totals) {
+                fastest = Math.min(fastest, total);
+            }
+            for (int i = 0; i < totals.length; i++) {
+                if (totals[i] <= fastest * (1 + TOLERANCE)) {
+                    chosen = i;
+                    break;
+                }
+            }
+            int bufferSize = CANDIDATE_BUFFER_SIZES[chosen];
+            int chunkSize = Math.max(1024 * 1024, Math.min(64 * 1024 * 1024, bufferSize * 16));
+            int workers = workerCount(Runtime.getRuntime().availableProcessors(), bestCipher, bestDisk);
+            TuningProfile profile = new TuningProfile(bufferSize, chunkSize, workers);
+            System.out.println("calibrated " + profile);
+            return profile;
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("calibration failed, using default tuning profile");
+            return TuningProfile.DEFAULT;
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    System.err.println("failed to delete calibration temp file");
+                }
+            }
+        }
+    }
+
+    /**
+     * One worker per core, capped only when the disk cannot take the output of that many cipher streams
+     * @param cores available processors
+     * @param cipherNanos time one cipher stream needs for the calibration data
+     * @param diskNanos time the disk needs to write and read back the same data
+     * @return the worker count, between 1 and cores
+     */
+    static int workerCount(int cores, long cipherNanos, long diskNanos) {
+        long diskCap = (cipherNanos + Math.max(1, diskNanos) - 1) / Math.max(1, diskNanos);
+        //workers also hash, read and wait on io between cipher calls, so two are always worth having
+        return (int) Math.max(1, Math.min(cores, Math.max(2, diskCap)));
+    }
+
+    private static long timeCipher(Cipher cipher, SecretKeySpec key, byte[] iv, byte[] data, int bufferSize) throws GeneralSecurityException {
+        byte[] out = new byte[bufferSize + 16];
+        long start = System.nanoTime();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        for (int offset = 0; offset < data.length; offset += bufferSize) {
+            cipher.update(data, offset, Math.min(bufferSize, data.length - offset), out);
+        }
+        cipher.doFinal(out, 0);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Times an unsynced write and read back, the encryptor does not force its output either so the page cache is
+     * what the workers actually write into
+     */
+    private static long timeDisk(Path temp, byte[] data, int bufferSize) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int offset = 0; offset < data.length; offset += bufferSize) {
+                ByteBuffer buffer = ByteBuffer.wrap(data, offset, Math.min(bufferSize, data.length - offset));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        ByteBuffer readBuffer = ByteBuffer.allocate(bufferSize);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ)) {
+            while (channel.read(readBuffer) != -1) {
+                readBuffer.clear();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the stored profile, or null if there is none or it was calibrated on different hardware
+     */
+    private static TuningProfile load() {
+        Path path = Utils.getAppDirectory().resolve(PROFILE_FILE);
+        if (!Files.isReadable(path)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream stream = Files.newInputStream(path)) {
+            properties.load(stream);
+            if (!hostFingerprint().equals(properties.getProperty("host")) || !Integer.toString(PROFILE_VERSION).equals(properties.getProperty("version"))) {
+                return null;
+            }
+            return new TuningProfile(Integer.parseInt(properties.getProperty("bufferSize")), Integer.parseInt(properties.getProperty("chunkSize")), Integer.parseInt(properties.getProperty("workerCount")));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("stored tuning profile unreadable, recalibrating");
+            return null;
+        }
+    }
+
+    private static void store(TuningProfile profile) {
+        Properties properties = new Properties();
+        properties.setProperty("host", hostFingerprint());
+        properties.setProperty("version", Integer.toString(PROFILE_VERSION));
+        properties.setProperty("bufferSize", Integer.toString(profile.getBufferSize()));
+        properties.setProperty("chunkSize", Integer.toString(profile.getChunkSize()));
+        properties.setProperty("workerCount", Integer.toString(profile.getWorkerCount()));
+        try {
+            Path directory = Files.createDirectories(Utils.getAppDirectory());
+            try (OutputStream stream = Files.newOutputStream(directory.resolve(PROFILE_FILE))) {
+                properties.store(stream, "Encryptor tuning profile, delete to recalibrate");
+            }
+        } catch (IOException e) {
+            System.err.println("failed to persist tuning profile");
+        }
+    }
+
+    /**
+     * @return string that changes when the machine or runtime changes enough to invalidate a stored profile
+     */
+    private static String hostFingerprint() {
+        return System.getProperty("os.arch") + "/" + Runtime.getRuntime().availableProcessors() + "/" + Runtime.version().feature();
+    }
+
+    private static TuningProfile applySystemProperties(TuningProfile profile) {
+        try {
+            String bufferSize = System.getProperty(BUFFER_SIZE_PROPERTY);
+            if (bufferSize != null) {
+                profile = profile.withBufferSize(Integer.parseInt(bufferSize));
+            }
+            String chunkSize = System.getProperty(CHUNK_SIZE_PROPERTY);
+            if (chunkSize != null) {
+                profile = profile.withChunkSize(Integer.parseInt(chunkSize));
+            }
+            String workers = System.getProperty(WORKERS_PROPERTY);
+            if (workers != null) {
+                profile = profile.withWorkerCount(Integer.parseInt(workers));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("ignoring invalid tuning override: " + e.getMessage());
+        }
+        return profile;
+    }
+}
@@ -0,0 +1,190 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Shared pool of direct buffers with a global byte budget, so the total memory of all running encryptions is
+ * bounded no matter how many run at once. A request names a preferred and a minimum size, when the budget is tight
+ * the buffer is halved down to the minimum and only if even that does not fit the caller waits for a release.
+ * Released buffers are zeroed, they held plain text, and kept for reuse by the next request of the same size.
+ * The budget of the shared pool is set with the encryptor.bufferBudgetMB system property
+ */
+public class BufferPool {
+    public static final String BUDGET_PROPERTY = "encryptor.bufferBudgetMB";
+    /**
+     * Budget of the shared pool when the property is not set
+     */
+    public static final int DEFAULT_BUDGET_MB = 64;
+    private static final byte[] ZEROS = new byte[64 * 1024];
+    private static final BufferPool SHARED = new BufferPool(sharedBudget());
+
+    private final long budget;
+    /**
+     * Bytes held by all buffers of this pool, leased or cached
+     */
+    private long allocated;
+    /**
+     * Cached buffers by capacity
+     */
+    private final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>();
+
+    /**
+     * @param budget maximum bytes of direct memory held by this pool
+     */
+    public BufferPool(long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * @return the pool used by every encryptor
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    private static long sharedBudget() {
+        try {
+            return Long.parseLong(System.getProperty(BUDGET_PROPERTY, Integer.toString(DEFAULT_BUDGET_MB))) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            System.err.println("ignoring invalid " + BUDGET_PROPERTY + ", using " + DEFAULT_BUDGET_MB + "MB");
+            return DEFAULT_BUDGET_MB * 1024L * 1024L;
+        }
+    }
+
+    /**
+     * Leases a buffer, shrinking it when the budget is tight and blocking when even the minimum does not fit
+     * @param preferred size wanted
+     * @param minimum smallest size the caller can work with
+     * @return lease of a cleared buffer with a capacity between minimum and preferred, close it to give it back
+     * @throws InterruptedException if the thread is interrupted while waiting for budget
+     */
+    public Lease acquire(int preferred, int minimum) throws InterruptedException {
+        if (minimum < 1 || preferred < minimum) {
+            throw new IllegalArgumentException("Preferred size must be at least the minimum size");
+        }
+        if (minimum > budget) {
+            throw new IllegalArgumentException("Minimum size " + minimum + " exceeds the pool budget " + budget);
+        }
+        synchronized (this) {
+            boolean waited = false;
+            while (true) {
+                int size = preferred;
+                while (true) {
+                    ByteBuffer buffer = take(size);
+                    if (buffer != null) {
+                        if (size < preferred) {
+                            Metrics.counter("bufferpool.shrunk").increment();
+                        }
+                        return new Lease(buffer);
+                    }
+                    if (size == minimum) {
+                        break;
+                    }
+                    size = Math.max(minimum, size / 2);
+                }
+                if (!waited) {
+                    Metrics.counter("bufferpool.waits").increment();
+                    waited = true;
+                }
+                wait();
+            }
+        }
+    }
+
+    /**
+     * @return a cached or new buffer of exactly the given size, or null if the budget can not cover it
+     */
+    private ByteBuffer take(int size) {
+        ArrayDeque<ByteBuffer> cached = free.get(size);
+        if (cached != null && !cached.isEmpty()) {
+            return cached.pop();
+        }
+        //cached buffers of other sizes are dropped to make room, the gc returns their memory
+        Iterator<ArrayDeque<ByteBuffer>> iterator = free.values().iterator();
+        while (allocated + size > budget && iterator.hasNext()) {
+            ArrayDeque<ByteBuffer> buffers = iterator.next();
+            while (allocated + size > budget && !buffers.isEmpty()) {
+                allocated -= buffers.pop().capacity();
+            }
+        }
+        if (allocated + size > budget) {
+            return null;
+        }
+        allocated += size;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private synchronized void release(ByteBuffer buffer) {
+        free.computeIfAbsent(buffer.capacity(), ignored -> new ArrayDeque<>()).push(buffer);
+        notifyAll();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return bytes held by leased and cached buffers
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * A buffer on loan from the pool, closing it zeroes the buffer and returns it
+     */
+    public final class Lease implements AutoCloseable {
+        private ByteBuffer buffer;
+
+        private Lease(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return the leased buffer, cleared when the lease was handed out
+         */
+        public ByteBuffer buffer() {
+            if (buffer == null) {
+                throw new IllegalStateException("Lease already closed");
+            }
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            if (buffer == null) {
+                return;
+            }
+            ByteBuffer returned = buffer;
+            buffer = null;
+            returned.clear();
+            while (returned.hasRemaining()) {
+                returned.put(ZEROS, 0, Math.min(ZEROS.length, returned.remaining()));
+            }
+            returned.clear();
+            release(returned);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder events for the stages of an encryption or decryption. Every event also records its duration in
+ * the {@link Metrics} timer of the same stage, so the breakdown is available with and without a recording.
+ * Call {@code start()} before the stage and {@code finish(...)} after it, a stage that throws is simply not recorded
+ */
+public final class CryptoEvents {
+    private CryptoEvents() {
+
+    }
+
+    /**
+     * Common timing of all events, transient fields are not written to the recording
+     */
+    @Category("Encryptor")
+    public abstract static class Stage extends Event {
+        private transient final String timer;
+        private transient long startNanos;
+
+        Stage(String timer) {
+            this.timer = timer;
+        }
+
+        void beginStage() {
+            startNanos = System.nanoTime();
+            begin();
+        }
+
+        void endStage() {
+            Metrics.timer(timer).record(System.nanoTime() - startNanos);
+            commit();
+        }
+    }
+
+    @Name("com.andrew.Encryptor.KeySetup")
+    @Label("Key Setup")
+    @Description("Creation of an AESEncryptor including key generation, derivation or cache lookup")
+    public static final class KeySetup extends Stage {
+        @Label("Mode")
+        String mode;
+
+        public KeySetup(String mode) {
+            super("key.setup." + mode);
+            this.mode = mode;
+        }
+
+        public KeySetup start() {
+            beginStage();
+            return this;
+        }
+
+        public void finish() {
+            endStage();
+        }
+    }
+
+    @Name("com.andrew.Encryptor.KeyDerivation")
+    @Label("Key Derivation")
+    @Description("One run of the password based key derivation function")
+    public static final class KeyDerivation extends Stage {
+        @Label("Algorithm")
+        String algorithm;
+        @Label("Iterations")
+        int iterations;
+
+        public KeyDerivation(String algorithm, int iterations) {
+            super("kdf");
+            this.algorithm = algorithm;
+            this.iterations = iterations;
+        }
+
+        public KeyDerivation start() {
+            beginStage();
+            return this;
+        }
+
+        public void finish() {
+            endStage();
+        }
+    }
+
+    @Name("com.andrew.Encryptor.HeaderRead")
+    @Label("Header Read")
+    @Description("Parsing of the header of an encrypted file")
+    public static final class HeaderRead extends Stage {
+        @Label("File")
+        String file;
+        @Label("Header Size")
+        @DataAmount
+        long headerBytes;
+
+        public HeaderRead(String file) {
+            super("header.read");
+            this.file = file;
+        }
+
+        public HeaderRead start() {
+            beginStage();
+            return this;
+        }
+
+        public void finish(long headerBytes) {
+            this.headerBytes = headerBytes;
+            endStage();
+        }
+    }
+
+    @Name("com.andrew.Encryptor.CipherLoop")
+    @Label("Cipher Loop")
+    @Description("Read, cipher and write loop over the body of one file")
+    public static final class CipherLoop extends Stage {
+        @Label("Operation")
+        String operation;
+        @Label("File")
+        String file;
+        @Label("Buffer Size")
+        @DataAmount
+        int bufferSize;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        public CipherLoop(String operation, String file, int bufferSize) {
+            super("cipher." + operation);
+            this.operation = operation;
+            this.file = file;
+            this.bufferSize = bufferSize;
+        }
+
+        public CipherLoop start() {
+            beginStage();
+            return this;
+        }
+
+        public void finish(long bytes) {
+            this.bytes = bytes;
+            Metrics.counter("files." + operation).increment();
+            endStage();
+        }
+    }
+
+    @Name("com.andrew.Encryptor.FileTransfer")
+    @Label("File Transfer")
+    @Description("Copy or move of a finished temp file to its destination")
+    public static final class FileTransfer extends Stage {
+        @Label("Operation")
+        String operation;
+        @Label("Destination")
+        String destination;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        public FileTransfer(String operation, String destination) {
+            super("transfer." + operation);
+            this.operation = operation;
+            this.destination = destination;
+        }
+
+        public FileTransfer start() {
+            beginStage();
+            return this;
+        }
+
+        public void finish(long bytes) {
+            this.bytes = bytes;
+            Metrics.meter("transfer.bytes").mark(bytes);
+            endStage();
+        }
+    }
+}
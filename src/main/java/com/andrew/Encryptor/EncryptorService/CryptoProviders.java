@@ -0,0 +1,120 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+
+/**
+ * Per thread cache of JCA objects, provider lookup and seeding are only paid once per thread instead of once per file.
+ * Objects handed out are owned by the calling thread and must be re-initialised before every use, they should never be
+ * stored in a field or passed to another thread
+ */
+final class CryptoProviders {
+    /**
+     * Cipher instances of the current thread keyed by transformation
+     */
+    private static final ThreadLocal<HashMap<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+    /**
+     * Secret key factories of the current thread keyed by algorithm
+     */
+    private static final ThreadLocal<HashMap<String, SecretKeyFactory>> KEY_FACTORIES = ThreadLocal.withInitial(HashMap::new);
+    /**
+     * Key generators of the current thread keyed by algorithm
+     */
+    private static final ThreadLocal<HashMap<String, KeyGenerator>> KEY_GENERATORS = ThreadLocal.withInitial(HashMap::new);
+    /**
+     * Macs of the current thread keyed by algorithm
+     */
+    private static final ThreadLocal<HashMap<String, Mac>> MACS = ThreadLocal.withInitial(HashMap::new);
+    /**
+     * Secure random is thread safe, so one seeded instance is shared by every thread
+     */
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    private CryptoProviders() {
+
+    }
+
+    /**
+     * @param transformation the cipher transformation ie AES/CBC/PKCS5Padding
+     * @return this thread's cipher for the transformation, must be initialised by the caller
+     */
+    static Cipher cipher(String transformation) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        HashMap<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * @param algorithm the key derivation algorithm ie PBKDF2WithHmacSHA256
+     * @return this thread's secret key factory for the algorithm
+     */
+    static SecretKeyFactory secretKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+        HashMap<String, SecretKeyFactory> factories = KEY_FACTORIES.get();
+        SecretKeyFactory factory = factories.get(algorithm);
+        if (factory == null) {
+            factory = SecretKeyFactory.getInstance(algorithm);
+            factories.put(algorithm, factory);
+        }
+        return factory;
+    }
+
+    /**
+     * @param algorithm the key algorithm ie AES
+     * @return this thread's key generator for the algorithm
+     */
+    static KeyGenerator keyGenerator(String algorithm) throws NoSuchAlgorithmException {
+        HashMap<String, KeyGenerator> generators = KEY_GENERATORS.get();
+        KeyGenerator generator = generators.get(algorithm);
+        if (generator == null) {
+            generator = KeyGenerator.getInstance(algorithm);
+            generators.put(algorithm, generator);
+        }
+        return generator;
+    }
+
+    /**
+     * @param algorithm the mac algorithm ie HmacSHA256
+     * @return this thread's mac for the algorithm, must be initialised with a key by the caller
+     */
+    static Mac mac(String algorithm) throws NoSuchAlgorithmException {
+        HashMap<String, Mac> macs = MACS.get();
+        Mac mac = macs.get(algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            macs.put(algorithm, mac);
+        }
+        return mac;
+    }
+
+    /**
+     * @return the shared secure random used for salts and nonces
+     */
+    static SecureRandom secureRandom() {
+        return SECURE_RANDOM;
+    }
+}
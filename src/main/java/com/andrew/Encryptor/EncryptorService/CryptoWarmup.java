@@ -0,0 +1,87 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the crypto code paths once on a background thread so the first job does not pay for provider lookup,
+ * SecureRandom seeding, class loading, JIT compilation of the AES path and, on a new machine, {@link AutoTuner}
+ * calibration. Everything here is thrown away, only the warmed up runtime remains
+ */
+public final class CryptoWarmup {
+    /**
+     * Size of the block pushed through the cipher, large enough for the AES intrinsics to get compiled
+     */
+    private static final int WARMUP_BYTES = 64 * 1024;
+    private static final int WARMUP_ROUNDS = 50;
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    private CryptoWarmup() {
+
+    }
+
+    /**
+     * Starts the warm up on a low priority daemon thread, later calls do nothing
+     */
+    public static void startInBackground() {
+        if (!STARTED.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(CryptoWarmup::run, "crypto-warmup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Runs the warm up on the calling thread
+     */
+    public static void run() {
+        long start = System.nanoTime();
+        try {
+            //a job started meanwhile waits for this calibration instead of running its own
+            AutoTuner.current();
+            byte[] data = new byte[WARMUP_BYTES];
+            byte[] iv = new byte[16];
+            CryptoProviders.secureRandom().nextBytes(data);
+            CryptoProviders.secureRandom().nextBytes(iv);
+            SecretKey key = AESEncryptor.generateKey();
+            Cipher cipher = CryptoProviders.cipher("AES/CBC/PKCS5Padding");
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+                byte[] encrypted = cipher.doFinal(data);
+                cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+                cipher.doFinal(encrypted);
+            }
+            //warms PBKDF2 too, the first password encryption then starts with the iteration count ready
+            KdfCalibrator.current();
+            Mac mac = CryptoProviders.mac("HmacSHA256");
+            mac.init(new SecretKeySpec(iv, "HmacSHA256"));
+            mac.doFinal(data);
+            BufferPool.shared();
+            Metrics.timer("startup.cryptoWarmup").record(System.nanoTime() - start);
+        } catch (GeneralSecurityException e) {
+            System.err.println("crypto warm up failed: " + e.getMessage());
+        }
+    }
+}
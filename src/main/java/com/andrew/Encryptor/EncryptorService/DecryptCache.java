@@ -0,0 +1,461 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session cache of decrypted output so decrypting the same file again is a local copy instead of a full decryption.
+ * Entries are keyed by the path, size, modification time and IV of the encrypted file together with the key, so a
+ * changed file or a different key never gets an old plain text. The cache is filled in the same pass as the first
+ * decryption, holds at most a byte budget and drops the least recently used outputs first.
+ * <p>
+ * Cached plain text lives in a directory only the current user can read and is overwritten with zeros before it is
+ * deleted, on eviction, on {@link #clear()} and when the process exits. On SSDs and copy on write file systems the
+ * overwrite may land on other blocks than the data, there the cache is only as private as the temp files of
+ * {@link AESEncryptor#decrypt(EncryptedFile)} themselves
+ */
+public class DecryptCache {
+    /**
+     * Budget of the shared cache in megabytes
+     */
+    public static final String BUDGET_PROPERTY = "encryptor.decryptCacheMb";
+    public static final long DEFAULT_BUDGET = 512L * 1024 * 1024;
+    /**
+     * Directory below {@link Utils#getAppDirectory()} holding one directory per running process
+     */
+    private static final String DIRECTORY = "decrypt-cache";
+    private static final String LOOKUP_MAC = "HmacSHA256";
+    private static final int WIPE_BUFFER_SIZE = 1024 * 1024;
+    private static DecryptCache shared;
+
+    private final Path directory;
+    private final long budget;
+    /**
+     * Random per process key for the lookup mac, ids do not reveal the key they were made with
+     */
+    private final SecretKeySpec lookupKey;
+    /**
+     * Access ordered map of lookup id to cached output
+     */
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    /**
+     * @param directory where cached outputs are written, created owner only if missing
+     * @param budget most bytes of plain text held at once
+     */
+    public DecryptCache(Path directory, long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("Cache budget must be at least 1 byte");
+        }
+        this.directory = directory;
+        this.budget = budget;
+        byte[] keyBytes = new byte[32];
+        CryptoProviders.secureRandom().nextBytes(keyBytes);
+        this.lookupKey = new SecretKeySpec(keyBytes, LOOKUP_MAC);
+        Arrays.fill(keyBytes, (byte) 0);
+    }
+
+    /**
+     * @return the cache of this process, wiped when the process exits. Directories left by processes that died
+     * without wiping theirs are wiped on first use
+     */
+    public static synchronized DecryptCache shared() {
+        if (shared == null) {
+            long budget = DEFAULT_BUDGET;
+            try {
+                String megabytes = System.getProperty(BUDGET_PROPERTY);
+                if (megabytes != null) {
+                    budget = Long.parseLong(megabytes) * 1024 * 1024;
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("ignoring invalid decrypt cache budget: " + e.getMessage());
+            }
+            Path root = Utils.getAppDirectory().resolve(DIRECTORY);
+            wipeAbandoned(root);
+            DecryptCache cache = new DecryptCache(root.resolve(Long.toString(ProcessHandle.current().pid())), budget);
+            Runtime.getRuntime().addShutdownHook(new Thread(cache::clear, "decrypt-cache-wipe"));
+            shared = cache;
+        }
+        return shared;
+    }
+
+    /**
+     * @param file the encrypted file about to be decrypted
+     * @param key the key it is decrypted with
+     * @return the lookup key of this version of the file under this key
+     * @throws IOException if the file can not be looked at
+     */
+    public Key key(EncryptedFile file, SecretKey key) throws IOException {
+        Path path = file.getFile().toPath().toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        try {
+            Mac mac = CryptoProviders.mac(LOOKUP_MAC);
+            mac.init(lookupKey);
+            mac.update(path.toString().getBytes(StandardCharsets.UTF_8));
+            //separators so the fields can not be shifted into each other
+            mac.update((byte) 0);
+            mac.update(ByteBuffer.allocate(2 * Long.BYTES).putLong(attributes.size()).putLong(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)).flip());
+            mac.update(file.getIV().getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return new Key(ByteBuffer.wrap(mac.doFinal(key.getEncoded())), path);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Decrypt cache lookup mac unavailable", e);
+        }
+    }
+
+    /**
+     * Copies a cached output to the target
+     * @return true on a hit, false if the output is not cached or the copy failed in which case the caller decrypts
+     */
+    public boolean copyTo(Key key, Path target) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key.id);
+            if (entry == null) {
+                Metrics.counter("decryptcache.misses").increment();
+                return false;
+            }
+            entry.readers++;
+        }
+        try {
+            if (Files.size(entry.path) != entry.size) {
+                throw new IOException("cached output changed size");
+            }
+            Files.copy(entry.path, target, StandardCopyOption.REPLACE_EXISTING);
+            Metrics.counter("decryptcache.hits").increment();
+            return true;
+        } catch (IOException e) {
+            System.err.println("dropping unreadable decrypt cache entry: " + e.getMessage());
+            remove(entry);
+            return false;
+        } finally {
+            release(entry);
+        }
+    }
+
+    /**
+     * Starts caching the output of a decryption, the caller writes every plain byte into it and commits once the
+     * decryption succeeded
+     * @param key the lookup key of the file
+     * @param expectedSize plain size if known, otherwise an upper bound
+     * @return where to copy the output, null if it would not fit the budget or the cache directory is unusable
+     */
+    public Pending begin(Key key, long expectedSize) {
+        if (expectedSize > budget) {
+            return null;
+        }
+        try {
+            if (!Files.isDirectory(directory)) {
+                if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                    Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                } else {
+                    Files.createDirectories(directory);
+                }
+            }
+            Path path = Files.createTempFile(directory, "entry", ".plain");
+            return new Pending(key, path, FileChannel.open(path, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            System.err.println("decrypt cache unavailable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Wipes and drops every cached output
+     */
+    public void clear() {
+        List<Entry> removed;
+        synchronized (entries) {
+            removed = new ArrayList<>(entries.values());
+            entries.clear();
+            for (Entry entry : removed) {
+                markEvicted(entry);
+            }
+        }
+        for (Entry entry : removed) {
+            release(entry, false);
+        }
+    }
+
+    /**
+     * @return bytes of plain text currently cached
+     */
+    public long getUsedBytes() {
+        synchronized (entries) {
+            return usedBytes;
+        }
+    }
+
+    /**
+     * @return number of outputs currently cached
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void put(Key key, Path path, long size) {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (entries) {
+            //an older version of the same file can never be hit again
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry old = iterator.next();
+                if (old.source.equals(key.path)) {
+                    iterator.remove();
+                    markEvicted(old);
+                    evicted.add(old);
+                }
+            }
+            Entry entry = new Entry(key.path, path, size);
+            entries.put(key.id, entry);
+            usedBytes += size;
+            iterator = entries.values().iterator();
+            while (usedBytes > budget && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                if (eldest == entry) {
+                    break;
+                }
+                iterator.remove();
+                markEvicted(eldest);
+                evicted.add(eldest);
+                Metrics.counter("decryptcache.evictions").increment();
+            }
+        }
+        for (Entry old : evicted) {
+            release(old, false);
+        }
+    }
+
+    /**
+     * Takes an entry that was just removed from the map off the budget, callers hold the entries lock
+     */
+    private void markEvicted(Entry entry) {
+        entry.evicted = true;
+        usedBytes -= entry.size;
+    }
+
+    private void remove(Entry entry) {
+        synchronized (entries) {
+            if (entry.evicted) {
+                return;
+            }
+            entries.values().remove(entry);
+            markEvicted(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        release(entry, true);
+    }
+
+    /**
+     * Wipes an evicted entry once no copy is reading from it
+     * @param reader true if the caller was reading the entry
+     */
+    private void release(Entry entry, boolean reader) {
+        synchronized (entries) {
+            if (reader) {
+                entry.readers--;
+            }
+            if (!entry.evicted || entry.readers > 0 || entry.wiped) {
+                return;
+            }
+            entry.wiped = true;
+        }
+        wipe(entry.path);
+    }
+
+    /**
+     * Overwrites a file with zeros, syncs it and deletes it
+     */
+    static void wipe(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer zeros = ByteBuffer.allocate(WIPE_BUFFER_SIZE);
+            long size = channel.size();
+            for (long position = 0; position < size; ) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), size - position));
+                position += channel.write(zeros, position);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("failed to overwrite " + path.getFileName() + " before deleting it");
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("failed to delete " + path.getFileName());
+        }
+    }
+
+    /**
+     * Wipes the directories of processes that are no longer running
+     */
+    private static void wipeAbandoned(Path root) {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(root)) {
+            for (Path process : processes) {
+                long pid;
+                try {
+                    pid = Long.parseLong(process.getFileName().toString());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(process)) {
+                    for (Path file : files) {
+                        wipe(file);
+                    }
+                }
+                Files.deleteIfExists(process);
+            }
+        } catch (IOException e) {
+            System.err.println("failed to wipe abandoned decrypt cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Identity of one version of an encrypted file under one key
+     */
+    public static final class Key {
+        private final ByteBuffer id;
+        private final Path path;
+
+        private Key(ByteBuffer id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    private static final class Entry {
+        /**
+         * Real path of the encrypted file
+         */
+        private final Path source;
+        private final Path path;
+        private final long size;
+        private int readers;
+        private boolean evicted;
+        private boolean wiped;
+
+        private Entry(Path source, Path path, long size) {
+            this.source = source;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Output being copied into the cache during a decryption. A failed write drops it without failing the decryption,
+     * closing it before {@link #commit()} wipes it
+     */
+    public final class Pending implements Closeable {
+        private final Key key;
+        private final Path path;
+        private final FileChannel channel;
+        private long written;
+        private boolean done;
+
+        private Pending(Key key, Path path, FileChannel channel) {
+            this.key = key;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        /**
+         * @param data plain bytes, consumed
+         */
+        public void write(ByteBuffer data) {
+            if (done) {
+                return;
+            }
+            try {
+                written += data.remaining();
+                if (written > budget) {
+                    throw new IOException("output larger than the cache budget");
+                }
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } catch (IOException e) {
+                System.err.println("not caching decrypted output: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Makes the output available to later decryptions, evicting older ones to stay in budget
+         */
+        public void commit() {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                wipe(path);
+                return;
+            }
+            Metrics.counter("decryptcache.bytes").add(written);
+            put(key, path, written);
+        }
+
+        @Override
+        public void close() {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("failed to close decrypt cache entry");
+            }
+            wipe(path);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Content addressed store that keeps every distinct chunk of data once. Input is cut with content defined chunking,
+ * a rolling gear hash picks the boundaries so an insert only changes the chunks around it, and every chunk is named
+ * by an HMAC of its content. Chunks not yet in the store are encrypted and written under that name, the file itself
+ * becomes a small encrypted manifest listing its chunks, so storage and cipher work grow with new data only.
+ * <p>
+ * All keys are derived from one AES key. The chunk names and cut points depend on the key, so the store does not
+ * reveal which known content it holds. Chunks no manifest refers to any more are not removed
+ */
+public final class DedupStore {
+    /**
+     * Value of the Dedup header entry of a manifest
+     */
+    public static final String MANIFEST_FORMAT = "manifest-v1";
+    /**
+     * Chunks are never cut shorter than this, except the last one of a file
+     */
+    private static final int MIN_CHUNK_SIZE = 16 * 1024;
+    /**
+     * Chunks are always cut at this size even without a boundary
+     */
+    private static final int MAX_CHUNK_SIZE = 256 * 1024;
+    /**
+     * A boundary is found where the low 16 bits of the hash are zero, about every 64 KB past the minimum
+     */
+    private static final long BOUNDARY_MASK = (1L << 16) - 1;
+    private static final int IV_SIZE = 16;
+    private static final String CHUNK_CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String ID_MAC = "HmacSHA256";
+    /**
+     * A chunk id is the hex of its HMAC-SHA256, anything else in a manifest is damage or an attempt to leave the store
+     */
+    private static final Pattern CHUNK_ID = Pattern.compile("[0-9a-f]{64}");
+    /**
+     * Holds the key check value, opening the store with another key fails instead of mixing chunks of two keys
+     */
+    private static final String STORE_FILE = "store.properties";
+
+    private final Path directory;
+    private final Path chunkDirectory;
+    /**
+     * Key the manifest body is encrypted with, the plain key of the caller
+     */
+    private final SecretKey manifestKey;
+    private final SecretKeySpec chunkKey;
+    private final SecretKeySpec idKey;
+    /**
+     * Random value per byte for the rolling hash, derived from the key
+     */
+    private final long[] gear = new long[256];
+
+    private DedupStore(Path directory, SecretKey key) throws GeneralSecurityException {
+        this.directory = directory;
+        this.chunkDirectory = directory.resolve("chunks");
+        this.manifestKey = key;
+        this.chunkKey = new SecretKeySpec(subKey(key, "chunk"), "AES");
+        this.idKey = new SecretKeySpec(subKey(key, "id"), ID_MAC);
+        byte[] gearBytes = subKey(key, "gear");
+        Mac mac = CryptoProviders.mac(ID_MAC);
+        mac.init(new SecretKeySpec(gearBytes, ID_MAC));
+        for (int i = 0; i < gear.length; i++) {
+            byte[] value = mac.doFinal(new byte[]{(byte) i});
+            for (int j = 0; j < Long.BYTES; j++) {
+                gear[i] = (gear[i] << 8) | (value[j] & 0xff);
+            }
+        }
+        Arrays.fill(gearBytes, (byte) 0);
+    }
+
+    /**
+     * Opens the store in the directory, creating it on first use
+     * @param directory root of the store
+     * @param key the AES key every chunk and manifest of the store is encrypted with
+     * @throws InvalidKeyException if the store was created with a different key
+     */
+    public static DedupStore open(Path directory, SecretKey key) throws IOException, GeneralSecurityException {
+        DedupStore store = new DedupStore(directory, key);
+        Files.createDirectories(store.chunkDirectory);
+        String check = HexFormat.of().formatHex(subKey(key, "check"));
+        Path storeFile = directory.resolve(STORE_FILE);
+        Properties properties = new Properties();
+        if (Files.exists(storeFile)) {
+            try (InputStream stream = Files.newInputStream(storeFile)) {
+                properties.load(stream);
+            }
+            if (!MessageDigest.isEqual(check.getBytes(StandardCharsets.US_ASCII), properties.getProperty("keyCheck", "").getBytes(StandardCharsets.US_ASCII))) {
+                throw new InvalidKeyException("Store " + directory + " was created with a different key");
+            }
+        } else {
+            properties.setProperty("keyCheck", check);
+            try (OutputStream stream = Files.newOutputStream(storeFile, StandardOpenOption.CREATE_NEW)) {
+                properties.store(stream, "Encryptor dedup store");
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Outcome of {@link #store(EncryptedFile)}
+     */
+    public static final class Result {
+        private final Path manifest;
+        private final int chunkCount;
+        private final int newChunkCount;
+        private final long newBytes;
+
+        private Result(Path manifest, int chunkCount, int newChunkCount, long newBytes) {
+            this.manifest = manifest;
+            this.chunkCount = chunkCount;
+            this.newChunkCount = newChunkCount;
+            this.newBytes = newBytes;
+        }
+
+        /**
+         * @return temp file holding the encrypted manifest, the caller moves it into place
+         */
+        public Path getManifest() {
+            return manifest;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        public int getNewChunkCount() {
+            return newChunkCount;
+        }
+
+        /**
+         * @return plain bytes of the chunks that were not in the store yet
+         */
+        public long getNewBytes() {
+            return newBytes;
+        }
+    }
+
+    /**
+     * Adds the chunks of the file that are not in the store yet and writes its manifest. New chunks are group
+     * committed before the manifest is written, a manifest never refers to a chunk that is not on disk
+     * @param file the file to store, this method is non-destructive and only reads the file bytes
+     * @return the manifest temp file and how much of the file was new
+     */
+    public Result store(EncryptedFile file) throws IOException, GeneralSecurityException {
+        OutputCommitter committer = new OutputCommitter(Durability.GROUP_COMMIT);
+        //chunks staged by this call, they only show up in the store once committed
+        Set<String> staged = new HashSet<>();
+        Path manifestBody = Files.createTempFile(directory, file.getFileName(), ".manifest");
+        int chunkCount = 0;
+        int newChunkCount = 0;
+        long newBytes = 0;
+        try {
+            try (InputStream input = Files.newInputStream(file.getFile().toPath()); BufferedWriter manifest = Files.newBufferedWriter(manifestBody, StandardCharsets.UTF_8)) {
+                byte[] chunk = new byte[MAX_CHUNK_SIZE];
+                byte[] buffer = new byte[MAX_CHUNK_SIZE];
+                int length = 0;
+                long hash = 0;
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    for (int i = 0; i < read; i++) {
+                        byte b = buffer[i];
+                        chunk[length++] = b;
+                        hash = (hash << 1) + gear[b & 0xff];
+                        if (length == MAX_CHUNK_SIZE || (length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0)) {
+                            if (storeChunk(chunk, length, manifest, committer, staged)) {
+                                newChunkCount++;
+                                newBytes += length;
+                            }
+                            chunkCount++;
+                            length = 0;
+                            hash = 0;
+                        }
+                    }
+                }
+                if (length > 0) {
+                    if (storeChunk(chunk, length, manifest, committer, staged)) {
+                        newChunkCount++;
+                        newBytes += length;
+                    }
+                    chunkCount++;
+                }
+                Arrays.fill(chunk, (byte) 0);
+                Arrays.fill(buffer, (byte) 0);
+            }
+            committer.commit();
+            AESEncryptor encryptor = AESEncryptor.init(manifestKey);
+            encryptor.setWorkDirectory(directory);
+            encryptor.setHeaderProperty("Dedup", MANIFEST_FORMAT);
+            //the manifest carries the name of the stored file, its body is the list of chunks
+            EncryptedFile manifestFile = new EncryptedFile(file.getFileName(), file.getFileType(), EncryptedFile.EncryptionType.AES, manifestBody.toFile(), 0, null);
+            Path manifest = encryptor.encrypt(manifestFile).getFile();
+            Metrics.counter("dedup.chunks.total").add(chunkCount);
+            Metrics.counter("dedup.chunks.new").add(newChunkCount);
+            return new Result(manifest, chunkCount, newChunkCount, newBytes);
+        } finally {
+            Files.deleteIfExists(manifestBody);
+        }
+    }
+
+    /**
+     * Writes one chunk unless the store already has it and lists it in the manifest
+     * @return true if the chunk was new
+     */
+    private boolean storeChunk(byte[] chunk, int length, BufferedWriter manifest, OutputCommitter committer, Set<String> staged) throws IOException, GeneralSecurityException {
+        String id = chunkId(chunk, length);
+        manifest.write(id + " " + length + "\n");
+        Path target = chunkPath(id);
+        if (staged.contains(id) || Files.exists(target)) {
+            return false;
+        }
+        staged.add(id);
+        byte[] iv = new byte[IV_SIZE];
+        CryptoProviders.secureRandom().nextBytes(iv);
+        Cipher cipher = CryptoProviders.cipher(CHUNK_CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, chunkKey, new IvParameterSpec(iv));
+        byte[] stored = new byte[IV_SIZE + cipher.getOutputSize(length)];
+        System.arraycopy(iv, 0, stored, 0, IV_SIZE);
+        int written = cipher.doFinal(chunk, 0, length, stored, IV_SIZE);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), id, ".tmp");
+        Files.write(temp, Arrays.copyOf(stored, IV_SIZE + written));
+        //two stores writing the same chunk at once both publish it, either copy is valid
+        committer.publish(temp, target, true, null);
+        return true;
+    }
+
+    /**
+     * Rebuilds the file a manifest describes, every chunk is checked against its name while it is decrypted
+     * @param manifest a manifest read with {@link EncryptedFile#initRead(java.io.File)}
+     * @return temp file holding the original content
+     * @throws IllegalArgumentException if the file is not a dedup manifest
+     * @throws IOException if a chunk is missing or does not match its name
+     */
+    public Path restore(EncryptedFile manifest) throws IOException, GeneralSecurityException {
+        if (!manifest.isDedupManifest()) {
+            throw new IllegalArgumentException(manifest.getFile().getName() + " is not a dedup manifest");
+        }
+        AESEncryptor encryptor = AESEncryptor.init_key(Utils.encodeBase64(manifestKey.getEncoded()), manifest.getIV());
+        encryptor.setWorkDirectory(directory);
+        Path list = encryptor.decryptManifest(manifest);
+        Path output = Files.createTempFile(directory, manifest.getFileName(), ".restore");
+        try (BufferedReader reader = Files.newBufferedReader(list, StandardCharsets.UTF_8); OutputStream stream = Files.newOutputStream(output)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] reference = line.split(" ");
+                if (reference.length != 2) {
+                    throw new IOException("Malformed manifest line: " + line);
+                }
+                byte[] chunk = readChunk(reference[0]);
+                if (chunk.length != Integer.parseInt(reference[1])) {
+                    throw new IOException("Chunk " + reference[0] + " has the wrong length");
+                }
+                stream.write(chunk);
+                Arrays.fill(chunk, (byte) 0);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Files.deleteIfExists(output);
+            throw e instanceof IOException ioException ? ioException : new IOException("Malformed manifest", e);
+        } finally {
+            Files.deleteIfExists(list);
+        }
+        return output;
+    }
+
+    private byte[] readChunk(String id) throws IOException, GeneralSecurityException {
+        //ids come from the manifest, they must not reach the file system unchecked
+        if (!CHUNK_ID.matcher(id).matches()) {
+            throw new IOException("Malformed chunk id in manifest: " + id);
+        }
+        Path path = chunkPath(id);
+        if (!Files.exists(path)) {
+            throw new IOException("Chunk " + id + " is missing from the store");
+        }
+        byte[] stored = Files.readAllBytes(path);
+        if (stored.length < 2 * IV_SIZE) {
+            throw new IOException("Chunk " + id + " is truncated");
+        }
+        Cipher cipher = CryptoProviders.cipher(CHUNK_CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, chunkKey, new IvParameterSpec(stored, 0, IV_SIZE));
+        byte[] chunk = cipher.doFinal(stored, IV_SIZE, stored.length - IV_SIZE);
+        if (!MessageDigest.isEqual(id.getBytes(StandardCharsets.US_ASCII), chunkId(chunk, chunk.length).getBytes(StandardCharsets.US_ASCII))) {
+            throw new IOException("Chunk " + id + " does not match its content");
+        }
+        return chunk;
+    }
+
+    private String chunkId(byte[] chunk, int length) throws GeneralSecurityException {
+        Mac mac = CryptoProviders.mac(ID_MAC);
+        mac.init(idKey);
+        mac.update(chunk, 0, length);
+        return HexFormat.of().formatHex(mac.doFinal());
+    }
+
+    /**
+     * @return path of a chunk, fanned out over 256 directories by the first byte of its id
+     */
+    private Path chunkPath(String id) {
+        return chunkDirectory.resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    /**
+     * Derives an independent key for one purpose from the store key
+     */
+    private static byte[] subKey(SecretKey key, String purpose) throws GeneralSecurityException {
+        Mac mac = CryptoProviders.mac(ID_MAC);
+        mac.init(new SecretKeySpec(key.getEncoded(), ID_MAC));
+        return mac.doFinal(("encryptor-dedup-" + purpose).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,217 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of PBKDF2 output so reopening a password protected file skips key derivation.
+ * Passwords are never stored, entries are looked up by an HMAC of password and salt under a key that only lives in
+ * this process, and key bytes are zeroed when they are evicted or the cache is cleared
+ */
+public class DerivedKeyCache {
+    /**
+     * Default number of derived keys held by the shared cache
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+    /**
+     * Mac used to turn password and salt into a lookup id
+     */
+    private static final String LOOKUP_MAC = "HmacSHA256";
+    /**
+     * Cache used by {@link AESEncryptor#init_password(String, String, String, int)}
+     */
+    private static final DerivedKeyCache SHARED = new DerivedKeyCache(DEFAULT_CAPACITY);
+
+    /**
+     * Max number of keys held before the least recently used one is zeroed and dropped
+     */
+    private final int capacity;
+    /**
+     * Random per process key for the lookup mac, a heap dump of the ids alone can not be used to test passwords
+     */
+    private final SecretKeySpec lookupKey;
+    /**
+     * Access ordered map of lookup id to derived key bytes
+     */
+    private final LinkedHashMap<ByteBuffer, byte[]> entries;
+    /**
+     * Time each entry was stored in nanoseconds, only used when a time to live is set
+     */
+    private final Map<ByteBuffer, Long> storedAt = new HashMap<>();
+    /**
+     * How long a key stays usable, zero keeps keys until they are evicted
+     */
+    private long timeToLiveNanos;
+
+    public DerivedKeyCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        byte[] keyBytes = new byte[32];
+        CryptoProviders.secureRandom().nextBytes(keyBytes);
+        this.lookupKey = new SecretKeySpec(keyBytes, LOOKUP_MAC);
+        Arrays.fill(keyBytes, (byte) 0);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+                if (size() > DerivedKeyCache.this.capacity) {
+                    Arrays.fill(eldest.getValue(), (byte) 0);
+                    storedAt.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the process wide cache
+     */
+    public static DerivedKeyCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Limits how long a derived key is kept, useful for long running processes like {@link EncryptorDaemon} where
+     * keys should not outlive the burst of work they were derived for
+     * @param timeToLive maximum age of a cached key, zero to keep keys until they are evicted
+     */
+    public void setTimeToLive(Duration timeToLive) {
+        if (timeToLive.isNegative()) {
+            throw new IllegalArgumentException("Time to live can not be negative");
+        }
+        synchronized (entries) {
+            this.timeToLiveNanos = timeToLive.toNanos();
+            removeExpired();
+        }
+    }
+
+    /**
+     * @param password the password the key was derived from
+     * @param salt the salt the key was derived with
+     * @param algorithm the key derivation algorithm
+     * @param iterations the iteration count of the derivation
+     * @return a copy of the derived key, or null if it is not cached. The caller should zero the copy once done
+     */
+    public byte[] get(String password, byte[] salt, String algorithm, int iterations) {
+        ByteBuffer id = lookupId(password, salt, algorithm, iterations);
+        if (id == null) {
+            return null;
+        }
+        synchronized (entries) {
+            removeExpired();
+            byte[] key = entries.get(id);
+            return key == null ? null : key.clone();
+        }
+    }
+
+    /**
+     * Stores a copy of the derived key, the given array is left untouched
+     * @param password the password the key was derived from
+     * @param salt the salt the key was derived with
+     * @param algorithm the key derivation algorithm
+     * @param iterations the iteration count of the derivation
+     * @param key the derived key bytes
+     */
+    public void put(String password, byte[] salt, String algorithm, int iterations, byte[] key) {
+        ByteBuffer id = lookupId(password, salt, algorithm, iterations);
+        if (id == null) {
+            return;
+        }
+        synchronized (entries) {
+            removeExpired();
+            storedAt.put(id, System.nanoTime());
+            byte[] previous = entries.put(id, key.clone());
+            if (previous != null) {
+                Arrays.fill(previous, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Zeros and drops every cached key
+     */
+    public void clear() {
+        synchronized (entries) {
+            Iterator<byte[]> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Arrays.fill(iterator.next(), (byte) 0);
+                iterator.remove();
+            }
+            storedAt.clear();
+        }
+    }
+
+    /**
+     * Zeros and drops keys older than the time to live, callers hold the entries lock
+     */
+    private void removeExpired() {
+        if (timeToLiveNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<Map.Entry<ByteBuffer, byte[]>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ByteBuffer, byte[]> entry = iterator.next();
+            Long stored = storedAt.get(entry.getKey());
+            if (stored == null || now - stored >= timeToLiveNanos) {
+                Arrays.fill(entry.getValue(), (byte) 0);
+                storedAt.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of keys currently cached
+     */
+    public int size() {
+        synchronized (entries) {
+            removeExpired();
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the lookup id of the password, salt and KDF parameters, or null if the mac is not available in which case caching is skipped
+     */
+    ByteBuffer lookupId(String password, byte[] salt, String algorithm, int iterations) {
+        try {
+            Mac mac = CryptoProviders.mac(LOOKUP_MAC);
+            mac.init(lookupKey);
+            mac.update((algorithm + ":" + iterations + ":").getBytes(StandardCharsets.UTF_8));
+            mac.update(salt);
+            //separator so salt and password boundaries can not be shifted
+            mac.update((byte) 0);
+            return ByteBuffer.wrap(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            System.err.println("derived key cache disabled, lookup mac unavailable");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * How hard {@link OutputCommitter} works to make a published file survive a crash or power loss
+ */
+public enum Durability {
+    /**
+     * Rename into place only, the data reaches the disk whenever the operating system flushes it
+     */
+    NONE,
+    /**
+     * Every file is forced to disk before it is renamed into place and its directory is forced after, one or two
+     * syncs per file
+     */
+    PER_FILE,
+    /**
+     * Files are staged and only become visible at {@link OutputCommitter#commit()}, which forces all of them in
+     * parallel and then renames them, a batch pays roughly one sync round instead of one per file
+     */
+    GROUP_COMMIT;
+
+    /**
+     * @param name none, file or group, as used on the command line
+     * @return the matching policy
+     */
+    public static Durability parse(String name) {
+        return switch (name.toLowerCase()) {
+            case "none" -> NONE;
+            case "file" -> PER_FILE;
+            case "group" -> GROUP_COMMIT;
+            default -> throw new IllegalArgumentException("Durability must be none, file or group");
+        };
+    }
+}
@@ -16,8 +16,11 @@ package com.andrew.Encryptor.EncryptorService;/*
  */
 
 import java.io.*;
-import java.nio.channels.FileLock;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Objects;
 
 /**
@@ -55,6 +58,60 @@ public class EncryptedFile {
      * Used for decryption as we need it to provide the first step in decryption, base64 encoded this also has the salt attached to it at the end
      */
     private String IV;
+    /**
+     * Key derivation algorithm used for password based files, files written before this was recorded use PBKDF2WithHmacSHA256
+     */
+    private String kdfAlgorithm = AESEncryptor.PBKDF2_NAME;
+    /**
+     * Key derivation iteration count used for password based files, files written before this was recorded used 50000
+     */
+    private int kdfIterations = AESEncryptor.PBKDF2_ITER_COUNT;
+    /**
+     * True if the body is a list of chunk references into a {@link DedupStore} instead of the file content
+     */
+    private boolean dedupManifest;
+    /**
+     * True if all-zero regions were left out of the body and are listed in a manifest at the end of the file
+     * @see AESEncryptor#setSparse(boolean)
+     */
+    private boolean sparse;
+    /**
+     * Number of plain bytes in the body as stored in the header, -1 for files written before it was recorded
+     */
+    private long plainLength = -1;
+    /**
+     * SHA-256 of the plain text encrypted under a key derived from the file key, null if the file was written without one
+     */
+    private byte[] plainDigest;
+    /**
+     * Bytes covered by one leaf of the integrity tree, 0 if the file has no tree
+     */
+    private int integrityChunkSize;
+    /**
+     * Root of the integrity tree as stored in the header
+     */
+    private byte[] integrityRoot;
+    /**
+     * Id shared by the parts of a split file, null for a whole file
+     * @see AESEncryptor#encryptSplit(EncryptedFile, long)
+     */
+    private String partSet;
+    /**
+     * Zero based position of this part in its set
+     */
+    private int partIndex;
+    /**
+     * Number of parts in the set
+     */
+    private int partCount;
+    /**
+     * Offset in the original file of the first byte this part holds
+     */
+    private long partOffset;
+    /**
+     * Upper bound of a header, a file that has not reached EOF by then is not one of ours
+     */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
 
     public EncryptedFile(String fileName, String fileType, EncryptionType type, File file,long byteOffset, String iv){
         setFile(file);
@@ -103,50 +160,173 @@ public class EncryptedFile {
         if(!file.exists() || !file.canRead()){
             throw new UnsupportedFileException("File does not exist or can not be read");
         }
-        //read only and try with resource, lock is used here to prevent another process to write to the file while we have accesses
-        try(RandomAccessFile randomAccessFile = new RandomAccessFile(file,"r");FileLock lock = randomAccessFile.getChannel().tryLock(0L, Long.MAX_VALUE, true)) {
-            String line = randomAccessFile.readLine();
-            if(!line.startsWith("BOF:")){
-                lock.release();
+        CryptoEvents.HeaderRead event = new CryptoEvents.HeaderRead(file.getName()).start();
+        //read only and try with resource, the header region is locked so another process can not write it while we read
+        try(SharedReadChannels.Handle channel = SharedReadChannels.shared().open(file.toPath())) {
+            channel.lock(0, MAX_HEADER_SIZE);
+            HeaderReader reader = new HeaderReader(channel);
+            String line = reader.readLine();
+            if(line == null || !line.startsWith("BOF:")){
                 throw new UnsupportedFileException("file does not have the correct prepend header");
             }
             int lineCount;
             try {
                lineCount = Integer.parseInt(line.split(":")[1]);
             }catch (NumberFormatException e){
-                lock.release();
                 throw new UnsupportedFileException("Prepended header malformed");
             }
             HashMap<String,String> properties = new HashMap<>();
             for(int i=1; i<lineCount; i++){
-                line = randomAccessFile.readLine();
+                line = reader.readLine();
+                if(line == null){
+                    throw new UnsupportedFileException("Header ended before EOF");
+                }
                 if(line.equals("EOF"))
                 {
                     //if EOF is not listed at line count throw error code
                     if(i < lineCount-1){
-                        lock.release();
                         throw new UnsupportedFileException("Expected EOF at line: " + lineCount +" but EOF was listed at: " + i);
                     }
                     break;
                 }
                 String metaName, metaValue;
-                String[] property = line.split(":");
+                //limit keeps empty values, like the FileType of a file without extension, and values containing ':'
+                String[] property = line.split(":", 2);
+                if(property.length < 2){
+                    throw new UnsupportedFileException("Malformed header line: " + i);
+                }
                 metaName = property[0];
                 metaValue = property[1];
                 properties.put(metaName,metaValue);
             }
             if(!properties.containsKey("EncryptionType") || !properties.containsKey("FileName") || !properties.containsKey("FileType") || !properties.containsKey("IV"))
             {
-                lock.release();
                 throw new UnsupportedFileException("Missing necessary property in file header");
             }
-            lock.release();
-            return new EncryptedFile(properties.get("FileName"),properties.get("FileType"),EncryptionType.valueOf(properties.get("EncryptionType")),file,randomAccessFile.getFilePointer(), properties.get("IV"));
+            EncryptionType type;
+            try {
+                type = EncryptionType.valueOf(properties.get("EncryptionType"));
+            }catch (IllegalArgumentException e){
+                throw new UnsupportedFileException("Unknown encryption type: " + properties.get("EncryptionType"));
+            }
+            EncryptedFile encryptedFile = new EncryptedFile(properties.get("FileName"),properties.get("FileType"),type,file,reader.getPosition(), properties.get("IV"));
+            //KDF entries are optional, older files fall back to the defaults set on the field
+            if(properties.containsKey("KDF")){
+                encryptedFile.setKdfAlgorithm(properties.get("KDF"));
+            }
+            if(properties.containsKey("KDFIterations")){
+                try {
+                    encryptedFile.setKdfIterations(Integer.parseInt(properties.get("KDFIterations")));
+                }catch (NumberFormatException e){
+                    throw new UnsupportedFileException("KDFIterations header entry malformed");
+                }
+            }
+            if(properties.containsKey("Dedup")){
+                if(!DedupStore.MANIFEST_FORMAT.equals(properties.get("Dedup"))){
+                    throw new UnsupportedFileException("Unknown dedup manifest format: " + properties.get("Dedup"));
+                }
+                encryptedFile.setDedupManifest(true);
+            }
+            encryptedFile.setSparse(properties.containsKey("Sparse"));
+            if(properties.containsKey("PlainLength")){
+                try {
+                    encryptedFile.setPlainLength(Long.parseLong(properties.get("PlainLength")));
+                }catch (IllegalArgumentException e){
+                    throw new UnsupportedFileException("PlainLength header entry malformed");
+                }
+            }
+            if(properties.containsKey(AESEncryptor.PLAIN_DIGEST_HEADER)){
+                try {
+                    encryptedFile.setPlainDigest(HexFormat.of().parseHex(properties.get(AESEncryptor.PLAIN_DIGEST_HEADER)));
+                }catch (IllegalArgumentException e){
+                    throw new UnsupportedFileException("PlainDigest header entry malformed");
+                }
+            }
+            if(properties.containsKey(IntegrityTree.CHUNK_SIZE_HEADER)){
+                try {
+                    encryptedFile.setIntegrity(Integer.parseInt(properties.get(IntegrityTree.CHUNK_SIZE_HEADER)), HexFormat.of().parseHex(properties.getOrDefault(IntegrityTree.ROOT_HEADER, "")));
+                }catch (IllegalArgumentException e){
+                    throw new UnsupportedFileException("Integrity header entries malformed");
+                }
+            }
+            //part entries are only written for split files
+            if(properties.containsKey("PartSet")){
+                try {
+                    encryptedFile.setPart(properties.get("PartSet"), Integer.parseInt(properties.get("PartIndex")), Integer.parseInt(properties.get("PartCount")), Long.parseLong(properties.get("PartOffset")));
+                }catch (IllegalArgumentException e){
+                    throw new UnsupportedFileException("Part header entries malformed");
+                }
+            }
+            event.finish(encryptedFile.getByteOffset());
+            return encryptedFile;
         }catch (IOException e){
             throw new IOException(e);
         }
     }
 
+    /**
+     * Reads header lines through a small buffer, one read call per few kilobytes instead of the one per byte of
+     * RandomAccessFile.readLine, and decodes them as UTF-8 which is how {@link AESEncryptor} writes them
+     */
+    private static final class HeaderReader {
+        private final SharedReadChannels.Handle channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        /**
+         * Offset in the file just past the last line returned
+         */
+        private long position;
+        private boolean endOfFile;
+
+        /**
+         * Offset in the file of the next read
+         */
+        private long readPosition;
+
+        HeaderReader(SharedReadChannels.Handle channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        /**
+         * @return the next line without its line break, or null at the end of the file
+         * @throws UnsupportedFileException if the header grows past {@link #MAX_HEADER_SIZE}
+         */
+        String readLine() throws IOException, UnsupportedFileException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            while (true) {
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    position++;
+                    if (position > MAX_HEADER_SIZE) {
+                        throw new UnsupportedFileException("Header is larger than " + MAX_HEADER_SIZE + " bytes");
+                    }
+                    if (b == '\n') {
+                        return decode(line);
+                    }
+                    line.write(b);
+                }
+                if (endOfFile) {
+                    return line.size() == 0 ? null : decode(line);
+                }
+                buffer.clear();
+                int read = channel.read(buffer, readPosition);
+                endOfFile = read == -1;
+                readPosition += Math.max(0, read);
+                buffer.flip();
+            }
+        }
+
+        private static String decode(ByteArrayOutputStream line) {
+            String decoded = line.toString(StandardCharsets.UTF_8);
+            //tolerate headers edited on windows
+            return decoded.endsWith("\r") ? decoded.substring(0, decoded.length() - 1) : decoded;
+        }
+
+        long getPosition() {
+            return position;
+        }
+    }
+
     /**
      * Returns the encryptionType variable
      * @return an enum that describes what encryption has been used or should be used
@@ -227,6 +407,141 @@ public class EncryptedFile {
         return IV;
     }
 
+    /**
+     * @return name of the key derivation algorithm used for password based encryption
+     */
+    public String getKdfAlgorithm() {
+        return kdfAlgorithm;
+    }
+
+    public void setKdfAlgorithm(String kdfAlgorithm) {
+        this.kdfAlgorithm = kdfAlgorithm;
+    }
+
+    /**
+     * @return number of key derivation iterations used for password based encryption
+     */
+    public int getKdfIterations() {
+        return kdfIterations;
+    }
+
+    public void setKdfIterations(int kdfIterations) {
+        this.kdfIterations = kdfIterations;
+    }
+
+    /**
+     * @return true if this file has to be restored through a {@link DedupStore}
+     */
+    public boolean isDedupManifest() {
+        return dedupManifest;
+    }
+
+    public void setDedupManifest(boolean dedupManifest) {
+        this.dedupManifest = dedupManifest;
+    }
+
+    /**
+     * @return true if the file was written in sparse mode
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * @return number of plain bytes the body decrypts to, -1 if the header does not say
+     */
+    public long getPlainLength() {
+        return plainLength;
+    }
+
+    /**
+     * @return the encrypted plain text digest as stored in the header, null if there is none
+     * @see AESEncryptor#plainDigest(EncryptedFile)
+     */
+    public byte[] getPlainDigest() {
+        return plainDigest;
+    }
+
+    public void setPlainDigest(byte[] plainDigest) {
+        if (plainDigest != null && plainDigest.length != 32) {
+            throw new IllegalArgumentException("Plain digest must be 32 bytes");
+        }
+        this.plainDigest = plainDigest;
+    }
+
+    public void setPlainLength(long plainLength) {
+        if (plainLength < -1) {
+            throw new IllegalArgumentException("Plain length can not be negative");
+        }
+        this.plainLength = plainLength;
+    }
+
+    /**
+     * @return true if the file was written with an integrity tree
+     * @see IntegrityTree
+     */
+    public boolean hasIntegrityTree() {
+        return integrityChunkSize > 0;
+    }
+
+    public int getIntegrityChunkSize() {
+        return integrityChunkSize;
+    }
+
+    public byte[] getIntegrityRoot() {
+        return integrityRoot;
+    }
+
+    /**
+     * @param chunkSize bytes covered by one leaf
+     * @param root root of the tree
+     * @throws IllegalArgumentException if the chunk size is not positive or the root has the wrong length
+     */
+    public void setIntegrity(int chunkSize, byte[] root) {
+        if (chunkSize < 1 || root.length != IntegrityTree.HASH_SIZE) {
+            throw new IllegalArgumentException("Invalid integrity tree parameters");
+        }
+        this.integrityChunkSize = chunkSize;
+        this.integrityRoot = root;
+    }
+
+    /**
+     * @return true if this file is one part of a split file
+     */
+    public boolean isPart() {
+        return partSet != null;
+    }
+
+    public String getPartSet() {
+        return partSet;
+    }
+
+    public int getPartIndex() {
+        return partIndex;
+    }
+
+    public int getPartCount() {
+        return partCount;
+    }
+
+    public long getPartOffset() {
+        return partOffset;
+    }
+
+    public void setPart(String partSet, int partIndex, int partCount, long partOffset) {
+        if (partIndex < 0 || partIndex >= partCount || partOffset < 0) {
+            throw new IllegalArgumentException("Part entries out of range");
+        }
+        this.partSet = partSet;
+        this.partIndex = partIndex;
+        this.partCount = partCount;
+        this.partOffset = partOffset;
+    }
+
     @Override
     public String toString() {
         return "EncryptedFile{" +
@@ -236,6 +551,18 @@ public class EncryptedFile {
                 ", fileType='" + fileType + '\'' +
                 ", byteOffset=" + byteOffset +
                 ", IV='" + IV + '\'' +
+                ", kdfAlgorithm='" + kdfAlgorithm + '\'' +
+                ", kdfIterations=" + kdfIterations +
+                ", partSet='" + partSet + '\'' +
+                ", partIndex=" + partIndex +
+                ", partCount=" + partCount +
+                ", partOffset=" + partOffset +
+                ", dedupManifest=" + dedupManifest +
+                ", sparse=" + sparse +
+                ", plainLength=" + plainLength +
+                ", plainDigest=" + (plainDigest == null ? null : HexFormat.of().formatHex(plainDigest)) +
+                ", integrityChunkSize=" + integrityChunkSize +
+                ", integrityRoot=" + (integrityRoot == null ? null : HexFormat.of().formatHex(integrityRoot)) +
                 '}';
     }
 
@@ -243,11 +570,13 @@ public class EncryptedFile {
     public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof EncryptedFile that)) return false;
-        return byteOffset == that.byteOffset && encryptionType == that.encryptionType && Objects.equals(file, that.file) && Objects.equals(fileName, that.fileName) && Objects.equals(fileType, that.fileType) && Objects.equals(IV, that.IV);
+        return byteOffset == that.byteOffset && encryptionType == that.encryptionType && Objects.equals(file, that.file) && Objects.equals(fileName, that.fileName) && Objects.equals(fileType, that.fileType) && Objects.equals(IV, that.IV) && kdfIterations == that.kdfIterations && Objects.equals(kdfAlgorithm, that.kdfAlgorithm) && Objects.equals(partSet, that.partSet) && partIndex == that.partIndex && partCount == that.partCount && partOffset == that.partOffset && dedupManifest == that.dedupManifest && sparse == that.sparse && plainLength == that.plainLength && Arrays.equals(plainDigest, that.plainDigest) && integrityChunkSize == that.integrityChunkSize && Arrays.equals(integrityRoot, that.integrityRoot);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(encryptionType, file, fileName, fileType, byteOffset, IV);
+        int result = Objects.hash(encryptionType, file, fileName, fileType, byteOffset, IV, kdfAlgorithm, kdfIterations, partSet, partIndex, partCount, partOffset, dedupManifest, sparse, plainLength, integrityChunkSize);
+        result = 31 * result + Arrays.hashCode(plainDigest);
+        return 31 * result + Arrays.hashCode(integrityRoot);
     }
 }
@@ -28,6 +28,13 @@ public interface Encryptor {
      */
     Path decrypt(EncryptedFile file) throws IOException,GeneralSecurityException;
 
+    /**
+     * Decrypts a small file straight into memory, skipping the temp file of {@link #decrypt(EncryptedFile)}
+     * @param file the file to decrypt, its body must not be larger than the limit of the implementation
+     * @return the plain bytes, the caller should zero them once done if they are secret
+     */
+    byte[] decryptToMemory(EncryptedFile file) throws IOException,GeneralSecurityException;
+
     /**
      * Method to be implemented by all encryptor services.
      * This method is responsible for encrypting the file and reporting back once it's finished with the process
@@ -36,4 +43,16 @@ public interface Encryptor {
      */
     PathPair<Path,Path> encrypt(EncryptedFile file) throws IOException, GeneralSecurityException;
 
+    /**
+     * Sets the callback that receives progress updates during encrypt and decrypt
+     * @param listener the callback, or null to stop reporting
+     */
+    void setProgressListener(ProgressListener listener);
+
+    /**
+     * Sets the limiter consulted before every buffer is processed, used to throttle background jobs
+     * @param rateLimiter the limiter, or null for unthrottled I/O
+     */
+    void setRateLimiter(RateLimiter rateLimiter);
+
 }
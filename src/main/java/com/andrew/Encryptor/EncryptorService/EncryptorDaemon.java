@@ -0,0 +1,497 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long running local server so scripts can encrypt many files without paying JVM startup and JIT warm up for each
+ * one. Requests arrive over a Unix domain socket that only the owner can open, one request per line, and run on the
+ * regular encryptor services so pooled ciphers and the derived key cache stay warm between calls.
+ * <p>
+ * A request is a command followed by tab separated name=value fields, every request gets one response line that
+ * starts with OK or ERR followed by a tab and a detail. Several requests can be sent over one connection.
+ * <pre>
+ * PING
+ * STATS                                                            answers with every {@link Metrics} value
+ * ENCRYPT  in=path  out=path  (password=secret [iterations=n] | keyfile=path)
+ * DECRYPT  in=path  out=path  (password=secret | keyfile=path)     out may be a directory
+ * VERIFY   in=path  (password=secret | keyfile=path)
+ * READ     in=path  (password=secret | keyfile=path)                answers with the base64 plain text, small files only
+ * COMMIT                                                           publishes files staged under group commit
+ * LIMIT    [rate=MB/s]  [workers=n]                                 changes the caps, answers with the caps in effect
+ * SHUTDOWN
+ * </pre>
+ * Outputs are published through an {@link OutputCommitter}, with group commit an OK only means the file is staged
+ * and it appears under its name once COMMIT is answered. ENCRYPT, DECRYPT, VERIFY and READ take an optional rate
+ * field in MB/s that caps that request on top of the daemon wide cap set with LIMIT
+ */
+public class EncryptorDaemon implements Closeable {
+    /**
+     * Name of the socket file inside {@link Utils#getAppDirectory()} when no path is given
+     */
+    public static final String DEFAULT_SOCKET_NAME = "encryptor.sock";
+    /**
+     * How long a derived decryption key stays in the cache, long enough for a shell loop over a folder
+     */
+    public static final Duration KEY_CACHE_TTL = Duration.ofMinutes(5);
+
+    private final Path socketPath;
+    private final ServerSocketChannel server;
+    /**
+     * One thread per connection, virtual when the runtime has them, the connection threads only parse and wait on the
+     * job permits
+     */
+    private final ExecutorService connections;
+    /**
+     * Caps the number of requests doing crypto work at once
+     */
+    private final WorkerPermits jobPermits;
+    /**
+     * Platform threads the crypto work of permitted requests runs on, sized to the permits so their ciphers stay warm
+     * from one request to the next
+     */
+    private final ThreadPoolExecutor cipherPool;
+    private int workerCount;
+    /**
+     * Cap on the bytes per second of all requests together, every request gets a limiter under it
+     */
+    private final RateLimiter rateLimiter = RateLimiter.unlimited();
+    private final AtomicLong served = new AtomicLong();
+    private volatile OutputCommitter committer = new OutputCommitter(Durability.PER_FILE);
+    private volatile boolean closed;
+
+    /**
+     * Binds the socket, refusing to start if another daemon is already listening on it
+     * @param socketPath path of the socket file
+     * @param workerCount number of requests processed at once
+     * @throws IOException if the socket can not be bound
+     */
+    public EncryptorDaemon(Path socketPath, int workerCount) throws IOException {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be at least 1");
+        }
+        this.socketPath = socketPath.toAbsolutePath();
+        Files.createDirectories(this.socketPath.getParent());
+        if (Files.exists(this.socketPath)) {
+            if (isListening(this.socketPath)) {
+                throw new IOException("A daemon is already listening on " + this.socketPath);
+            }
+            //nobody answered, left over from a daemon that did not shut down cleanly
+            Files.delete(this.socketPath);
+        }
+        this.server = bindPrivate(this.socketPath);
+        this.connections = WorkExecutors.io("encryptor-daemon-connection", WorkExecutors.UNBOUNDED);
+        this.jobPermits = new WorkerPermits(workerCount);
+        this.cipherPool = WorkExecutors.cpu("encryptor-daemon-worker", workerCount);
+        this.workerCount = workerCount;
+        DerivedKeyCache.shared().setTimeToLive(KEY_CACHE_TTL);
+    }
+
+    /**
+     * Passwords travel over the socket, so only the owner may connect. A socket bound in place would be open to
+     * everyone until its permissions are narrowed, so it is bound inside a fresh directory only the owner can enter,
+     * narrowed there and then renamed to its path, a rename keeps it listening
+     */
+    private static ServerSocketChannel bindPrivate(Path socketPath) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        Path staging;
+        try {
+            staging = Files.createTempDirectory(socketPath.getParent(), ".sock", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            System.err.println("file system has no posix permissions, socket access is not restricted");
+            bind(server, socketPath);
+            return server;
+        }
+        Path staged = staging.resolve("s");
+        try {
+            bind(server, staged);
+            Files.setPosixFilePermissions(staged, PosixFilePermissions.fromString("rw-------"));
+            Files.move(staged, socketPath, StandardCopyOption.ATOMIC_MOVE);
+            return server;
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        } finally {
+            Files.deleteIfExists(staged);
+            Files.delete(staging);
+        }
+    }
+
+    private static void bind(ServerSocketChannel server, Path path) throws IOException {
+        try {
+            server.bind(UnixDomainSocketAddress.of(path));
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    private static boolean isListening(Path socketPath) {
+        try (SocketChannel ignored = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the socket path used when none is given
+     */
+    public static Path defaultSocketPath() {
+        return Utils.getAppDirectory().resolve(DEFAULT_SOCKET_NAME);
+    }
+
+    /**
+     * @param durability how outputs are made crash safe, per file unless changed
+     */
+    public void setDurability(Durability durability) {
+        this.committer = new OutputCommitter(durability);
+    }
+
+    /**
+     * @return the cap shared by all requests, its rate can be changed at any time
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Changes how many requests do crypto work at once, requests already running finish first when it shrinks
+     * @param workerCount the new number of workers
+     */
+    public synchronized void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be at least 1");
+        }
+        if (workerCount > this.workerCount) {
+            cipherPool.setMaximumPoolSize(workerCount);
+            cipherPool.setCorePoolSize(workerCount);
+            jobPermits.release(workerCount - this.workerCount);
+        } else {
+            //permits can go negative, new requests then wait until enough running ones have finished
+            jobPermits.reducePermits(this.workerCount - workerCount);
+            cipherPool.setCorePoolSize(workerCount);
+            cipherPool.setMaximumPoolSize(workerCount);
+        }
+        this.workerCount = workerCount;
+    }
+
+    public synchronized int getWorkerCount() {
+        return workerCount;
+    }
+
+    public Path getSocketPath() {
+        return socketPath;
+    }
+
+    /**
+     * @return number of requests answered since start
+     */
+    public long getServedCount() {
+        return served.get();
+    }
+
+    /**
+     * Accepts connections until {@link #close()} is called or a SHUTDOWN request arrives, blocking the caller
+     */
+    public void serve() {
+        //calibrate before the first request instead of during it
+        AutoTuner.current();
+        KdfCalibrator.current();
+        System.out.println("daemon listening on " + socketPath);
+        while (!closed) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("daemon failed to accept connection: " + e.getMessage());
+                }
+                continue;
+            }
+            connections.execute(() -> handle(channel));
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel; BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                String response = respond(line);
+                writer.write(response + "\n");
+                writer.flush();
+                served.incrementAndGet();
+                if (closed) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("daemon connection dropped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param line one request line
+     * @return one response line without the line break
+     */
+    private String respond(String line) {
+        String[] parts = line.split("\t");
+        String command = parts[0].trim().toUpperCase();
+        Map<String, String> fields = new HashMap<>();
+        for (int i = 1; i < parts.length; i++) {
+            int split = parts[i].indexOf('=');
+            if (split < 1) {
+                return "ERR\tmalformed field " + (i + 1);
+            }
+            fields.put(parts[i].substring(0, split), parts[i].substring(split + 1));
+        }
+        try {
+            switch (command) {
+                case "PING":
+                    return "OK\tpong";
+                case "STATS":
+                    StringBuilder stats = new StringBuilder("OK");
+                    Metrics.snapshot().forEach((name, value) -> stats.append('\t').append(name).append('=').append(value));
+                    return stats.toString();
+                case "COMMIT":
+                    return "OK\t" + committer.commit() + " files committed";
+                case "LIMIT":
+                    return "OK\t" + limit(fields);
+                case "SHUTDOWN":
+                    close();
+                    return "OK\tshutting down";
+                case "ENCRYPT":
+                case "DECRYPT":
+                case "VERIFY":
+                case "READ":
+                    jobPermits.acquire();
+                    try {
+                        return "OK\t" + WorkExecutors.callOn(cipherPool, () -> switch (command) {
+                            case "ENCRYPT" -> encrypt(fields);
+                            case "DECRYPT" -> decrypt(fields);
+                            case "READ" -> read(fields);
+                            default -> verify(fields);
+                        });
+                    } finally {
+                        jobPermits.release();
+                    }
+                default:
+                    return "ERR\tunknown command " + command;
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            return "ERR\t" + describe(e);
+        } catch (ExecutionException e) {
+            //only checked exceptions of the request arrive wrapped
+            return "ERR\t" + describe(e.getCause());
+        } catch (RejectedExecutionException e) {
+            return "ERR\tdaemon is shutting down";
+        } catch (RuntimeException e) {
+            //a failed request must still get its answer and leave the connection usable
+            System.err.println("daemon request failed: " + e);
+            return "ERR\t" + describe(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERR\tinterrupted";
+        }
+    }
+
+    private String limit(Map<String, String> fields) {
+        if (fields.containsKey("rate")) {
+            rateLimiter.setRate(parseLong(fields.get("rate"), "rate") * 1024 * 1024);
+        }
+        if (fields.containsKey("workers")) {
+            setWorkerCount((int) parseLong(fields.get("workers"), "workers"));
+        }
+        return "rate=" + rateLimiter.getRate() / (1024 * 1024) + "\tworkers=" + getWorkerCount();
+    }
+
+    /**
+     * @return limiter of one request, capped by its rate field if it has one and always by the daemon wide cap
+     */
+    private RateLimiter requestLimiter(Map<String, String> fields) {
+        long rate = fields.containsKey("rate") ? parseLong(fields.get("rate"), "rate") * 1024 * 1024 : 0;
+        return new RateLimiter(rate, rateLimiter);
+    }
+
+    private String encrypt(Map<String, String> fields) throws IOException, GeneralSecurityException {
+        Path input = Path.of(require(fields, "in"));
+        Path output = Path.of(require(fields, "out")).toAbsolutePath();
+        String name = input.getFileName().toString();
+        String extension = Utils.getFileExtension(name);
+        String baseName = extension.isEmpty() ? name : Utils.getFileName(name);
+        EncryptedFile file = new EncryptedFile(baseName, extension, EncryptedFile.EncryptionType.AES, input.toFile(), 0, null);
+        AESEncryptor encryptor;
+        if (fields.containsKey("keyfile")) {
+            encryptor = AESEncryptor.init(AESEncryptor.loadKey(Path.of(fields.get("keyfile"))));
+        } else if (fields.containsKey("iterations")) {
+            encryptor = AESEncryptor.init(require(fields, "password"), parseIterations(fields.get("iterations")));
+        } else {
+            encryptor = AESEncryptor.init(require(fields, "password"), KdfCalibrator.current());
+        }
+        encryptor.setWorkDirectory(output.getParent());
+        encryptor.setRateLimiter(requestLimiter(fields));
+        PathPair<Path, Path> result = encryptor.encrypt(file);
+        committer.publish(result.getFile(), output, true, null);
+        return output.toString();
+    }
+
+    private String decrypt(Map<String, String> fields) throws IOException, GeneralSecurityException, UnsupportedFileException {
+        EncryptedFile file = EncryptedFile.initRead(Path.of(require(fields, "in")).toFile());
+        Path output = Path.of(require(fields, "out")).toAbsolutePath();
+        if (Files.isDirectory(output)) {
+            output = output.resolve(file.getFileName() + file.getFileType());
+        }
+        AESEncryptor encryptor = decryptorFor(file, fields);
+        encryptor.setWorkDirectory(output.getParent());
+        encryptor.setRateLimiter(requestLimiter(fields));
+        encryptor.setDecryptCache(DecryptCache.shared());
+        committer.publish(encryptor.decrypt(file), output, true, null);
+        return output.toString();
+    }
+
+    private String verify(Map<String, String> fields) throws IOException, GeneralSecurityException, UnsupportedFileException {
+        EncryptedFile file = EncryptedFile.initRead(Path.of(require(fields, "in")).toFile());
+        AESEncryptor encryptor = decryptorFor(file, fields);
+        encryptor.setRateLimiter(requestLimiter(fields));
+        encryptor.verify(file);
+        return "valid";
+    }
+
+    private String read(Map<String, String> fields) throws IOException, GeneralSecurityException, UnsupportedFileException {
+        EncryptedFile file = EncryptedFile.initRead(Path.of(require(fields, "in")).toFile());
+        AESEncryptor encryptor = decryptorFor(file, fields);
+        encryptor.setRateLimiter(requestLimiter(fields));
+        byte[] plainText = encryptor.decryptToMemory(file);
+        try {
+            return Utils.encodeBase64(plainText);
+        } finally {
+            Arrays.fill(plainText, (byte) 0);
+        }
+    }
+
+    private static AESEncryptor decryptorFor(EncryptedFile file, Map<String, String> fields) throws IOException, GeneralSecurityException {
+        if (file.getEncryptionType() != EncryptedFile.EncryptionType.AES) {
+            throw new IllegalArgumentException("only AES files are supported");
+        }
+        if (fields.containsKey("keyfile")) {
+            return AESEncryptor.init_key(Files.readString(Path.of(fields.get("keyfile")), StandardCharsets.UTF_8).trim(), file.getIV());
+        }
+        return AESEncryptor.init_password(require(fields, "password"), file);
+    }
+
+    private static String require(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("missing field " + name);
+        }
+        return value;
+    }
+
+    private static int parseIterations(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("iterations must be a number");
+        }
+    }
+
+    private static long parseLong(String value, String name) {
+        try {
+            long number = Long.parseLong(value);
+            if (number < 0) {
+                throw new IllegalArgumentException(name + " can not be negative");
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    /**
+     * @return single line description, wrapped exceptions are unwrapped so the client sees the real cause
+     */
+    private static String describe(Throwable e) {
+        Throwable cause = e;
+        while (cause.getCause() != null && cause.getMessage() != null && cause.getMessage().equals(cause.getCause().toString())) {
+            cause = cause.getCause();
+        }
+        String message = cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+        return message.replace('\n', ' ').replace('\t', ' ');
+    }
+
+    /**
+     * Stops accepting connections and removes the socket file, requests in progress finish on their own
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        server.close();
+        connections.shutdown();
+        //requests already queued still run, later ones are refused
+        cipherPool.shutdown();
+        //staged outputs would otherwise be left behind as temp files
+        committer.commit();
+        Files.deleteIfExists(socketPath);
+        DerivedKeyCache.shared().clear();
+        DecryptCache.shared().clear();
+    }
+
+    /**
+     * Semaphore whose permits can be taken away while they are handed out
+     */
+    private static final class WorkerPermits extends Semaphore {
+        private WorkerPermits(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a directory and encrypts every file that lands in it with a fixed key, writing name.ext.enc into an
+ * output directory. Watch events only mark a file as pending, a file is encrypted once its size and modification
+ * time have stayed the same for the quiet period, so half written exports are never picked up and the many modify
+ * events of one copy collapse into a single job. Encryption runs on a fixed size pool, a burst of files simply
+ * queues up behind it. Outputs are published through an {@link OutputCommitter}, by default with group commit on
+ * every settle round, and an original is only deleted once its encrypted copy is durable. An output carries the
+ * modification time of the source it was made from, a file dropped again under the same name is encrypted again
+ * unless the output already matches it. Only the top level of the directory is watched
+ */
+public class FolderWatcher implements Closeable {
+    /**
+     * Times a file is retried when encryption fails, for example because the writer still holds a lock on it
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Path watchDirectory;
+    private final Path outputDirectory;
+    private final SecretKey key;
+    /**
+     * How long a file must stay unchanged before it is encrypted
+     */
+    private final Duration quietPeriod;
+    /**
+     * Delete the plain file once its encrypted copy is in place
+     */
+    private final boolean deleteSource;
+    /**
+     * Skip all-zero regions of the watched files
+     */
+    private volatile boolean sparse;
+    /**
+     * Chunk size of the integrity tree added to every output, 0 for none
+     */
+    private volatile int integrityChunkSize;
+    private final WatchService watchService;
+    /**
+     * Files seen by the watcher that have not settled yet, keyed by path so repeated events coalesce
+     */
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+    /**
+     * Files handed to the pool and not finished yet, events for them are ignored
+     */
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+    /**
+     * Files handed to the committer since the last commit, they stay in flight until committed
+     */
+    private final List<Path> uncommitted = new ArrayList<>();
+    private volatile OutputCommitter committer = new OutputCommitter(Durability.GROUP_COMMIT);
+    /**
+     * One task per settled file, it waits for the cipher pool and then publishes the output
+     */
+    private final ExecutorService workers;
+    /**
+     * Bounded pool the files are encrypted on, a burst of thousands of small files never runs more than the worker
+     * count of cipher loops at once
+     */
+    private final ExecutorService cipherPool;
+    /**
+     * Single thread that checks pending files for stability
+     */
+    private final ScheduledExecutorService settler;
+    private final Thread eventThread;
+    /**
+     * Shared throttle of all workers, may be null
+     */
+    private volatile RateLimiter rateLimiter;
+    private final AtomicLong encrypted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Snapshot of a pending file, the file is stable once a check sees the same size and time as the last one.
+     * The event thread resets lastChange while the settler reads and updates the rest
+     */
+    private static final class Pending {
+        volatile long size = -1;
+        volatile long modified = -1;
+        volatile long lastChange = System.nanoTime();
+        volatile int attempts;
+    }
+
+    /**
+     * @param watchDirectory directory files are dropped into
+     * @param outputDirectory directory encrypted files are written to, must not be the watched directory
+     * @param key the AES key every file is encrypted with
+     * @param workerCount number of files encrypted at once, see {@link AutoTuner#current()}
+     * @param quietPeriod how long a file must stay unchanged before it is encrypted
+     * @param deleteSource whether the plain file is deleted after it was encrypted
+     * @throws IOException if the directory can not be watched
+     */
+    public FolderWatcher(Path watchDirectory, Path outputDirectory, SecretKey key, int workerCount, Duration quietPeriod, boolean deleteSource) throws IOException {
+        if (!Files.isDirectory(watchDirectory)) {
+            throw new IllegalArgumentException("Watch directory does not exist: " + watchDirectory);
+        }
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be at least 1");
+        }
+        if (quietPeriod.isNegative() || quietPeriod.isZero()) {
+            throw new IllegalArgumentException("Quiet period must be positive");
+        }
+        this.watchDirectory = watchDirectory.toAbsolutePath().normalize();
+        this.outputDirectory = Files.createDirectories(outputDirectory).toAbsolutePath().normalize();
+        if (this.watchDirectory.equals(this.outputDirectory)) {
+            throw new IllegalArgumentException("Output directory must differ from the watched directory");
+        }
+        this.key = key;
+        this.quietPeriod = quietPeriod;
+        this.deleteSource = deleteSource;
+        this.watchService = this.watchDirectory.getFileSystem().newWatchService();
+        this.watchDirectory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        //without virtual threads twice the workers, so publishing finished files overlaps encrypting the next ones
+        this.workers = WorkExecutors.io("folder-watcher-file", workerCount * 2);
+        this.cipherPool = WorkExecutors.cpu("folder-watcher-worker", workerCount);
+        this.settler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "folder-watcher-settler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.eventThread = new Thread(this::pollEvents, "folder-watcher-events");
+        this.eventThread.setDaemon(true);
+    }
+
+    /**
+     * Queues the files already in the directory and starts watching for new ones
+     */
+    public void start() {
+        rescan();
+        long checkMillis = Math.max(50, quietPeriod.toMillis() / 2);
+        settler.scheduleWithFixedDelay(this::settle, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        eventThread.start();
+        System.out.println("watching " + watchDirectory + " -> " + outputDirectory);
+    }
+
+    /**
+     * @param sparse whether all-zero regions are skipped, see {@link AESEncryptor#setSparse(boolean)}
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * @param chunkSize chunk size of the integrity tree, see {@link AESEncryptor#setIntegrityChunkSize(int)}
+     */
+    public void setIntegrityChunkSize(int chunkSize) {
+        this.integrityChunkSize = chunkSize;
+    }
+
+    /**
+     * @param durability how outputs are made crash safe, group commit unless changed, call before {@link #start()}
+     */
+    public void setDurability(Durability durability) {
+        this.committer = new OutputCommitter(durability);
+    }
+
+    /**
+     * @param rateLimiter throttle shared by all workers, null for unlimited
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @return number of files encrypted since start
+     */
+    public long getEncryptedCount() {
+        return encrypted.get();
+    }
+
+    /**
+     * @return number of files given up on since start
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of settled files not encrypted because their output already matched them
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * @return number of files waiting to settle or being encrypted
+     */
+    public int getBacklog() {
+        return pending.size() + inFlight.size();
+    }
+
+    private void pollEvents() {
+        while (!closed) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    //events were dropped, the directory listing is the only reliable source now
+                    rescan();
+                    continue;
+                }
+                mark(watchDirectory.resolve((Path) event.context()));
+            }
+            if (!watchKey.reset()) {
+                System.err.println("watch directory is no longer accessible, stopping watcher");
+                return;
+            }
+        }
+    }
+
+    private void rescan() {
+        try (Stream<Path> files = Files.list(watchDirectory)) {
+            files.forEach(this::mark);
+        } catch (IOException e) {
+            System.err.println("failed to list watch directory");
+        }
+    }
+
+    /**
+     * Records activity on a file, resetting its quiet period
+     */
+    private void mark(Path path) {
+        if (inFlight.contains(path) || path.getFileName().toString().startsWith(".")) {
+            return;
+        }
+        pending.computeIfAbsent(path, ignored -> new Pending()).lastChange = System.nanoTime();
+    }
+
+    /**
+     * Hands every pending file that has stopped changing to the pool
+     */
+    private void settle() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Pending>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Pending> entry = iterator.next();
+            Path path = entry.getKey();
+            Pending state = entry.getValue();
+            if (now - state.lastChange < quietPeriod.toNanos()) {
+                continue;
+            }
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                //deleted or renamed before it settled
+                iterator.remove();
+                continue;
+            }
+            if (!attributes.isRegularFile()) {
+                iterator.remove();
+                continue;
+            }
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (attributes.size() != state.size || modified != state.modified) {
+                state.size = attributes.size();
+                state.modified = modified;
+                state.lastChange = now;
+                continue;
+            }
+            iterator.remove();
+            if (isEncrypted(path, modified)) {
+                skipped.incrementAndGet();
+                System.out.println("skipping " + path.getFileName() + ", already encrypted");
+                continue;
+            }
+            inFlight.add(path);
+            int attempts = state.attempts;
+            workers.execute(() -> process(path, modified, attempts));
+        }
+        commitStaged();
+    }
+
+    /**
+     * Commits everything the workers finished since the last round, files that fail to commit are picked up again
+     * by the next event or rescan since they leave the in flight set either way
+     */
+    private void commitStaged() {
+        List<Path> batch;
+        synchronized (uncommitted) {
+            batch = new ArrayList<>(uncommitted);
+            uncommitted.clear();
+        }
+        try {
+            committer.commit();
+        } catch (IOException e) {
+            System.err.println("group commit failed: " + e.getMessage());
+        }
+        batch.forEach(inFlight::remove);
+    }
+
+    /**
+     * @return true if the output exists and was made from a source with this modification time
+     */
+    private boolean isEncrypted(Path path, long modified) {
+        try {
+            return Files.getLastModifiedTime(outputFor(path)).toMillis() == modified;
+        } catch (IOException e) {
+            //no output yet
+            return false;
+        }
+    }
+
+    private void process(Path path, long modified, int attempts) {
+        try {
+            encryptFile(path, modified);
+            encrypted.incrementAndGet();
+            synchronized (uncommitted) {
+                uncommitted.add(path);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            inFlight.remove(path);
+            if (attempts + 1 < MAX_ATTEMPTS && !closed) {
+                System.err.println("failed to encrypt " + path.getFileName() + ", retrying");
+                Pending retry = new Pending();
+                retry.attempts = attempts + 1;
+                pending.putIfAbsent(path, retry);
+            } else {
+                System.err.println("giving up on " + path.getFileName() + ": " + e.getMessage());
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param modified modification time of the source when it settled, stamped on the output
+     */
+    private void encryptFile(Path path, long modified) throws IOException, GeneralSecurityException {
+        String name = path.getFileName().toString();
+        String extension = Utils.getFileExtension(name);
+        //files without an extension keep their whole name, Utils.getFileName would return an empty string
+        String baseName = extension.isEmpty() ? name : Utils.getFileName(name);
+        EncryptedFile file = new EncryptedFile(baseName, extension, EncryptedFile.EncryptionType.AES, path.toFile(), 0, null);
+        AESEncryptor encryptor = AESEncryptor.init(key);
+        //temp file next to the output so the final move is a rename
+        encryptor.setWorkDirectory(outputDirectory);
+        encryptor.setRateLimiter(rateLimiter);
+        encryptor.setSparse(sparse);
+        encryptor.setIntegrityChunkSize(integrityChunkSize);
+        PathPair<Path, Path> result = encryptOnCipherPool(encryptor, file);
+        //the settled time, not the current one, so a source changed while it was encrypted no longer matches its output
+        try {
+            Files.setLastModifiedTime(result.getFile(), FileTime.fromMillis(modified));
+        } catch (IOException e) {
+            Files.deleteIfExists(result.getFile());
+            throw e;
+        }
+        Path output = outputFor(path);
+        if (Files.exists(output)) {
+            System.out.println("replacing " + output.getFileName() + ", " + name + " changed since it was encrypted");
+        }
+        committer.publish(result.getFile(), output, true, () -> {
+            if (deleteSource) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.println("failed to delete original " + name);
+                }
+            }
+            System.out.println("encrypted " + name);
+        });
+    }
+
+    private PathPair<Path, Path> encryptOnCipherPool(AESEncryptor encryptor, EncryptedFile file) throws IOException, GeneralSecurityException {
+        try {
+            return WorkExecutors.callOn(cipherPool, () -> encryptor.encrypt(file));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the cipher pool");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof GeneralSecurityException securityException) {
+                throw securityException;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Path outputFor(Path path) {
+        return outputDirectory.resolve(path.getFileName().toString() + ".enc");
+    }
+
+    /**
+     * Stops watching, files already being encrypted are allowed to finish
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        settler.shutdownNow();
+        watchService.close();
+        eventThread.interrupt();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("folder watcher workers did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //every file task has finished, nothing can reach the cipher pool any more
+        cipherPool.shutdown();
+        commitStaged();
+    }
+}
@@ -0,0 +1,457 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+/**
+ * Persistent index of the headers of every .enc file below a directory, so archives can be searched by original
+ * name and batch decryption can be planned without opening every file. A refresh walks the tree, reuses entries
+ * whose size and modification time are unchanged and reads the headers of new or changed files in parallel.
+ * Files that are not valid encrypted files are remembered too so they are not re-read on every refresh.
+ * The index is stored in {@link Utils#getAppDirectory()}, one file per indexed directory
+ */
+public class HeaderIndex {
+    /**
+     * Extension of the files that are indexed
+     */
+    public static final String ENCRYPTED_EXTENSION = ".enc";
+    private static final int FORMAT_MAGIC = 0x45494458;
+    /**
+     * Version 2 added every header entry after the KDF ones, version 1 indexes are rebuilt
+     */
+    private static final int FORMAT_VERSION = 2;
+    /**
+     * Number of headers one worker reads per task, keeps task overhead small for trees of many tiny files
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private final Path root;
+    private final Path indexFile;
+    /**
+     * Entries keyed by absolute path
+     */
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Header data of one file, immutable
+     */
+    public static final class Entry {
+        private final Path path;
+        private final long size;
+        private final long modified;
+        /**
+         * False for .enc files whose header could not be read, all header fields are null then
+         */
+        private final boolean valid;
+        private final String fileName;
+        private final String fileType;
+        private final EncryptedFile.EncryptionType encryptionType;
+        private final long byteOffset;
+        private final String IV;
+        private final String kdfAlgorithm;
+        private final int kdfIterations;
+        private final boolean dedupManifest;
+        private final boolean sparse;
+        private final long plainLength;
+        private final byte[] plainDigest;
+        private final int integrityChunkSize;
+        private final byte[] integrityRoot;
+        private final String partSet;
+        private final int partIndex;
+        private final int partCount;
+        private final long partOffset;
+
+        /**
+         * @param header the header read from the file, null if it could not be read
+         */
+        private Entry(Path path, long size, long modified, EncryptedFile header) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.valid = header != null;
+            this.fileName = valid ? header.getFileName() : null;
+            this.fileType = valid ? header.getFileType() : null;
+            this.encryptionType = valid ? header.getEncryptionType() : null;
+            this.byteOffset = valid ? header.getByteOffset() : 0;
+            this.IV = valid ? header.getIV() : null;
+            this.kdfAlgorithm = valid ? header.getKdfAlgorithm() : null;
+            this.kdfIterations = valid ? header.getKdfIterations() : 0;
+            this.dedupManifest = valid && header.isDedupManifest();
+            this.sparse = valid && header.isSparse();
+            this.plainLength = valid ? header.getPlainLength() : -1;
+            this.plainDigest = valid && header.getPlainDigest() != null ? header.getPlainDigest().clone() : null;
+            this.integrityChunkSize = valid ? header.getIntegrityChunkSize() : 0;
+            this.integrityRoot = valid && header.getIntegrityRoot() != null ? header.getIntegrityRoot().clone() : null;
+            this.partSet = valid ? header.getPartSet() : null;
+            this.partIndex = valid ? header.getPartIndex() : 0;
+            this.partCount = valid ? header.getPartCount() : 0;
+            this.partOffset = valid ? header.getPartOffset() : 0;
+        }
+
+        private static Entry of(EncryptedFile file, long size, long modified) {
+            return new Entry(file.getFile().toPath().toAbsolutePath(), size, modified, file);
+        }
+
+        private static Entry invalid(Path path, long size, long modified) {
+            return new Entry(path, size, modified, null);
+        }
+
+        /**
+         * Reads the header entries {@link #write(DataOutputStream)} stored
+         * @throws IllegalArgumentException if a stored entry is out of range
+         */
+        private static Entry read(DataInputStream in, Path path, long size, long modified) throws IOException {
+            EncryptedFile header = new EncryptedFile(in.readUTF(), in.readUTF(), EncryptedFile.EncryptionType.valueOf(in.readUTF()), path.toFile(), in.readLong(), in.readUTF());
+            header.setKdfAlgorithm(in.readUTF());
+            header.setKdfIterations(in.readInt());
+            header.setDedupManifest(in.readBoolean());
+            header.setSparse(in.readBoolean());
+            header.setPlainLength(in.readLong());
+            header.setPlainDigest(readBytes(in));
+            int integrityChunkSize = in.readInt();
+            byte[] integrityRoot = readBytes(in);
+            if (integrityChunkSize > 0) {
+                header.setIntegrity(integrityChunkSize, integrityRoot);
+            }
+            if (in.readBoolean()) {
+                header.setPart(in.readUTF(), in.readInt(), in.readInt(), in.readLong());
+            }
+            return new Entry(path, size, modified, header);
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(fileName);
+            out.writeUTF(fileType);
+            out.writeUTF(encryptionType.name());
+            out.writeLong(byteOffset);
+            out.writeUTF(IV);
+            out.writeUTF(kdfAlgorithm);
+            out.writeInt(kdfIterations);
+            out.writeBoolean(dedupManifest);
+            out.writeBoolean(sparse);
+            out.writeLong(plainLength);
+            writeBytes(out, plainDigest);
+            out.writeInt(integrityChunkSize);
+            writeBytes(out, integrityRoot);
+            out.writeBoolean(partSet != null);
+            if (partSet != null) {
+                out.writeUTF(partSet);
+                out.writeInt(partIndex);
+                out.writeInt(partCount);
+                out.writeLong(partOffset);
+            }
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return last modification time in milliseconds since the epoch
+         */
+        public long getModified() {
+            return modified;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * @return name of the original file without its extension
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return extension of the original file including the dot
+         */
+        public String getFileType() {
+            return fileType;
+        }
+
+        public EncryptedFile.EncryptionType getEncryptionType() {
+            return encryptionType;
+        }
+
+        public long getByteOffset() {
+            return byteOffset;
+        }
+
+        /**
+         * Builds the same object {@link EncryptedFile#initRead(File)} would, every header entry included, without
+         * opening the file
+         * @return the encrypted file ready to be handed to a decryptor
+         * @throws IllegalStateException if this entry is not a valid encrypted file
+         */
+        public EncryptedFile toEncryptedFile() {
+            if (!valid) {
+                throw new IllegalStateException(path + " is not a valid encrypted file");
+            }
+            EncryptedFile file = new EncryptedFile(fileName, fileType, encryptionType, path.toFile(), byteOffset, IV);
+            file.setKdfAlgorithm(kdfAlgorithm);
+            file.setKdfIterations(kdfIterations);
+            file.setDedupManifest(dedupManifest);
+            file.setSparse(sparse);
+            file.setPlainLength(plainLength);
+            file.setPlainDigest(plainDigest == null ? null : plainDigest.clone());
+            if (integrityChunkSize > 0) {
+                file.setIntegrity(integrityChunkSize, integrityRoot.clone());
+            }
+            if (partSet != null) {
+                file.setPart(partSet, partIndex, partCount, partOffset);
+            }
+            return file;
+        }
+
+        @Override
+        public String toString() {
+            return valid ? fileName + fileType + " (" + encryptionType + ", " + size + " bytes) " + path : "invalid " + path;
+        }
+    }
+
+    private HeaderIndex(Path root, Path indexFile) {
+        this.root = root;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Loads the stored index of a directory, an index that is missing or unreadable starts out empty
+     * @param root directory to index
+     * @return the index, call {@link #refresh()} to bring it up to date
+     */
+    public static HeaderIndex open(Path root) {
+        Path absolute = root.toAbsolutePath().normalize();
+        HeaderIndex index = new HeaderIndex(absolute, Utils.getAppDirectory().resolve("index").resolve(indexName(absolute)));
+        index.load();
+        return index;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Walks the directory, re-reading headers of new or changed files in parallel, dropping entries of deleted
+     * files, and stores the result
+     * @return number of headers that had to be read
+     * @throws IOException if the directory can not be walked or the index can not be stored
+     */
+    public int refresh() throws IOException {
+        Map<Path, BasicFileAttributes> found = new HashMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && file.getFileName().toString().endsWith(ENCRYPTED_EXTENSION)) {
+                    found.put(file.toAbsolutePath(), attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exception) {
+                System.err.println("skipping unreadable path " + file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        entries.keySet().retainAll(found.keySet());
+        List<Path> stale = new ArrayList<>();
+        for (Map.Entry<Path, BasicFileAttributes> file : found.entrySet()) {
+            Entry entry = entries.get(file.getKey());
+            if (entry == null || entry.size != file.getValue().size() || entry.modified != file.getValue().lastModifiedTime().toMillis()) {
+                stale.add(file.getKey());
+            }
+        }
+        readHeaders(stale, found);
+        store();
+        return stale.size();
+    }
+
+    private void readHeaders(List<Path> paths, Map<Path, BasicFileAttributes> attributes) throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        //header reads are dominated by open and seek latency, more threads than cores keep the disk queue full
+        int threads = Math.min(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), (paths.size() + BATCH_SIZE - 1) / BATCH_SIZE);
+        ExecutorService executor = WorkExecutors.io("header-index", threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int start = 0; start < paths.size(); start += BATCH_SIZE) {
+                List<Path> batch = paths.subList(start, Math.min(paths.size(), start + BATCH_SIZE));
+                futures.add(executor.submit(() -> {
+                    for (Path path : batch) {
+                        BasicFileAttributes attribute = attributes.get(path);
+                        entries.put(path, readEntry(path, attribute.size(), attribute.lastModifiedTime().toMillis()));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading headers");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Entry readEntry(Path path, long size, long modified) {
+        try {
+            return Entry.of(EncryptedFile.initRead(path.toFile()), size, modified);
+        } catch (UnsupportedFileException | IOException | IllegalArgumentException e) {
+            return Entry.invalid(path, size, modified);
+        }
+    }
+
+    /**
+     * @return every valid entry
+     */
+    public List<Entry> getEntries() {
+        return filter(entry -> true);
+    }
+
+    /**
+     * @param predicate condition on valid entries
+     * @return matching entries sorted by path
+     */
+    public List<Entry> filter(Predicate<Entry> predicate) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.valid && predicate.test(entry)) {
+                result.add(entry);
+            }
+        }
+        result.sort(Comparator.comparing(Entry::getPath));
+        return result;
+    }
+
+    /**
+     * @param query text to look for, case insensitive
+     * @return entries whose original file name, including extension, contains the query
+     */
+    public List<Entry> search(String query) {
+        String needle = query.toLowerCase(Locale.ROOT);
+        return filter(entry -> (entry.fileName + entry.fileType).toLowerCase(Locale.ROOT).contains(needle));
+    }
+
+    private void load() {
+        if (!Files.isReadable(indexFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != FORMAT_MAGIC || in.readInt() != FORMAT_VERSION || !in.readUTF().equals(root.toString())) {
+                System.err.println("ignoring index written by another version or for another directory");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Path path = root.resolve(in.readUTF());
+                long size = in.readLong();
+                long modified = in.readLong();
+                if (in.readBoolean()) {
+                    entries.put(path, Entry.read(in, path, size, modified));
+                } else {
+                    entries.put(path, Entry.invalid(path, size, modified));
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("stored header index unreadable, rebuilding");
+            entries.clear();
+        }
+    }
+
+    /**
+     * Writes the index to a temp file and renames it over the old one, a crash never leaves a half written index
+     */
+    private void store() throws IOException {
+        Path directory = Files.createDirectories(indexFile.getParent());
+        Path temp = Files.createTempFile(directory, "index", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(FORMAT_MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(root.toString());
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(root.relativize(entry.path).toString());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeBoolean(entry.valid);
+                    if (entry.valid) {
+                        entry.write(out);
+                    }
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return bytes written by {@link #writeBytes(DataOutputStream, byte[])}, null if none were stored
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        //only digests and roots are stored this way
+        if (length > IntegrityTree.HASH_SIZE) {
+            throw new IOException("Stored entry is too long: " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return file name of the index of a directory, a hash of its path so any path maps to a valid name
+     */
+    private static String indexName(Path root) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(root.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16) + ".idx";
+        } catch (NoSuchAlgorithmException e) {
+            //every java platform ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merkle tree over the encrypted body of a file. Every chunk of cipher text gets an HMAC leaf, the leaves are stored
+ * after the body and the root of the tree is stored in the header. Checking a chunk only needs its own bytes and the
+ * leaf list, so a file is scrubbed in parallel without decrypting it, any byte range can be checked on its own and
+ * damage is reported per chunk.
+ * <p>
+ * Leaves are keyed with a key bound to the file's IV, so chunks and leaves of another file under the same key do not
+ * verify, and the root is a MAC under that key over the leaf count and the hash tree, so the root can not be
+ * recomputed without the key after leaves were swapped, added or dropped.
+ * <p>
+ * Layout after the body: the leaves one after the other followed by the leaf count as an int
+ * @see AESEncryptor#setIntegrityChunkSize(int)
+ */
+public final class IntegrityTree {
+    /**
+     * Header entry holding the chunk size, its presence marks a file with a tree
+     */
+    public static final String CHUNK_SIZE_HEADER = "Integrity";
+    /**
+     * Header entry holding the hex encoded root
+     */
+    public static final String ROOT_HEADER = "IntegrityRoot";
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    static final int HASH_SIZE = 32;
+    private static final String LEAF_MAC = "HmacSHA256";
+    /**
+     * Written into the header until the root is known, the same width as the root so it can be replaced in place
+     */
+    static final String ROOT_PLACEHOLDER = "0".repeat(2 * HASH_SIZE);
+
+    private IntegrityTree() {
+
+    }
+
+    /**
+     * @param key the key the body is encrypted with
+     * @param iv the IV of the file, unique per file and per part of a split file
+     * @return the leaf mac key of one file, separate from the key the body is encrypted with
+     */
+    private static SecretKeySpec leafKey(SecretKey key, byte[] iv) throws GeneralSecurityException {
+        Mac mac = CryptoProviders.mac(LEAF_MAC);
+        mac.init(new SecretKeySpec(key.getEncoded(), LEAF_MAC));
+        mac.update("encryptor-integrity-tree".getBytes(StandardCharsets.UTF_8));
+        //separator so label and IV boundaries can not be shifted
+        mac.update((byte) 0);
+        byte[] leafKey = mac.doFinal(iv);
+        SecretKeySpec spec = new SecretKeySpec(leafKey, LEAF_MAC);
+        Arrays.fill(leafKey, (byte) 0);
+        return spec;
+    }
+
+    /**
+     * The chunk index goes into every leaf so chunks can not be swapped without the tree noticing
+     */
+    private static void startLeaf(Mac mac, long index) {
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(index).flip());
+    }
+
+    /**
+     * Interior nodes are plain SHA-256, the leaves are already keyed. Leaf and node inputs differ in their first byte
+     * so a node can not pass as a leaf. An odd node at the end of a level moves up unchanged. The top of the tree and
+     * the leaf count then go through the leaf mac, so only the key holder can produce a root
+     * @param mac mac initialised with the leaf key of the file, it is reset on return
+     */
+    static byte[] root(List<byte[]> leaves, Mac mac) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    parents.add(level.get(i));
+                    continue;
+                }
+                digest.update((byte) 1);
+                digest.update(level.get(i));
+                parents.add(digest.digest(level.get(i + 1)));
+            }
+            level = parents;
+        }
+        mac.update((byte) 2);
+        mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(leaves.size()).flip());
+        return mac.doFinal(level.get(0));
+    }
+
+    /**
+     * Builds the leaves while the body is written, every byte written through it is passed on to the output channel
+     */
+    static final class Builder implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private final int chunkSize;
+        /**
+         * Own instance, the pooled mac of this thread is used by sparse mode while a chunk is still open
+         */
+        private final Mac mac;
+        private final List<byte[]> leaves = new ArrayList<>();
+        /**
+         * Bytes of the current chunk passed through so far
+         */
+        private int filled;
+
+        Builder(WritableByteChannel channel, SecretKey key, byte[] iv, int chunkSize) throws GeneralSecurityException {
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.mac = Mac.getInstance(LEAF_MAC);
+            this.mac.init(leafKey(key, iv));
+            startLeaf(mac, 0);
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            ByteBuffer pending = source.duplicate();
+            while (pending.hasRemaining()) {
+                int take = Math.min(chunkSize - filled, pending.remaining());
+                mac.update(pending.slice(pending.position(), take));
+                pending.position(pending.position() + take);
+                filled += take;
+                if (filled == chunkSize) {
+                    leaves.add(mac.doFinal());
+                    startLeaf(mac, leaves.size());
+                    filled = 0;
+                }
+            }
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            return length;
+        }
+
+        /**
+         * Closes the last chunk, appends the leaves and writes the root into the header placeholder
+         * @param output the output file, positioned at the end of the body
+         * @param rootPosition offset of {@link #ROOT_PLACEHOLDER} in the output
+         * @return the root
+         */
+        byte[] finish(FileChannel output, long rootPosition) throws IOException, GeneralSecurityException {
+            if (filled > 0 || leaves.isEmpty()) {
+                leaves.add(mac.doFinal());
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(leaves.size() * HASH_SIZE + Integer.BYTES);
+            for (byte[] leaf : leaves) {
+                trailer.put(leaf);
+            }
+            trailer.putInt(leaves.size()).flip();
+            while (trailer.hasRemaining()) {
+                output.write(trailer);
+            }
+            byte[] root = root(leaves, mac);
+            ByteBuffer hex = ByteBuffer.wrap(HexFormat.of().formatHex(root).getBytes(StandardCharsets.US_ASCII));
+            while (hex.hasRemaining()) {
+                rootPosition += output.write(hex, rootPosition);
+            }
+            Metrics.counter("integrity.leaves.written").add(leaves.size());
+            return root;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return size in bytes of the leaf list and count at the end of the file, 0 if the file has no tree
+     * @throws IOException if the stored leaf count does not fit the size of the file
+     */
+    static long trailerLength(SharedReadChannels.Handle channel, EncryptedFile file) throws IOException {
+        if (!file.hasIntegrityTree()) {
+            return 0;
+        }
+        long size = channel.size();
+        if (size - file.getByteOffset() < Integer.BYTES) {
+            throw new EOFException("File is missing its integrity tree");
+        }
+        ByteBuffer count = ByteBuffer.allocate(Integer.BYTES);
+        channel.readFully(count, size - Integer.BYTES);
+        int leafCount = count.flip().getInt();
+        long length = (long) leafCount * HASH_SIZE + Integer.BYTES;
+        long bodyLength = size - length - file.getByteOffset();
+        if (leafCount < 1 || bodyLength < 0 || leafCount != Math.max(1, (bodyLength + file.getIntegrityChunkSize() - 1) / file.getIntegrityChunkSize())) {
+            throw new IOException("Integrity tree leaf count does not match the file size");
+        }
+        return length;
+    }
+
+    /**
+     * @param bodyLength size in bytes of the encrypted body the tree covers
+     * @param chunkSize size of the chunks hashed into the leaves
+     * @return size in bytes of the leaf list and count the builder will append
+     */
+    static long trailerLength(long bodyLength, int chunkSize) {
+        return Math.max(1, (bodyLength + chunkSize - 1) / chunkSize) * HASH_SIZE + Integer.BYTES;
+    }
+
+    /**
+     * Checks the chunks overlapping a range of the body against the stored leaves and the stored leaves against the
+     * root in the header, several chunks at once
+     * @param file a file written with an integrity tree
+     * @param key the key the file was encrypted with
+     * @param offset start of the range in the encrypted body, for files not written in sparse mode this is also the
+     * offset in the plain file rounded down to the cipher block
+     * @param length length of the range, Long.MAX_VALUE for the rest of the body
+     * @param rateLimiter throttle on the bytes read, may be null
+     * @return which chunks are damaged
+     * @throws IllegalArgumentException if the file has no integrity tree
+     * @throws IOException if the file can not be read or its tree is cut short
+     * @throws GeneralSecurityException if the mac is not available
+     */
+    static Report verify(EncryptedFile file, SecretKey key, long offset, long length, RateLimiter rateLimiter) throws IOException, GeneralSecurityException {
+        if (!file.hasIntegrityTree()) {
+            throw new IllegalArgumentException("File was not written with an integrity tree");
+        }
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Range can not be negative");
+        }
+        int chunkSize = file.getIntegrityChunkSize();
+        try (SharedReadChannels.Handle channel = SharedReadChannels.shared().open(file.getFile().toPath())) {
+            CryptoEvents.CipherLoop event = new CryptoEvents.CipherLoop("integrity-verify", file.getFile().getName(), chunkSize).start();
+            long trailerLength = trailerLength(channel, file);
+            long bodyStart = file.getByteOffset();
+            long bodyEnd = channel.size() - trailerLength;
+            int leafCount = (int) ((trailerLength - Integer.BYTES) / HASH_SIZE);
+            ByteBuffer stored = ByteBuffer.allocate(leafCount * HASH_SIZE);
+            channel.lock(bodyEnd, trailerLength);
+            channel.readFully(stored, bodyEnd);
+            stored.flip();
+            List<byte[]> leaves = new ArrayList<>(leafCount);
+            for (int i = 0; i < leafCount; i++) {
+                byte[] leaf = new byte[HASH_SIZE];
+                stored.get(leaf);
+                leaves.add(leaf);
+            }
+            SecretKeySpec leafKey = leafKey(key, Arrays.copyOf(Utils.decodeBase64(file.getIV()), AESEncryptor.IV_SIZE));
+            Mac rootMac = Mac.getInstance(LEAF_MAC);
+            rootMac.init(leafKey);
+            boolean treeIntact = MessageDigest.isEqual(root(leaves, rootMac), file.getIntegrityRoot());
+            long bodyLength = bodyEnd - bodyStart;
+            long rangeEnd = length > bodyLength - Math.min(offset, bodyLength) ? bodyLength : offset + length;
+            //an empty range still checks the chunk it points into
+            int first = (int) Math.min(leafCount - 1, offset / chunkSize);
+            int last = rangeEnd <= offset ? first : (int) Math.min(leafCount - 1, (rangeEnd - 1) / chunkSize);
+            int chunkCount = last - first + 1;
+            channel.lock(bodyStart + (long) first * chunkSize, (long) chunkCount * chunkSize);
+            int workers = Math.min(chunkCount, AutoTuner.current().getWorkerCount());
+            AtomicInteger next = new AtomicInteger(first);
+            List<Integer> damaged = Collections.synchronizedList(new ArrayList<>());
+            ExecutorService executor = newVerifyExecutor(workers);
+            try {
+                List<Future<Long>> futures = new ArrayList<>(workers);
+                for (int i = 0; i < workers; i++) {
+                    //workers pull the next chunk index so slow chunks do not hold up a fixed share
+                    futures.add(executor.submit(() -> {
+                        Mac mac = Mac.getInstance(LEAF_MAC);
+                        mac.init(leafKey);
+                        long bytes = 0;
+                        try (BufferPool.Lease lease = BufferPool.shared().acquire(chunkSize, Math.min(chunkSize, TuningProfile.MIN_BUFFER_SIZE))) {
+                            ByteBuffer buffer = lease.buffer();
+                            int index;
+                            while ((index = next.getAndIncrement()) <= last) {
+                                long position = bodyStart + (long) index * chunkSize;
+                                long chunkEnd = Math.min(bodyEnd, position + chunkSize);
+                                startLeaf(mac, index);
+                                while (position < chunkEnd) {
+                                    buffer.clear();
+                                    buffer.limit((int) Math.min(buffer.capacity(), chunkEnd - position));
+                                    channel.readFully(buffer, position);
+                                    if (rateLimiter != null) {
+                                        rateLimiter.acquire(buffer.limit());
+                                    }
+                                    position += buffer.limit();
+                                    bytes += buffer.limit();
+                                    mac.update(buffer.flip());
+                                }
+                                if (!MessageDigest.isEqual(mac.doFinal(), leaves.get(index))) {
+                                    damaged.add(index);
+                                }
+                            }
+                        }
+                        return bytes;
+                    }));
+                }
+                long bytes = 0;
+                for (Future<Long> future : futures) {
+                    bytes += future.get();
+                }
+                Collections.sort(damaged);
+                Metrics.counter("integrity.chunks.verified").add(chunkCount);
+                Metrics.counter("integrity.chunks.damaged").add(damaged.size());
+                event.finish(bytes);
+                return new Report(chunkSize, bodyLength, first, chunkCount, treeIntact, damaged);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while verifying chunks");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException ioException) {
+                    throw ioException;
+                }
+                if (cause instanceof GeneralSecurityException securityException) {
+                    throw securityException;
+                }
+                if (cause instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw new IOException(cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static ExecutorService newVerifyExecutor(int workers) {
+        return WorkExecutors.cpu("integrity-verify", workers);
+    }
+
+    /**
+     * Outcome of {@link AESEncryptor#verifyIntegrity(EncryptedFile, long, long)}
+     */
+    public static final class Report {
+        private final int chunkSize;
+        private final long bodyLength;
+        private final int firstChunk;
+        private final int chunksChecked;
+        private final boolean treeIntact;
+        private final List<Integer> damagedChunks;
+
+        private Report(int chunkSize, long bodyLength, int firstChunk, int chunksChecked, boolean treeIntact, List<Integer> damagedChunks) {
+            this.chunkSize = chunkSize;
+            this.bodyLength = bodyLength;
+            this.firstChunk = firstChunk;
+            this.chunksChecked = chunksChecked;
+            this.treeIntact = treeIntact;
+            this.damagedChunks = List.copyOf(damagedChunks);
+        }
+
+        /**
+         * @return true if the stored leaves match the root and every checked chunk matches its leaf
+         */
+        public boolean isIntact() {
+            return treeIntact && damagedChunks.isEmpty();
+        }
+
+        /**
+         * @return false if the leaf list at the end of the file or the root in the header was changed, the chunk
+         * results can not be trusted then
+         */
+        public boolean isTreeIntact() {
+            return treeIntact;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getFirstChunk() {
+            return firstChunk;
+        }
+
+        public int getChunksChecked() {
+            return chunksChecked;
+        }
+
+        /**
+         * @return indexes of the chunks that do not match their leaf, in ascending order
+         */
+        public List<Integer> getDamagedChunks() {
+            return damagedChunks;
+        }
+
+        /**
+         * @return start and end offsets in the encrypted body of every damaged region, neighbouring chunks are merged
+         */
+        public List<long[]> getDamagedRanges() {
+            List<long[]> ranges = new ArrayList<>();
+            for (int index : damagedChunks) {
+                long start = (long) index * chunkSize;
+                long end = Math.min(bodyLength, start + chunkSize);
+                if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] == start) {
+                    ranges.get(ranges.size() - 1)[1] = end;
+                } else {
+                    ranges.add(new long[]{start, end});
+                }
+            }
+            return ranges;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(chunksChecked).append(" chunks checked, ");
+            if (!treeIntact) {
+                builder.append("tree does not match its root, ");
+            }
+            if (damagedChunks.isEmpty()) {
+                builder.append("no damaged chunks");
+            } else {
+                builder.append(damagedChunks.size()).append(" damaged:");
+                for (long[] range : getDamagedRanges()) {
+                    builder.append(" bytes ").append(range[0]).append('-').append(range[1]);
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A unit of work run by a {@link JobQueue}, usually one file being encrypted or decrypted
+ * @param <T> type of the result, ie the PathPair of an encryption or the Path of a decryption
+ */
+public class Job<T> implements Comparable<Job<?>> {
+    public enum Kind {ENCRYPT, DECRYPT}
+
+    /**
+     * Jobs of a higher priority are started first, jobs of the same priority run in submission order
+     */
+    public enum Priority {HIGH, NORMAL, LOW}
+
+    public enum State {QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED}
+
+    /**
+     * The actual work of a job, implementations should call {@link Job#attach(Encryptor)} on the encryptor they use
+     * @param <T> type of the result
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        T execute(Job<T> job) throws Exception;
+    }
+
+    /**
+     * Minimum change in progress before listeners are notified, keeps the GUI from being flooded by small buffers
+     */
+    private static final double PROGRESS_STEP = 0.005;
+    /**
+     * Used to keep submission order between jobs of equal priority
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final String name;
+    private final Kind kind;
+    private final Priority priority;
+    private final Work<T> work;
+    private final long sequence = SEQUENCE.getAndIncrement();
+    /**
+     * Bytes of memory this job is expected to hold while running, reserved against the queue's budget
+     */
+    private final long memoryEstimate;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final List<Consumer<Job<?>>> listeners = new CopyOnWriteArrayList<>();
+    private volatile State state = State.QUEUED;
+    /**
+     * Fraction between 0 and 1, or -1 while unknown
+     */
+    private volatile double progress = -1;
+    private volatile Thread runner;
+    /**
+     * Exception thrown by the work, null unless the job failed
+     */
+    private volatile Throwable failure;
+    /**
+     * Cap of this job alone, unlimited until changed. The queue puts it under its own limiter on submission
+     */
+    private final RateLimiter rateLimiter = RateLimiter.unlimited();
+
+    /**
+     * @param name name shown to the user, usually the file name
+     * @param kind whether the job encrypts or decrypts
+     * @param priority scheduling priority
+     * @param memoryEstimate bytes the job holds while running
+     * @param work the work to run
+     */
+    public Job(String name, Kind kind, Priority priority, long memoryEstimate, Work<T> work) {
+        this.name = name;
+        this.kind = kind;
+        this.priority = priority;
+        this.memoryEstimate = memoryEstimate;
+        this.work = work;
+    }
+
+    /**
+     * Creates a job whose memory estimate is the read and write buffer of the current tuning profile
+     */
+    public Job(String name, Kind kind, Priority priority, Work<T> work) {
+        this(name, kind, priority, 2L * AutoTuner.current().getBufferSize(), work);
+    }
+
+    /**
+     * Hooks the encryptor up to this job's progress reporting and I/O throttling
+     * @param encryptor the encryptor used by the work of this job
+     */
+    public void attach(Encryptor encryptor) {
+        encryptor.setProgressListener(this::reportProgress);
+        encryptor.setRateLimiter(rateLimiter);
+    }
+
+    /**
+     * Updates the progress of the job, listeners are only told about changes of at least half a percent
+     */
+    public void reportProgress(long bytesDone, long bytesTotal) {
+        if (bytesTotal <= 0) {
+            return;
+        }
+        double next = Math.min(1.0, (double) bytesDone / bytesTotal);
+        if (progress < 0 || next - progress >= PROGRESS_STEP || next == 1.0) {
+            progress = next;
+            notifyListeners();
+        }
+    }
+
+    /**
+     * Cancels the job, a queued job never starts and a running job is interrupted
+     * @return false if the job had already finished
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            if (state == State.SUCCEEDED || state == State.FAILED || state == State.CANCELLED) {
+                return false;
+            }
+            if (state == State.RUNNING && runner != null) {
+                runner.interrupt();
+            }
+            state = State.CANCELLED;
+        }
+        result.completeExceptionally(new CancellationException("Job cancelled: " + name));
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Runs the work on the calling thread, called by the queue
+     */
+    void run() {
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                return;
+            }
+            state = State.RUNNING;
+            runner = Thread.currentThread();
+        }
+        notifyListeners();
+        try {
+            T value = work.execute(this);
+            synchronized (this) {
+                runner = null;
+                if (state == State.CANCELLED) {
+                    return;
+                }
+                state = State.SUCCEEDED;
+                progress = 1.0;
+            }
+            result.complete(value);
+        } catch (Exception e) {
+            synchronized (this) {
+                runner = null;
+                if (state == State.CANCELLED) {
+                    return;
+                }
+                state = State.FAILED;
+                failure = e;
+            }
+            result.completeExceptionally(e);
+        } finally {
+            //clear an interrupt from a cancel so it does not leak into the next job on this worker
+            Thread.interrupted();
+            notifyListeners();
+        }
+    }
+
+    /**
+     * @param queueLimiter limiter shared by the jobs of the queue, this job's bytes count against both
+     */
+    void setQueueLimiter(RateLimiter queueLimiter) {
+        rateLimiter.setParent(queueLimiter);
+    }
+
+    /**
+     * @return the limiter of this job alone, its rate can be changed while the job runs
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void addListener(Consumer<Job<?>> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Job<?>> listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners() {
+        for (Consumer<Job<?>> listener : listeners) {
+            listener.accept(this);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return fraction between 0 and 1, or -1 while unknown
+     */
+    public double getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return the exception thrown by the work, or null if the job did not fail
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public long getMemoryEstimate() {
+        return memoryEstimate;
+    }
+
+    /**
+     * @return future completed with the result of the work, or exceptionally if it failed or was cancelled
+     */
+    public CompletableFuture<T> getResult() {
+        return result;
+    }
+
+    public boolean isDone() {
+        State current = state;
+        return current == State.SUCCEEDED || current == State.FAILED || current == State.CANCELLED;
+    }
+
+    @Override
+    public int compareTo(Job<?> other) {
+        int byPriority = priority.compareTo(other.priority);
+        return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+    }
+
+    @Override
+    public String toString() {
+        return "Job{" +
+                "name='" + name + '\'' +
+                ", kind=" + kind +
+                ", priority=" + priority +
+                ", state=" + state +
+                ", progress=" + progress +
+                '}';
+    }
+}
@@ -0,0 +1,196 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs encrypt and decrypt jobs in priority order with a configurable number of jobs at once. Running jobs share a
+ * memory budget, a job waits for its memory to be free before it starts, and a single rate limiter so a long queue
+ * of jobs can not saturate the disk
+ */
+public class JobQueue {
+    /**
+     * Memory budget of the shared queue when none is given
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+    /**
+     * Queue shared by the controllers, created on first use
+     */
+    private static JobQueue shared;
+
+    /**
+     * Executor that pulls jobs out of a priority queue
+     */
+    private final ThreadPoolExecutor executor;
+    /**
+     * Memory budget in kilobytes, semaphores only deal in int permits
+     */
+    private final Semaphore memory;
+    private final int memoryBudgetKb;
+    /**
+     * Limiter shared by every job of this queue
+     */
+    private final RateLimiter rateLimiter;
+    /**
+     * All jobs ever submitted that have not been cleared, in submission order
+     */
+    private final List<Job<?>> jobs = new CopyOnWriteArrayList<>();
+    /**
+     * Notified when a job is added, changes state or makes progress
+     */
+    private final List<Consumer<Job<?>>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param concurrency number of jobs that may run at once
+     * @param memoryBudget total bytes running jobs may reserve
+     * @param bytesPerSecond I/O cap shared by all jobs, zero or below for unlimited
+     */
+    public JobQueue(int concurrency, long memoryBudget, long bytesPerSecond) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        this.memoryBudgetKb = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget / 1024));
+        this.memory = new Semaphore(memoryBudgetKb, true);
+        this.rateLimiter = new RateLimiter(bytesPerSecond);
+        //jobs are cipher work, platform threads keep their ciphers warm between jobs
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), WorkExecutors.platformThreads("job-queue"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the queue used by the GUI, sized from the tuning profile
+     */
+    public static synchronized JobQueue shared() {
+        if (shared == null) {
+            shared = new JobQueue(AutoTuner.current().getWorkerCount(), DEFAULT_MEMORY_BUDGET, 0);
+        }
+        return shared;
+    }
+
+    /**
+     * Queues a job, it starts once a worker and enough of the memory budget are free
+     * @param job the job to run
+     * @return the same job, for chaining
+     */
+    public <T> Job<T> submit(Job<T> job) {
+        job.setQueueLimiter(rateLimiter);
+        job.addListener(this::notifyListeners);
+        jobs.add(job);
+        notifyListeners(job);
+        executor.execute(new QueuedJob(job));
+        return job;
+    }
+
+    /**
+     * Changes how many jobs run at once, running jobs are not affected
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        //order matters, core size may never be above max size
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    public int getConcurrency() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return the limiter shared by all jobs, its rate can be changed at any time
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return snapshot of all jobs in submission order
+     */
+    public List<Job<?>> getJobs() {
+        return new ArrayList<>(jobs);
+    }
+
+    /**
+     * Removes finished jobs from the job list
+     */
+    public void clearFinished() {
+        jobs.removeIf(Job::isDone);
+    }
+
+    public void addListener(Consumer<Job<?>> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Job<?>> listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners(Job<?> job) {
+        for (Consumer<Job<?>> listener : listeners) {
+            listener.accept(job);
+        }
+    }
+
+    /**
+     * Wrapper that makes the job orderable inside the executor's priority queue and holds its memory reservation while it runs
+     */
+    private final class QueuedJob implements Runnable, Comparable<QueuedJob> {
+        private final Job<?> job;
+
+        private QueuedJob(Job<?> job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            if (job.isDone()) {
+                return;
+            }
+            //a job bigger than the whole budget still runs, it just runs alone
+            int permits = (int) Math.min(memoryBudgetKb, Math.max(1, job.getMemoryEstimate() / 1024));
+            try {
+                memory.acquire(permits);
+            } catch (InterruptedException e) {
+                job.cancel();
+                return;
+            }
+            try {
+                job.run();
+            } finally {
+                memory.release(permits);
+            }
+        }
+
+        @Override
+        public int compareTo(QueuedJob other) {
+            return job.compareTo(other.job);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Picks a PBKDF2 iteration count that takes roughly a target amount of time on the current machine, the result can
+ * be passed to {@link AESEncryptor#init(String, int)} and is recorded in the header so any machine can decrypt the file.
+ * Password encryption in the GUI and the daemon uses {@link #current()}, the target can be set with the
+ * encryptor.kdfTargetMs system property
+ */
+public final class KdfCalibrator {
+    /**
+     * Derivation time aimed for when no target is given
+     */
+    public static final Duration DEFAULT_TARGET = Duration.ofMillis(250);
+    public static final String TARGET_PROPERTY = "encryptor.kdfTargetMs";
+    /**
+     * Iterations used for each timing probe, large enough to dwarf setup cost and small enough to stay quick
+     */
+    private static final int PROBE_ITERATIONS = 10000;
+    /**
+     * Timed probes stop once this many in a row did not beat the fastest one, PBKDF2 keeps getting faster for a while
+     * as the jit compiles the hmac loop and an early probe would undercount the iterations
+     */
+    private static final int STABLE_PROBES = 10;
+    /**
+     * How long probing may take if the timings never settle
+     */
+    private static final long MAX_PROBE_NANOS = Duration.ofSeconds(3).toNanos();
+    /**
+     * A probe has to be this much faster than the fastest so far to count as an improvement
+     */
+    private static final double IMPROVEMENT = 0.05;
+
+    /**
+     * Iteration count calibrated by {@link #current()}, 0 until the first call
+     */
+    private static int current;
+
+    private KdfCalibrator() {
+
+    }
+
+    /**
+     * Calibrates once per process against the encryptor.kdfTargetMs target or {@link #DEFAULT_TARGET}
+     * @return iteration count new password encrypted files should use on this machine, the old fixed count if
+     * calibration can not run
+     */
+    public static synchronized int current() {
+        if (current == 0) {
+            Duration target = DEFAULT_TARGET;
+            try {
+                String targetMillis = System.getProperty(TARGET_PROPERTY);
+                if (targetMillis != null) {
+                    target = Duration.ofMillis(Long.parseLong(targetMillis));
+                }
+                current = calibrate(target);
+                if (targetMillis == null) {
+                    //the default target never weakens new files below the count every file used before calibration
+                    current = Math.max(current, AESEncryptor.PBKDF2_ITER_COUNT);
+                }
+                System.out.println("calibrated " + current + " kdf iterations for " + target.toMillis() + " ms");
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException | IllegalArgumentException e) {
+                System.err.println("kdf calibration failed, using " + AESEncryptor.PBKDF2_ITER_COUNT + " iterations");
+                current = AESEncryptor.PBKDF2_ITER_COUNT;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return iteration count for {@link #DEFAULT_TARGET}
+     * @see #calibrate(Duration)
+     */
+    public static int calibrate() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return calibrate(DEFAULT_TARGET);
+    }
+
+    /**
+     * Times a few short derivations and scales the iteration count to the target time
+     * @param target how long one key derivation should take on this machine
+     * @return iteration count rounded down to the nearest thousand and clamped to the range accepted by AESEncryptor
+     */
+    public static int calibrate(Duration target) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        if (target.isNegative() || target.isZero()) {
+            throw new IllegalArgumentException("Target duration must be positive");
+        }
+        byte[] salt = new byte[16];
+        CryptoProviders.secureRandom().nextBytes(salt);
+        //first run loads the provider, it is not timed
+        Arrays.fill(AESEncryptor.deriveKey("calibration", salt, AESEncryptor.PBKDF2_NAME, PROBE_ITERATIONS), (byte) 0);
+        long fastest = Long.MAX_VALUE;
+        int stable = 0;
+        long deadline = System.nanoTime() + MAX_PROBE_NANOS;
+        while (stable < STABLE_PROBES && System.nanoTime() - deadline < 0) {
+            long start = System.nanoTime();
+            byte[] key = AESEncryptor.deriveKey("calibration", salt, AESEncryptor.PBKDF2_NAME, PROBE_ITERATIONS);
+            long elapsed = System.nanoTime() - start;
+            Arrays.fill(key, (byte) 0);
+            stable = elapsed < fastest * (1 - IMPROVEMENT) ? 0 : stable + 1;
+            fastest = Math.min(fastest, elapsed);
+        }
+        double nanosPerIteration = Math.max(1.0, (double) fastest / PROBE_ITERATIONS);
+        long iterations = (long) (target.toNanos() / nanosPerIteration);
+        iterations = iterations / 1000 * 1000;
+        return (int) Math.max(AESEncryptor.MIN_KDF_ITERATIONS, Math.min(AESEncryptor.MAX_KDF_ITERATIONS, iterations));
+    }
+}
@@ -0,0 +1,221 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Derives password based decryption keys for a batch of files in parallel, each worker runs PBKDF2 for one
+ * password and salt pair at a time so a folder of files takes roughly one derivation per core instead of one per file.
+ * Keys are looked up in and added to {@link DerivedKeyCache#shared()}, files that share a password and salt like the
+ * parts of a split file wait for the first derivation and then take its key from the cache instead of deriving it again.
+ * No lock is held while PBKDF2 runs, so derivations of different salts always run side by side
+ */
+public class KeyDerivationService implements AutoCloseable {
+    /**
+     * Service used by the GUI, created on first use
+     */
+    private static KeyDerivationService shared;
+
+    /**
+     * Pool that runs the derivations, sized to the cpu count by default since PBKDF2 is purely cpu bound
+     */
+    private final ExecutorService executor;
+    /**
+     * Derivations running or queued, by the {@link DerivedKeyCache} lookup id of their password, salt and KDF
+     * parameters. The future completes once the key is in the cache or the derivation failed
+     */
+    private final ConcurrentHashMap<ByteBuffer, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a service with one worker per available processor
+     */
+    public KeyDerivationService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of derivations that may run at once
+     */
+    public KeyDerivationService(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        //pbkdf2 is pure cpu work, derivations beyond the thread count queue
+        this.executor = WorkExecutors.cpu("key-derivation", threads);
+    }
+
+    /**
+     * @return the service used by the GUI, one worker per available processor
+     */
+    public static synchronized KeyDerivationService shared() {
+        if (shared == null) {
+            shared = new KeyDerivationService();
+        }
+        return shared;
+    }
+
+    /**
+     * Queues a single derivation
+     * @param password the password used during encryption
+     * @param file the file whose header holds the IV, salt and KDF parameters
+     * @return future that completes with an AESEncryptor ready for decryption
+     */
+    public Future<AESEncryptor> submit(String password, EncryptedFile file) {
+        CompletableFuture<AESEncryptor> result = new CompletableFuture<>();
+        ByteBuffer id = derivationId(password, file);
+        if (id == null) {
+            run(password, file, result, () -> { });
+            return result;
+        }
+        CompletableFuture<Void> derived = new CompletableFuture<>();
+        CompletableFuture<Void> running = inFlight.putIfAbsent(id, derived);
+        if (running == null) {
+            run(password, file, result, () -> {
+                inFlight.remove(id, derived);
+                derived.complete(null);
+            });
+        } else {
+            //the key is in the cache once the running derivation is done, if it failed this one derives on its own
+            running.whenComplete((ignored, error) -> run(password, file, result, () -> { }));
+        }
+        return result;
+    }
+
+    /**
+     * Runs init_password on the pool unless the result was cancelled while queued
+     * @param result completed with the encryptor or the failure
+     * @param done run once the derivation finished, failed or was skipped
+     */
+    private void run(String password, EncryptedFile file, CompletableFuture<AESEncryptor> result, Runnable done) {
+        try {
+            executor.execute(() -> {
+                try {
+                    if (!result.isDone()) {
+                        result.complete(AESEncryptor.init_password(password, file));
+                    }
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    done.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            done.run();
+        }
+    }
+
+    /**
+     * Derives the key of one file on the pool and waits for it, keeps PBKDF2 off the calling thread's core budget
+     * and lets it share a derivation already running for the same salt
+     * @param password the password used during encryption
+     * @param file the file whose header holds the IV, salt and KDF parameters
+     * @return an AESEncryptor ready for decryption
+     * @throws GeneralSecurityException if the derivation fails
+     * @throws InterruptedException if the calling thread is interrupted while waiting, the derivation is then cancelled
+     */
+    public AESEncryptor derive(String password, EncryptedFile file) throws GeneralSecurityException, InterruptedException {
+        return await(submit(password, file));
+    }
+
+    /**
+     * @param future a derivation returned by {@link #submit(String, EncryptedFile)}
+     * @return its AESEncryptor
+     * @throws GeneralSecurityException if the derivation failed
+     * @throws InterruptedException if the calling thread is interrupted while waiting, the derivation is then cancelled
+     */
+    public static AESEncryptor await(Future<AESEncryptor> future) throws GeneralSecurityException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException securityException) {
+                throw securityException;
+            }
+            throw new GeneralSecurityException(e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the cache lookup id of the password, salt and KDF parameters of the file, the salt is the part of the IV
+     * header field after the IV. Null if no id can be made, the derivation then runs without sharing
+     */
+    private static ByteBuffer derivationId(String password, EncryptedFile file) {
+        if (password == null) {
+            return null;
+        }
+        String iv = file.getIV();
+        byte[] ivAndSalt = iv == null ? new byte[0] : Utils.decodeBase64(iv);
+        byte[] salt = ivAndSalt.length > AESEncryptor.IV_SIZE ? Arrays.copyOfRange(ivAndSalt, AESEncryptor.IV_SIZE, ivAndSalt.length) : ivAndSalt;
+        return DerivedKeyCache.shared().lookupId(password, salt, file.getKdfAlgorithm(), file.getKdfIterations());
+    }
+
+    /**
+     * Derives the keys of every file using the same password, blocking until all derivations are done
+     * @param password the password used during encryption of the files
+     * @param files files read through {@link EncryptedFile#initRead(java.io.File)}, all must be AES encrypted
+     * @return decryptors in the same order as the given files
+     * @throws GeneralSecurityException if any derivation fails
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public List<AESEncryptor> deriveAll(String password, List<EncryptedFile> files) throws GeneralSecurityException, InterruptedException {
+        List<Future<AESEncryptor>> futures = new ArrayList<>(files.size());
+        for (EncryptedFile file : files) {
+            if (file.getEncryptionType() != EncryptedFile.EncryptionType.AES) {
+                futures.forEach(future -> future.cancel(true));
+                throw new IllegalArgumentException("File: " + file.getFile().getName() + " is not AES encrypted");
+            }
+            futures.add(submit(password, file));
+        }
+        List<AESEncryptor> encryptors = new ArrayList<>(files.size());
+        try {
+            for (Future<AESEncryptor> future : futures) {
+                encryptors.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof GeneralSecurityException securityException) {
+                throw securityException;
+            }
+            throw new GeneralSecurityException(e.getCause());
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw e;
+        }
+        return encryptors;
+    }
+
+    /**
+     * Stops accepting derivations, queued derivations are still run
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
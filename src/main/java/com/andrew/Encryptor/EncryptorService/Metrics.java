@@ -0,0 +1,190 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide registry of counters, timers and throughput meters. Recording is lock free so it can sit on the
+ * crypto hot path, reading is meant for occasional reports like the daemon STATS request.
+ * Durations are also emitted as flight recorder events, see {@link CryptoEvents}
+ */
+public final class Metrics {
+    private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, Meter> METERS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+
+    }
+
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, ignored -> new Counter());
+    }
+
+    public static Timer timer(String name) {
+        return TIMERS.computeIfAbsent(name, ignored -> new Timer());
+    }
+
+    public static Meter meter(String name) {
+        return METERS.computeIfAbsent(name, ignored -> new Meter());
+    }
+
+    /**
+     * @return every metric formatted as name to value, sorted by name
+     */
+    public static Map<String, String> snapshot() {
+        Map<String, String> snapshot = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> snapshot.put(name, Long.toString(counter.getCount())));
+        TIMERS.forEach((name, timer) -> snapshot.put(name, timer.toString()));
+        METERS.forEach((name, meter) -> snapshot.put(name, meter.toString()));
+        return snapshot;
+    }
+
+    /**
+     * Monotonic count of events
+     */
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        private Counter() {
+
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * Count, total and max of a duration
+     */
+    public static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+        private Timer() {
+
+        }
+
+        /**
+         * @param nanos duration of one occurrence
+         */
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            long calls = getCount();
+            double mean = calls == 0 ? 0 : getTotalNanos() / 1e6 / calls;
+            return String.format("count=%d mean=%.2fms max=%.2fms total=%.1fms", calls, mean, getMaxNanos() / 1e6, getTotalNanos() / 1e6);
+        }
+    }
+
+    /**
+     * Total bytes plus a bytes per second rate averaged over roughly the last minute, the rate is an exponentially
+     * weighted moving average updated every {@link #TICK_SECONDS} seconds by whichever thread notices the tick is due
+     */
+    public static final class Meter {
+        private static final int TICK_SECONDS = 5;
+        private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(TICK_SECONDS);
+        private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+        private final LongAdder total = new LongAdder();
+        /**
+         * Bytes marked since the last tick
+         */
+        private final LongAdder uncounted = new LongAdder();
+        private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+        private volatile double rate;
+        private volatile boolean initialised;
+
+        private Meter() {
+
+        }
+
+        public void mark(long bytes) {
+            tickIfNeeded();
+            uncounted.add(bytes);
+            total.add(bytes);
+        }
+
+        public long getTotal() {
+            return total.sum();
+        }
+
+        /**
+         * @return bytes per second
+         */
+        public double getRate() {
+            tickIfNeeded();
+            return rate;
+        }
+
+        private void tickIfNeeded() {
+            long previous = lastTick.get();
+            long now = System.nanoTime();
+            long age = now - previous;
+            //only the thread that wins the swap applies the ticks
+            if (age > TICK_NANOS && lastTick.compareAndSet(previous, now - age % TICK_NANOS)) {
+                for (long ticks = age / TICK_NANOS; ticks > 0; ticks--) {
+                    double instant = (double) uncounted.sumThenReset() / TICK_SECONDS;
+                    if (initialised) {
+                        rate += ALPHA * (instant - rate);
+                    } else {
+                        rate = instant;
+                        initialised = true;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("total=%d rate=%.2fMB/s", getTotal(), getRate() / (1024 * 1024));
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sink that stores objects in an S3 style object store with multipart uploads. Cipher text is cut into parts as it
+ * arrives and several parts are uploaded at once while the encrypt loop keeps going, memory stays at one part per
+ * upload slot plus the one being filled. Objects smaller than one part are sent with a single PUT.
+ * <p>
+ * The bucket URI is the endpoint with the bucket as its path, e.g. http://localhost:9000/backups. Requests are not
+ * signed, stores that need credentials are reached through {@link #setHeader(String, String)} with a token or through
+ * a signing proxy
+ */
+public class ObjectStoreSink implements OutputSink, Closeable {
+    /**
+     * Smallest part S3 accepts for every part but the last
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    /**
+     * Largest part one buffer can hold, below the 5 GB S3 accepts
+     */
+    public static final int MAX_PART_SIZE = Integer.MAX_VALUE - 8;
+    /**
+     * Most parts one upload can have, larger objects get larger parts
+     */
+    private static final int MAX_PARTS = 10_000;
+    /**
+     * Tries per request before the upload is given up, failures of the network and 5xx answers are retried
+     */
+    private static final int ATTEMPTS = 3;
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private final URI bucket;
+    private final HttpClient client;
+    /**
+     * Uploads parts, shared by every object of this sink
+     */
+    private final ExecutorService executor;
+    /**
+     * Parts uploaded at once per object
+     */
+    private final int concurrency;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private int partSize = DEFAULT_PART_SIZE;
+
+    /**
+     * @param bucket endpoint with the bucket as path
+     * @param concurrency number of parts of one object that are uploaded at once
+     */
+    public ObjectStoreSink(URI bucket, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Upload concurrency must be at least 1");
+        }
+        String path = bucket.getPath();
+        if (path == null || path.isEmpty() || path.equals("/")) {
+            throw new IllegalArgumentException("Bucket URI needs the bucket as its path: " + bucket);
+        }
+        this.bucket = path.endsWith("/") ? bucket : URI.create(bucket + "/");
+        this.concurrency = concurrency;
+        this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        this.executor = WorkExecutors.io("object-store-upload", concurrency);
+    }
+
+    /**
+     * @param partSize bytes per uploaded part, the last part of an object may be smaller
+     */
+    public void setPartSize(int partSize) {
+        if (partSize < MIN_PART_SIZE || partSize > MAX_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be between " + MIN_PART_SIZE + " and " + MAX_PART_SIZE + " bytes");
+        }
+        this.partSize = partSize;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Adds a header sent with every request, e.g. an authorization token
+     */
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    @Override
+    public Target open(String name, long sizeHint) {
+        //a part count over the limit is only known for sure at the end, widen the parts up front when the size says so
+        long needed = sizeHint > 0 ? (sizeHint + MAX_PARTS - 1) / MAX_PARTS : 0;
+        if (needed > MAX_PART_SIZE) {
+            throw new IllegalArgumentException("Object of " + sizeHint + " bytes is too large for a multipart upload");
+        }
+        return new Upload(objectUri(name), (int) Math.max(partSize, needed));
+    }
+
+    /**
+     * Stops the upload threads, objects that are still open fail
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private URI objectUri(String name) {
+        StringBuilder path = new StringBuilder();
+        for (String segment : name.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new IllegalArgumentException("Invalid object name " + name);
+            }
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(URLEncoder.encode(segment, StandardCharsets.UTF_8).replace("+", "%20"));
+        }
+        return bucket.resolve(path.toString());
+    }
+
+    /**
+     * Sends a request, retrying failures of the network and of the store with a growing pause
+     * @return the response of the first attempt the store accepted
+     * @throws IOException if every attempt failed or the store rejected the request
+     */
+    private HttpResponse<String> send(String method, URI uri, byte[] body, int length) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(Duration.ofMinutes(5))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body, 0, length));
+        headers.forEach(builder::header);
+        HttpRequest request = builder.build();
+        IOException failure = null;
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            try {
+                if (attempt > 0) {
+                    Metrics.counter("upload.retries").increment();
+                    Thread.sleep(200L << attempt);
+                }
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                int status = response.statusCode();
+                //s3 reports some failures of a complete request inside a 200 answer
+                if (status / 100 == 2 && !response.body().contains("<Error>")) {
+                    return response;
+                }
+                failure = new IOException("Object store answered " + status + " to " + method + " " + uri.getPath() + ": " + response.body());
+                if (status < 500 && status != 429 && status / 100 != 2) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted");
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private static String query(String name, String value) {
+        return name + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String escapeXml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * One object, the multipart upload is only started once the first part is full
+     */
+    private final class Upload implements Target {
+        private final URI uri;
+        private final int uploadPartSize;
+        /**
+         * Limits the parts held in memory while they upload
+         */
+        private final Semaphore slots = new Semaphore(concurrency);
+        /**
+         * Buffers of finished uploads, reused for the next parts
+         */
+        private final ConcurrentLinkedQueue<byte[]> spare = new ConcurrentLinkedQueue<>();
+        /**
+         * ETag of every part in order
+         */
+        private final List<Future<String>> parts = new ArrayList<>();
+        private byte[] current;
+        private int filled;
+        private String uploadId;
+        private boolean open = true;
+
+        private Upload(URI uri, int uploadPartSize) {
+            this.uri = uri;
+            this.uploadPartSize = uploadPartSize;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            int written = source.remaining();
+            while (source.hasRemaining()) {
+                if (current == null) {
+                    byte[] buffer = spare.poll();
+                    current = buffer == null ? new byte[uploadPartSize] : buffer;
+                }
+                int length = Math.min(source.remaining(), current.length - filled);
+                source.get(current, filled, length);
+                filled += length;
+                if (filled == current.length) {
+                    submitPart();
+                }
+            }
+            return written;
+        }
+
+        /**
+         * Hands the filled buffer to an upload thread, blocks while every slot is busy so a slow store slows the
+         * encrypt loop instead of filling the heap
+         */
+        private void submitPart() throws IOException {
+            if (uploadId == null) {
+                Matcher matcher = UPLOAD_ID.matcher(send("POST", URI.create(uri + "?uploads"), null, 0).body());
+                if (!matcher.find()) {
+                    throw new IOException("Object store did not return an upload id for " + uri.getPath());
+                }
+                uploadId = matcher.group(1);
+            }
+            //fail early instead of encrypting the rest of a file that can no longer be stored
+            for (Future<String> part : parts) {
+                if (part.isDone()) {
+                    etag(part);
+                }
+            }
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted");
+            }
+            byte[] data = current;
+            int length = filled;
+            int number = parts.size() + 1;
+            current = null;
+            filled = 0;
+            URI partUri = URI.create(uri + "?" + query("partNumber", Integer.toString(number)) + "&" + query("uploadId", uploadId));
+            parts.add(executor.submit(() -> {
+                try {
+                    HttpResponse<String> response = send("PUT", partUri, data, length);
+                    String etag = response.headers().firstValue("ETag").orElseThrow(() -> new IOException("Object store did not return an ETag for part " + number));
+                    Metrics.counter("upload.parts").increment();
+                    Metrics.counter("upload.bytes").add(length);
+                    return etag;
+                } finally {
+                    spare.offer(data);
+                    slots.release();
+                }
+            }));
+        }
+
+        @Override
+        public String commit() throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            try {
+                if (uploadId == null) {
+                    //fits in one part, a plain put skips the three round trips of a multipart upload
+                    send("PUT", uri, current == null ? new byte[0] : current, filled);
+                    Metrics.counter("upload.bytes").add(filled);
+                } else {
+                    if (filled > 0) {
+                        submitPart();
+                    }
+                    StringBuilder complete = new StringBuilder("<CompleteMultipartUpload>");
+                    for (int i = 0; i < parts.size(); i++) {
+                        complete.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(escapeXml(etag(parts.get(i)))).append("</ETag></Part>");
+                    }
+                    complete.append("</CompleteMultipartUpload>");
+                    byte[] body = complete.toString().getBytes(StandardCharsets.UTF_8);
+                    send("POST", URI.create(uri + "?" + query("uploadId", uploadId)), body, body.length);
+                }
+            } catch (IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
+            open = false;
+            current = null;
+            spare.clear();
+            return uri.toString();
+        }
+
+        /**
+         * @return the ETag of an uploaded part, waiting for it if needed
+         */
+        private String etag(Future<String> part) throws IOException {
+            try {
+                return part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException("Part upload failed", cause);
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            current = null;
+            for (Future<String> part : parts) {
+                part.cancel(true);
+            }
+            if (uploadId != null) {
+                try {
+                    //the store keeps the uploaded parts, and bills for them, until the upload is aborted
+                    send("DELETE", URI.create(uri + "?" + query("uploadId", uploadId)), null, 0);
+                } catch (IOException e) {
+                    System.err.println("failed to abort upload of " + uri.getPath() + ": " + e);
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            abort();
+        }
+    }
+}
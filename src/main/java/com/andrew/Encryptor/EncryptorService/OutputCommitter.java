@@ -0,0 +1,234 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Moves finished temp files to their destination according to a {@link Durability} policy. Files are always
+ * renamed into place, a reader or a crash never sees a half written output under the final name. With
+ * {@link Durability#PER_FILE} and {@link Durability#GROUP_COMMIT} the data is forced before the rename and the
+ * directory after it, so an original may be deleted once its follow up action runs
+ */
+public class OutputCommitter {
+    /**
+     * Threads that force staged files at once, concurrent syncs let the file system merge them into fewer journal commits
+     */
+    private static final int SYNC_THREADS = 8;
+
+    private final Durability durability;
+    /**
+     * Files waiting for the next group commit
+     */
+    private final List<Staged> staged = new ArrayList<>();
+
+    private static final class Staged {
+        final Path temp;
+        final Path target;
+        final boolean replaceExisting;
+        final Runnable afterCommit;
+
+        Staged(Path temp, Path target, boolean replaceExisting, Runnable afterCommit) {
+            this.temp = temp;
+            this.target = target;
+            this.replaceExisting = replaceExisting;
+            this.afterCommit = afterCommit;
+        }
+    }
+
+    public OutputCommitter(Durability durability) {
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Publishes a temp file under its final name, right away or at the next {@link #commit()} for group commit
+     * @param temp finished temp file, ideally in the target directory so the rename does not copy
+     * @param target final path
+     * @param replaceExisting whether an existing target may be replaced
+     * @param afterCommit run once the file is published with the promised durability, for example to delete the original, may be null
+     * @throws IOException if the file can not be moved, the temp file is deleted in that case
+     */
+    public void publish(Path temp, Path target, boolean replaceExisting, Runnable afterCommit) throws IOException {
+        if (durability == Durability.GROUP_COMMIT) {
+            synchronized (staged) {
+                staged.add(new Staged(temp, target, replaceExisting, afterCommit));
+            }
+            return;
+        }
+        try {
+            if (durability == Durability.PER_FILE) {
+                force(temp);
+            }
+            move(temp, target, replaceExisting);
+            if (durability == Durability.PER_FILE) {
+                force(target.toAbsolutePath().getParent());
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (afterCommit != null) {
+            afterCommit.run();
+        }
+    }
+
+    /**
+     * Forces all staged files in parallel, renames them into place, forces each of their directories once and then
+     * runs their follow up actions. Does nothing unless the policy is group commit
+     * @return number of files published
+     * @throws IOException if any file failed, the others are still published
+     */
+    public int commit() throws IOException {
+        List<Staged> batch;
+        synchronized (staged) {
+            if (staged.isEmpty()) {
+                return 0;
+            }
+            batch = new ArrayList<>(staged);
+            staged.clear();
+        }
+        long start = System.nanoTime();
+        List<Staged> synced = forceAll(batch);
+        Set<Path> directories = new LinkedHashSet<>();
+        List<Staged> published = new ArrayList<>();
+        IOException failure = null;
+        for (Staged file : synced) {
+            try {
+                move(file.temp, file.target, file.replaceExisting);
+                directories.add(file.target.toAbsolutePath().getParent());
+                published.add(file);
+            } catch (IOException e) {
+                failure = e;
+                Files.deleteIfExists(file.temp);
+            }
+        }
+        for (Path directory : directories) {
+            force(directory);
+        }
+        for (Staged file : published) {
+            if (file.afterCommit != null) {
+                file.afterCommit.run();
+            }
+        }
+        Metrics.timer("commit.group").record(System.nanoTime() - start);
+        if (failure != null || synced.size() < batch.size()) {
+            throw new IOException((batch.size() - published.size()) + " of " + batch.size() + " files failed to commit", failure);
+        }
+        return published.size();
+    }
+
+    /**
+     * @return number of files waiting for {@link #commit()}
+     */
+    public int getStagedCount() {
+        synchronized (staged) {
+            return staged.size();
+        }
+    }
+
+    /**
+     * @return the files that were forced successfully, temp files that could not be forced are deleted
+     */
+    private static List<Staged> forceAll(List<Staged> batch) throws IOException {
+        ExecutorService executor = WorkExecutors.io("group-commit", Math.min(SYNC_THREADS, batch.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>(batch.size());
+            for (Staged file : batch) {
+                futures.add(executor.submit(() -> {
+                    force(file.temp);
+                    return null;
+                }));
+            }
+            List<Staged> synced = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    futures.get(i).get();
+                    synced.add(batch.get(i));
+                } catch (ExecutionException e) {
+                    System.err.println("failed to sync " + batch.get(i).temp + ": " + e.getCause().getMessage());
+                    Files.deleteIfExists(batch.get(i).temp);
+                }
+            }
+            return synced;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during group commit");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Renames the file, falling back to a copy into a temp file next to the target followed by a rename when the
+     * two paths are on different file systems, so the target name never points at partial data
+     */
+    private void move(Path temp, Path target, boolean replaceExisting) throws IOException {
+        if (!replaceExisting && Files.exists(target)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        } catch (AtomicMoveNotSupportedException e) {
+            //different file system, copy next to the target first
+        }
+        Path directory = target.toAbsolutePath().getParent();
+        Path copy = Files.createTempFile(directory, target.getFileName().toString(), ".part");
+        try {
+            Files.copy(temp, copy, StandardCopyOption.REPLACE_EXISTING);
+            if (durability != Durability.NONE) {
+                force(copy);
+            }
+            try {
+                Files.move(copy, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(copy, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+        Files.delete(temp);
+    }
+
+    /**
+     * Forces a file or directory to the device, directories can not be opened on every platform, there the rename
+     * is left to the file system's own journal
+     */
+    private static void force(Path path) throws IOException {
+        boolean directory = Files.isDirectory(path);
+        try (FileChannel channel = FileChannel.open(path, directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (!directory) {
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Destination of encrypted output other than a local temp file. The encrypt loop writes into it while it runs, so the
+ * output is shipped in the same pass that produces it instead of being read back once it is done
+ * @see AESEncryptor#encryptTo(EncryptedFile, OutputSink, String)
+ * @see ObjectStoreSink
+ */
+public interface OutputSink {
+    /**
+     * Starts a new object, nothing is visible in the sink until the target is committed
+     * @param name name of the object in the sink
+     * @param sizeHint expected size in bytes, -1 if it is not known up front
+     * @return target the bytes of the object are written to in order
+     * @throws IOException if the sink can not start the object
+     */
+    Target open(String name, long sizeHint) throws IOException;
+
+    /**
+     * One object being written. Closing a target that was not committed aborts it, so a failed encrypt inside try with
+     * resources leaves nothing behind
+     */
+    interface Target extends WritableByteChannel {
+        /**
+         * Waits for every outstanding write and makes the object visible in the sink
+         * @return where the object can be found
+         * @throws IOException if any part of the object could not be stored, the object is aborted
+         */
+        String commit() throws IOException;
+
+        /**
+         * Drops everything written so far, errors are logged and not thrown since this runs while another error is
+         * already being handled
+         */
+        void abort();
+    }
+}
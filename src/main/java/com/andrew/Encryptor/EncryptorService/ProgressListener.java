@@ -0,0 +1,29 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Callback used by encryptor services to report how far along a file they are
+ */
+@FunctionalInterface
+public interface ProgressListener {
+    /**
+     * Called from the thread doing the work after every buffer, implementations should be cheap
+     * @param bytesDone number of input bytes processed so far
+     * @param bytesTotal total number of input bytes, may be -1 if unknown
+     */
+    void onProgress(long bytesDone, long bytesTotal);
+}
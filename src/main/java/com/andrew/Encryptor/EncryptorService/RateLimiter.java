@@ -0,0 +1,162 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the number of bytes per second pushed through the encrypt and decrypt loops, one instance
+ * can be shared between jobs to cap the total I/O of all of them. The rate can be changed while jobs are running.
+ * <p>
+ * A limiter can have a parent, bytes are then taken from both buckets and a caller waits for the slower of the two.
+ * This is how a job gets its own cap under the cap of its queue
+ */
+public class RateLimiter {
+    /**
+     * Allowed bytes per second, zero or below means unlimited
+     */
+    private long bytesPerSecond;
+    /**
+     * Bytes that can be taken without waiting, goes negative when callers borrow ahead of the refill
+     */
+    private double available;
+    /**
+     * Total bytes ever taken from this bucket, a caller's debt is paid once this plus {@link #available} reaches the
+     * total it booked, so outstanding debt is paid off at whatever the rate is at the time
+     */
+    private long booked;
+    /**
+     * Time of the last refill in nanoseconds
+     */
+    private long lastRefill;
+    /**
+     * Limiter the same bytes are also taken from, may be null
+     */
+    private volatile RateLimiter parent;
+
+    /**
+     * @param bytesPerSecond allowed throughput, zero or below for unlimited
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, null);
+    }
+
+    /**
+     * @param bytesPerSecond allowed throughput of this limiter alone, zero or below for unlimited
+     * @param parent limiter shared with others that also has to allow the bytes, may be null
+     */
+    public RateLimiter(long bytesPerSecond, RateLimiter parent) {
+        this.lastRefill = System.nanoTime();
+        this.parent = parent;
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * @return a limiter that never blocks
+     */
+    public static RateLimiter unlimited() {
+        return new RateLimiter(0);
+    }
+
+    /**
+     * Changes the rate, also for callers already waiting: their outstanding debt is paid off at the new rate, and
+     * they return at once when the limiter becomes unlimited
+     * @param bytesPerSecond allowed throughput, zero or below for unlimited
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill(System.nanoTime());
+        this.bytesPerSecond = bytesPerSecond;
+        //burst is capped at one second worth of bytes, going unlimited forgives all debt
+        this.available = bytesPerSecond > 0 ? Math.min(available, bytesPerSecond) : 0;
+        notifyAll();
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes bytes from the bucket, blocking for as long as needed to stay under the rate
+     * @param bytes number of bytes about to be read or written
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        //every level books the bytes up front, the buckets refill while waiting on the first so the waits overlap
+        int depth = 0;
+        for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            depth++;
+        }
+        RateLimiter[] limiters = new RateLimiter[depth];
+        long[] tickets = new long[depth];
+        int level = 0;
+        for (RateLimiter limiter = this; limiter != null && level < depth; limiter = limiter.parent) {
+            limiters[level] = limiter;
+            tickets[level++] = limiter.reserve(bytes);
+        }
+        for (int i = 0; i < level; i++) {
+            limiters[i].awaitPaid(tickets[i]);
+        }
+    }
+
+    /**
+     * @return the ticket to wait for, the value of {@link #booked} including these bytes, or -1 if unlimited
+     */
+    private synchronized long reserve(long bytes) {
+        if (bytesPerSecond <= 0) {
+            return -1;
+        }
+        refill(System.nanoTime());
+        available -= bytes;
+        booked += bytes;
+        return booked;
+    }
+
+    /**
+     * Waits on this limiter's monitor so other callers can queue their own debt and {@link #setRate(long)} can wake
+     * the wait when the rate changes
+     */
+    private synchronized void awaitPaid(long ticket) throws InterruptedException {
+        if (ticket < 0) {
+            return;
+        }
+        while (bytesPerSecond > 0) {
+            refill(System.nanoTime());
+            double owed = ticket - (booked + available);
+            if (owed <= 0) {
+                return;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, (long) Math.ceil(owed * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond)));
+        }
+    }
+
+    public RateLimiter getParent() {
+        return parent;
+    }
+
+    /**
+     * Moves the limiter under another one, used when a job is submitted to a queue
+     */
+    void setParent(RateLimiter parent) {
+        this.parent = parent;
+    }
+
+    private void refill(long now) {
+        if (bytesPerSecond > 0) {
+            available = Math.min(bytesPerSecond, available + (double) (now - lastRefill) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,314 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference counted read channels, one per file for the whole process. Every reader of a file gets a handle on the
+ * same channel and reads with positional reads, so any number of threads can decrypt, verify or encrypt from one
+ * large file at once without reopening it.
+ * <p>
+ * Readers lock only the region they read through {@link Handle#lock(long, long)}. The JVM does not allow two
+ * overlapping locks on the same file, even shared ones, which is what made concurrent readers fail with
+ * {@link OverlappingFileLockException} when each one opened and locked the file on its own. Regions are therefore
+ * locked as fixed granules that never overlap, each granule is locked once and counted for every reader using it
+ */
+public final class SharedReadChannels {
+    private static final SharedReadChannels SHARED = new SharedReadChannels();
+    /**
+     * Size of the lock granules, large enough that a file needs few locks and small enough that a reader of one part
+     * of a large file leaves the rest of it unlocked
+     */
+    static final long LOCK_GRANULE = 64L * 1024 * 1024;
+
+    /**
+     * Open files by real path, an entry is removed when its last handle is closed
+     */
+    private final Map<Path, Entry> open = new HashMap<>();
+
+    /**
+     * @return the process wide instance used by the encryptor services
+     */
+    public static SharedReadChannels shared() {
+        return SHARED;
+    }
+
+    /**
+     * Opens the file or joins the readers already using it
+     * @param path the file to read
+     * @return a handle that must be closed once the caller is done reading
+     * @throws IOException if the file can not be opened
+     */
+    public Handle open(Path path) throws IOException {
+        //relative paths and links to the same file end up on the same channel
+        Path key = path.toRealPath();
+        synchronized (open) {
+            Entry entry = open.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                open.put(key, entry);
+                Metrics.counter("readchannels.opened").increment();
+            } else {
+                Metrics.counter("readchannels.shared").increment();
+            }
+            entry.references++;
+            return new Handle(entry);
+        }
+    }
+
+    /**
+     * @return number of files currently open
+     */
+    public int getOpenCount() {
+        synchronized (open) {
+            return open.size();
+        }
+    }
+
+    private void release(Entry entry) throws IOException {
+        synchronized (open) {
+            if (--entry.references > 0) {
+                return;
+            }
+            open.remove(entry.path);
+        }
+        entry.close();
+    }
+
+    /**
+     * One open file, its channel and the granule locks held for its readers
+     */
+    private static final class Entry {
+        private final Path path;
+        private volatile FileChannel channel;
+        /**
+         * Locked granules by index, guarded by this entry
+         */
+        private final Map<Long, Granule> granules = new HashMap<>();
+        /**
+         * Guarded by the map of open files
+         */
+        private int references;
+
+        private Entry(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
+        /**
+         * Locks the granules first to last for one more reader, granules already locked only gain a reference
+         */
+        private synchronized void lock(long first, long last) throws IOException {
+            for (long index = first; index <= last; index++) {
+                Granule granule = granules.get(index);
+                if (granule == null) {
+                    try {
+                        granule = new Granule(tryLock(index));
+                    } catch (IOException e) {
+                        unlock(first, index - 1);
+                        throw e;
+                    }
+                    granules.put(index, granule);
+                    Metrics.counter("readchannels.locks").increment();
+                }
+                granule.references++;
+            }
+        }
+
+        private synchronized void unlock(long first, long last) throws IOException {
+            for (long index = first; index <= last; index++) {
+                Granule granule = granules.get(index);
+                if (granule == null || --granule.references > 0) {
+                    continue;
+                }
+                granules.remove(index);
+                if (granule.lock != null && granule.lock.isValid()) {
+                    granule.lock.release();
+                }
+            }
+        }
+
+        /**
+         * @return a shared lock on the granule, keeping other processes from writing it while we read, or null when
+         * another process holds an exclusive lock or a writer in this process holds the file, locks are best effort
+         * like before
+         */
+        private FileLock tryLock(long index) throws IOException {
+            while (true) {
+                FileChannel current = channel;
+                try {
+                    return current.tryLock(index * LOCK_GRANULE, LOCK_GRANULE, true);
+                } catch (OverlappingFileLockException e) {
+                    return null;
+                } catch (ClosedChannelException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    reopen(current);
+                }
+            }
+        }
+
+        /**
+         * An interrupt during a read closes the channel for every thread using it, the readers that were not
+         * interrupted reopen it and carry on. Closing dropped every lock, so the granules still in use are locked again
+         */
+        private synchronized FileChannel reopen(FileChannel closed) throws IOException {
+            if (channel == closed) {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                Metrics.counter("readchannels.reopened").increment();
+                for (Map.Entry<Long, Granule> granule : granules.entrySet()) {
+                    granule.getValue().lock = tryLock(granule.getKey());
+                }
+            }
+            return channel;
+        }
+
+        private synchronized void close() throws IOException {
+            //closing the channel releases the locks with it
+            granules.clear();
+            channel.close();
+        }
+    }
+
+    /**
+     * One locked granule of a file and the number of reader regions that cover it
+     */
+    private static final class Granule {
+        private FileLock lock;
+        private int references;
+
+        private Granule(FileLock lock) {
+            this.lock = lock;
+        }
+    }
+
+    /**
+     * A reader's view of a shared channel, reads are positional so readers never move each other's position
+     */
+    public final class Handle implements AutoCloseable {
+        private final Entry entry;
+        /**
+         * Granule ranges locked through this handle as first and last index, released when it is closed
+         */
+        private final List<long[]> locked = new ArrayList<>();
+        private boolean closed;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * @return number of bytes read, possibly zero, or -1 if the position is at or past the end of the file
+         * @see FileChannel#read(ByteBuffer, long)
+         */
+        public int read(ByteBuffer buffer, long position) throws IOException {
+            FileChannel channel = entry.channel;
+            while (true) {
+                try {
+                    return channel.read(buffer, position);
+                } catch (ClosedChannelException e) {
+                    if (closed || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    channel = entry.reopen(channel);
+                }
+            }
+        }
+
+        /**
+         * Fills the buffer from the position on
+         * @throws EOFException if the file ends before the buffer is full
+         */
+        public void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException("File ended early");
+                }
+                position += read;
+            }
+        }
+
+        /**
+         * Takes shared locks covering a region until this handle is closed, other processes can not write the region
+         * meanwhile while readers of other regions and other readers of this one are not held up. Several regions
+         * may be locked through one handle, for example one per part when a file is split
+         * @param position start of the region
+         * @param length length of the region, Long.MAX_VALUE for the rest of the file
+         */
+        public void lock(long position, long length) throws IOException {
+            if (position < 0 || length < 0) {
+                throw new IllegalArgumentException("Region can not be negative");
+            }
+            //readers never read past the end, so the region is cut at the current size
+            long size = size();
+            long end = position >= size ? position : Math.min(size, position + Math.min(length, size));
+            long first = position / LOCK_GRANULE;
+            //an empty region still locks the granule it points into
+            long last = Math.max(first, (end - 1) / LOCK_GRANULE);
+            synchronized (locked) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                entry.lock(first, last);
+                locked.add(new long[]{first, last});
+            }
+        }
+
+        public long size() throws IOException {
+            FileChannel channel = entry.channel;
+            while (true) {
+                try {
+                    return channel.size();
+                } catch (ClosedChannelException e) {
+                    if (closed || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    channel = entry.reopen(channel);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            synchronized (locked) {
+                for (long[] region : locked) {
+                    entry.unlock(region[0], region[1]);
+                }
+                locked.clear();
+            }
+            release(entry);
+        }
+    }
+}
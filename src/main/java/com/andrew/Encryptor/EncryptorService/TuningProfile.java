@@ -0,0 +1,110 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.Objects;
+
+/**
+ * Immutable set of I/O and parallelism settings used by the encryptor services
+ * @see AutoTuner
+ */
+public final class TuningProfile {
+    /**
+     * Smallest buffer size accepted, the cipher block size rounds everything below this to nothing useful
+     */
+    public static final int MIN_BUFFER_SIZE = 4096;
+    /**
+     * Largest buffer size accepted
+     */
+    public static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+    /**
+     * Settings used before calibration has run, the buffer size matches the old fixed 4kb buffer
+     */
+    public static final TuningProfile DEFAULT = new TuningProfile(MIN_BUFFER_SIZE, 1024 * 1024, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Size in bytes of the read/write buffer of the encrypt and decrypt loops
+     */
+    private final int bufferSize;
+    /**
+     * Size in bytes of the unit of work for chunked and parallel modes
+     */
+    private final int chunkSize;
+    /**
+     * Number of files or chunks that should be processed at once
+     */
+    private final int workerCount;
+
+    public TuningProfile(int bufferSize, int chunkSize, int workerCount) {
+        if (bufferSize < MIN_BUFFER_SIZE || bufferSize > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be between " + MIN_BUFFER_SIZE + " and " + MAX_BUFFER_SIZE);
+        }
+        if (chunkSize < bufferSize) {
+            throw new IllegalArgumentException("Chunk size can not be smaller than the buffer size");
+        }
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be at least 1");
+        }
+        this.bufferSize = bufferSize;
+        this.chunkSize = chunkSize;
+        this.workerCount = workerCount;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public TuningProfile withBufferSize(int bufferSize) {
+        return new TuningProfile(bufferSize, Math.max(chunkSize, bufferSize), workerCount);
+    }
+
+    public TuningProfile withChunkSize(int chunkSize) {
+        return new TuningProfile(bufferSize, chunkSize, workerCount);
+    }
+
+    public TuningProfile withWorkerCount(int workerCount) {
+        return new TuningProfile(bufferSize, chunkSize, workerCount);
+    }
+
+    @Override
+    public String toString() {
+        return "TuningProfile{" +
+                "bufferSize=" + bufferSize +
+                ", chunkSize=" + chunkSize +
+                ", workerCount=" + workerCount +
+                '}';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TuningProfile that)) return false;
+        return bufferSize == that.bufferSize && chunkSize == that.chunkSize && workerCount == that.workerCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(bufferSize, chunkSize, workerCount);
+    }
+}
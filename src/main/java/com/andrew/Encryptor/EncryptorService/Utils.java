@@ -15,6 +15,7 @@ package com.andrew.Encryptor.EncryptorService;/*
  *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
+import java.nio.file.Path;
 import java.util.Base64;
 
 /**
@@ -58,5 +59,13 @@ public class Utils {
         return lastIndex==-1?"":fileName.substring(lastIndex);
     }
 
+    /**
+     * Directory used to persist application state like the tuning profile, it is not created by this method
+     * @return path to .encryptor inside the user's home directory
+     */
+    public static Path getAppDirectory(){
+        return Path.of(System.getProperty("user.home"), ".encryptor");
+    }
+
 
 }
@@ -0,0 +1,45 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual thread support, this version is used on Java 17 where there are none. The Java 21 version in
+ * META-INF/versions/21 of the jar replaces it, both must keep the same methods
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+
+    }
+
+    /**
+     * @return true if this runtime can start virtual threads
+     */
+    static boolean supported() {
+        return false;
+    }
+
+    /**
+     * There are no virtual threads before Java 21, the tasks run on a pool of platform threads instead
+     * @param name prefix of the thread names
+     * @param platformThreads most threads of the pool, {@link WorkExecutors#UNBOUNDED} for one per task
+     * @return executor running the tasks on platform threads
+     */
+    static ExecutorService perTask(String name, int platformThreads) {
+        return WorkExecutors.platformPool(name, platformThreads);
+    }
+}
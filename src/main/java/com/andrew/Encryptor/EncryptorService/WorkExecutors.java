@@ -0,0 +1,142 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the thread pools of the encryptor services. Work that mostly waits on the disk, the network or a socket runs
+ * on {@link #io(String, int)}, one virtual thread per task on Java 21 and later and a pool of platform threads on
+ * Java 17. Cipher work runs on {@link #cpu(String, int)}, a fixed pool of platform threads, so thousands of queued
+ * files never run more cipher loops than there are workers and the per thread ciphers of {@link CryptoProviders} are
+ * reused instead of being set up again on every virtual thread.
+ * Virtual threads can be turned off with -Dencryptor.virtualThreads=false
+ */
+public final class WorkExecutors {
+    public static final String VIRTUAL_THREADS_PROPERTY = "encryptor.virtualThreads";
+    /**
+     * Thread limit of {@link #io(String, int)} for callers that never want tasks to queue, like one task per connection
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+    /**
+     * How long idle platform threads of an io pool are kept
+     */
+    private static final long IDLE_SECONDS = 30;
+    private static final boolean VIRTUAL = VirtualThreads.supported() && Boolean.parseBoolean(System.getProperty(VIRTUAL_THREADS_PROPERTY, "true"));
+
+    private WorkExecutors() {
+
+    }
+
+    /**
+     * @return true if {@link #io(String, int)} runs tasks on virtual threads
+     */
+    public static boolean virtualThreads() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Executor for tasks that spend most of their time blocked. Callers still bound how many files or connections
+     * they open at once, only the threads waiting on them become cheap
+     * @param name prefix of the thread names
+     * @param platformThreads most threads used when there are no virtual threads, {@link #UNBOUNDED} for one per task
+     * @return executor that has to be shut down by the caller
+     */
+    public static ExecutorService io(String name, int platformThreads) {
+        if (platformThreads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        if (VIRTUAL) {
+            return VirtualThreads.perTask(name, platformThreads);
+        }
+        return platformPool(name, platformThreads);
+    }
+
+    /**
+     * Platform thread version of {@link #io(String, int)}, also what {@link VirtualThreads} falls back to on Java 17
+     */
+    static ExecutorService platformPool(String name, int platformThreads) {
+        if (platformThreads == UNBOUNDED) {
+            return new ThreadPoolExecutor(0, UNBOUNDED, IDLE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), platformThreads(name));
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(platformThreads, platformThreads, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), platformThreads(name));
+        //bursty callers like the object store upload should not keep idle threads around between files
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Executor for cipher and mac work, always platform threads whatever the runtime
+     * @param name prefix of the thread names
+     * @param threads number of tasks run at once, extra tasks queue
+     * @return executor that has to be shut down by the caller, its size can be changed while it runs
+     */
+    public static ThreadPoolExecutor cpu(String name, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        }
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), platformThreads(name));
+    }
+
+    /**
+     * @param name prefix of the thread names, a counter is appended
+     * @return factory of daemon platform threads, pools never keep the application alive once the window is closed
+     */
+    public static ThreadFactory platformThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Runs a task on another executor and waits for it, used to move cipher work off a virtual thread
+     * @param executor the executor to run on, usually one from {@link #cpu(String, int)}
+     * @param task the task
+     * @return the result of the task
+     * @throws ExecutionException if the task threw a checked exception, unchecked ones are rethrown as they are
+     * @throws InterruptedException if the caller was interrupted while waiting, the task is then cancelled
+     */
+    public static <T> T callOn(ExecutorService executor, Callable<T> task) throws ExecutionException, InterruptedException {
+        Future<T> future = executor.submit(task);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.andrew.Encryptor;
+
+import javafx.application.Application;
+
+/**
+ * Main class of the application. It deliberately does not extend Application, the java launcher starts the JavaFX
+ * toolkit before main for Application subclasses, which fails on machines without a display. Arguments select the
+ * headless {@link EncryptorCli}, no arguments open the window
+ */
+public final class Launcher {
+    private Launcher() {
+
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(EncryptorCli.run(args));
+        }
+        Application.launch(EncryptorApp.class, args);
+    }
+}
@@ -42,6 +42,8 @@ public class MainController implements Initializable {
     @FXML
     private Button decryptButton;
     @FXML
+    private Button queueButton;
+    @FXML
     private AnchorPane pane;
 
     @Override
@@ -49,11 +51,8 @@ public class MainController implements Initializable {
         //init encrypt button functionality.
             encryptButton.setOnAction(e -> {
                 try {
-                    //load Encrypt View and attach controller
-                    FXMLLoader loader = new FXMLLoader(MainController.class.getResource("Encrypt.fxml"));
-                    loader.setController(new EncryptController());
-                    AnchorPane node = loader.load();
-                    encryptButton.getScene().setRoot(node);
+                    //Encrypt View with its controller, usually built ahead of time
+                    encryptButton.getScene().setRoot(ViewCache.take("Encrypt.fxml"));
                 } catch (Exception ex) {
                     ex.printStackTrace();
                     Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -65,11 +64,8 @@ public class MainController implements Initializable {
             //init decrypt Button functionality
             decryptButton.setOnAction(e -> {
                 try{
-                    //load Decrypt View and attach controller
-                    FXMLLoader loader = new FXMLLoader(this.getClass().getResource("Decrypt.fxml"));
-                    loader.setController(new DecryptController());
-                    AnchorPane node = loader.load();
-                    decryptButton.getScene().setRoot(node);
+                    //Decrypt View with its controller, usually built ahead of time
+                    decryptButton.getScene().setRoot(ViewCache.take("Decrypt.fxml"));
                 }catch (Exception ex) {
                     ex.printStackTrace();
                     Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -78,8 +74,23 @@ public class MainController implements Initializable {
                     createErrorDialog(ex, alert);
                 }
             });
+            //init queue button functionality
+            queueButton.setOnAction(e -> {
+                try{
+                    FXMLLoader loader = new FXMLLoader(this.getClass().getResource("Queue.fxml"));
+                    loader.setController(new QueueController());
+                    AnchorPane node = loader.load();
+                    queueButton.getScene().setRoot(node);
+                }catch (Exception ex) {
+                    ex.printStackTrace();
+                    Alert alert = new Alert(Alert.AlertType.ERROR);
+                    alert.setTitle("Action Failed");
+                    alert.setHeaderText("Failed to create Queue Scene");
+                    createErrorDialog(ex, alert);
+                }
+            });
             pane.setOnDragOver(e -> {
-                if(e.getDragboard().hasFiles() && e.getDragboard().getFiles().size()==1) {
+                if(e.getDragboard().hasFiles()) {
                     e.acceptTransferModes(TransferMode.COPY);
                 }else{
                     e.acceptTransferModes(TransferMode.NONE);
@@ -88,7 +99,15 @@ public class MainController implements Initializable {
             });
             pane.setOnDragDropped(e -> {
                 try {
-                    if (!Utils.getFileExtension(e.getDragboard().getFiles().get(0).getName()).equals(".enc")) {
+                    //several files at once go straight into the job queue
+                    if (e.getDragboard().getFiles().size() > 1) {
+                        FXMLLoader loader = new FXMLLoader(this.getClass().getResource("Queue.fxml"));
+                        QueueController controller = new QueueController();
+                        controller.setPendingFiles(e.getDragboard().getFiles());
+                        loader.setController(controller);
+                        AnchorPane anchorPane = loader.load();
+                        pane.getScene().setRoot(anchorPane);
+                    } else if (!Utils.getFileExtension(e.getDragboard().getFiles().get(0).getName()).equals(".enc")) {
                         FXMLLoader loader = new FXMLLoader(this.getClass().getResource("Encrypt.fxml"));
                         EncryptController controller = new EncryptController();
                         controller.setEncryptedFile(e.getDragboard().getFiles().get(0));
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.andrew.Encryptor;
+
+import com.andrew.Encryptor.EncryptorService.*;
+import javafx.application.Platform;
+import javafx.fxml.FXML;
+import javafx.fxml.Initializable;
+import javafx.geometry.Pos;
+import javafx.scene.control.*;
+import javafx.scene.input.TransferMode;
+import javafx.scene.layout.AnchorPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.paint.Paint;
+import javafx.stage.DirectoryChooser;
+import org.kordamp.ikonli.javafx.FontIcon;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.ResourceBundle;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Controller of the Queue.fxml file, shows every job of the shared {@link JobQueue} with its progress and lets the
+ * user queue many files at once by dropping them onto the list
+ */
+public class QueueController implements Initializable {
+    @FXML
+    private AnchorPane pane;
+    @FXML
+    private ListView<Job<?>> jobList;
+    @FXML
+    private Button backButton;
+    @FXML
+    private Button clearButton;
+    @FXML
+    private Spinner<Integer> concurrencySpinner;
+    @FXML
+    private Spinner<Integer> bandwidthSpinner;
+    /**
+     * Files dropped onto the home screen before this view was drawn
+     */
+    private List<File> pendingFiles;
+    /**
+     * True while a refresh is waiting on the FX thread, used to coalesce bursts of progress updates into one redraw
+     */
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    /**
+     * Outputs are forced to disk before they show up under their final name
+     */
+    private final OutputCommitter committer = new OutputCommitter(Durability.PER_FILE);
+    /**
+     * Listener registered with the queue, kept so it can be removed when leaving the view
+     */
+    private final Consumer<Job<?>> queueListener = job -> {
+        if (refreshPending.compareAndSet(false, true)) {
+            Platform.runLater(this::refresh);
+        }
+    };
+
+    @Override
+    public void initialize(URL location, ResourceBundle resources) {
+        JobQueue queue = JobQueue.shared();
+        jobList.setCellFactory(list -> new JobCell());
+        jobList.setPlaceholder(new Label("Drop files here to queue them"));
+        concurrencySpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, Runtime.getRuntime().availableProcessors() * 2, queue.getConcurrency()));
+        concurrencySpinner.valueProperty().addListener((observable, oldValue, newValue) -> queue.setConcurrency(newValue));
+        //limit is shown in MB/s, 0 means unlimited
+        bandwidthSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(0, 10000, (int) (queue.getRateLimiter().getRate() / (1024 * 1024)), 10));
+        bandwidthSpinner.valueProperty().addListener((observable, oldValue, newValue) -> queue.getRateLimiter().setRate(newValue * 1024L * 1024L));
+        clearButton.setOnAction(e -> {
+            queue.clearFinished();
+            refresh();
+        });
+        backButton.setOnAction(e -> {
+            queue.removeListener(queueListener);
+            try {
+                pane.getScene().setRoot(ViewCache.home());
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                Alert alert = new Alert(Alert.AlertType.ERROR);
+                alert.setTitle("Failed to create Scene");
+                alert.setHeaderText("Failed to create Main Menu Scene");
+                MainController.createErrorDialog(ex, alert);
+            }
+        });
+        jobList.setOnDragOver(e -> {
+            if (e.getDragboard().hasFiles()) {
+                e.acceptTransferModes(TransferMode.COPY);
+            }
+            e.consume();
+        });
+        jobList.setOnDragDropped(e -> {
+            List<File> files = e.getDragboard().getFiles();
+            e.setDropCompleted(true);
+            e.consume();
+            //dialogs can not be shown while the drag gesture is still being processed
+            Platform.runLater(() -> queueFiles(files));
+        });
+        queue.addListener(queueListener);
+        refresh();
+        if (pendingFiles != null) {
+            List<File> files = pendingFiles;
+            pendingFiles = null;
+            Platform.runLater(() -> queueFiles(files));
+        }
+    }
+
+    /**
+     * Used before the view has been drawn to hand over files dropped onto the home screen
+     * @param files the files to queue once the view is shown
+     */
+    protected void setPendingFiles(List<File> files) {
+        this.pendingFiles = files;
+    }
+
+    private void refresh() {
+        refreshPending.set(false);
+        jobList.getItems().setAll(JobQueue.shared().getJobs());
+        jobList.refresh();
+    }
+
+    /**
+     * Asks for one password and an output directory, then queues an encrypt job for every plain file and a decrypt
+     * job for every .enc file
+     * @param files the files to queue
+     */
+    private void queueFiles(List<File> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        Optional<String> password = createPasswordDialog().showAndWait();
+        if (password.isEmpty() || password.get().trim().isEmpty()) {
+            return;
+        }
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Choose output directory");
+        File directory = directoryChooser.showDialog(pane.getScene().getWindow());
+        if (directory == null) {
+            return;
+        }
+        Path output = directory.toPath();
+        for (File file : files) {
+            try {
+                if (Utils.getFileExtension(file.getName()).equals(".enc")) {
+                    EncryptedFile encryptedFile = EncryptedFile.initRead(file);
+                    //keys of every dropped file are derived in parallel now, not one by one as their jobs start
+                    Future<AESEncryptor> derivation = KeyDerivationService.shared().submit(password.get(), encryptedFile);
+                    JobQueue.shared().submit(createDecryptJob(encryptedFile, derivation, output));
+                } else {
+                    EncryptedFile encryptedFile = new EncryptedFile(Utils.getFileName(file.getName()), Utils.getFileExtension(file.getName()), EncryptedFile.EncryptionType.AES, file);
+                    JobQueue.shared().submit(createEncryptJob(encryptedFile, password.get(), output));
+                }
+            } catch (UnsupportedFileException | IOException | IllegalArgumentException ex) {
+                Alert alert = new Alert(Alert.AlertType.WARNING);
+                alert.setTitle("File skipped");
+                alert.setHeaderText("Could not queue: " + file.getName());
+                MainController.createErrorDialog(ex, alert);
+            }
+        }
+    }
+
+    private Job<Path> createEncryptJob(EncryptedFile encryptedFile, String password, Path output) {
+        return new Job<>(encryptedFile.getFile().getName(), Job.Kind.ENCRYPT, Job.Priority.NORMAL, job -> {
+            AESEncryptor encryptor = AESEncryptor.init(password, KdfCalibrator.current());
+            job.attach(encryptor);
+            PathPair<Path, Path> pathPair = encryptor.encrypt(encryptedFile);
+            try {
+                //never overwrite silently, there is no save dialog to confirm it
+                Path target = output.resolve(encryptedFile.getFileName() + ".enc");
+                CryptoEvents.FileTransfer transfer = new CryptoEvents.FileTransfer("move", target.toString()).start();
+                committer.publish(pathPair.getFile(), target, false, null);
+                transfer.finish(Files.size(target));
+                return target;
+            } catch (IOException e) {
+                pathPair.deleteFiles();
+                throw e;
+            }
+        });
+    }
+
+    private Job<Path> createDecryptJob(EncryptedFile encryptedFile, Future<AESEncryptor> derivation, Path output) {
+        return new Job<>(encryptedFile.getFile().getName(), Job.Kind.DECRYPT, Job.Priority.NORMAL, job -> {
+            AESEncryptor encryptor = KeyDerivationService.await(derivation);
+            encryptor.setDecryptCache(DecryptCache.shared());
+            job.attach(encryptor);
+            Path path = encryptor.decrypt(encryptedFile);
+            try {
+                Path target = output.resolve(encryptedFile.getFileName() + encryptedFile.getFileType());
+                CryptoEvents.FileTransfer transfer = new CryptoEvents.FileTransfer("move", target.toString()).start();
+                committer.publish(path, target, false, null);
+                transfer.finish(Files.size(target));
+                return target;
+            } catch (IOException e) {
+                Files.deleteIfExists(path);
+                throw e;
+            }
+        });
+    }
+
+    @SuppressWarnings("Duplicates")
+    private Dialog<String> createPasswordDialog() {
+        FontIcon icon = new FontIcon();
+        icon.setIconLiteral("bxs-key");
+        icon.setIconSize(35);
+        icon.setIconColor(Paint.valueOf("#F7CA18"));
+        Dialog<String> dialog = new Dialog<>();
+        dialog.getDialogPane().setMinSize(200, 150);
+        dialog.setTitle("Queue password");
+        dialog.setHeaderText("Password used for every dropped file");
+        dialog.setGraphic(icon);
+        dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+        PasswordField passwordField = new PasswordField();
+        HBox content = new HBox();
+        content.setAlignment(Pos.CENTER_LEFT);
+        content.setSpacing(8);
+        content.getChildren().addAll(new Label("Password:"), passwordField);
+        dialog.getDialogPane().setContent(content);
+        dialog.setResultConverter(dialogButton -> {
+            if (dialogButton == ButtonType.OK) {
+                return passwordField.getText();
+            }
+            return null;
+        });
+        return dialog;
+    }
+
+    /**
+     * Asks for a bandwidth cap of one job, it applies on top of the queue wide cap and takes effect while the job runs
+     * @param job the job to limit
+     */
+    private static void showLimitDialog(Job<?> job) {
+        TextInputDialog dialog = new TextInputDialog(Long.toString(job.getRateLimiter().getRate() / (1024 * 1024)));
+        dialog.setTitle("Bandwidth limit");
+        dialog.setHeaderText("MB/s for " + job.getName() + ", 0 for no limit of its own");
+        dialog.setContentText("MB/s:");
+        dialog.showAndWait().ifPresent(value -> {
+            try {
+                long rate = Long.parseLong(value.trim());
+                if (rate < 0) {
+                    throw new NumberFormatException("Limit can not be negative");
+                }
+                job.getRateLimiter().setRate(rate * 1024 * 1024);
+            } catch (NumberFormatException ex) {
+                Alert alert = new Alert(Alert.AlertType.WARNING);
+                alert.setTitle("Invalid limit");
+                alert.setHeaderText("The limit must be a whole number of MB/s");
+                MainController.createErrorDialog(ex, alert);
+            }
+        });
+    }
+
+    /**
+     * List cell showing name, state and progress of a job with a button to cancel it, right click limits its bandwidth
+     */
+    private static class JobCell extends ListCell<Job<?>> {
+        private final Label name = new Label();
+        private final Label state = new Label();
+        private final ProgressBar progressBar = new ProgressBar();
+        private final Button cancelButton = new Button();
+        private final HBox content = new HBox();
+
+        private JobCell() {
+            FontIcon icon = new FontIcon();
+            icon.setIconLiteral("anto-close");
+            icon.setIconSize(12);
+            icon.setIconColor(Paint.valueOf("WHITE"));
+            cancelButton.setGraphic(icon);
+            cancelButton.getStyleClass().add("BackButton");
+            name.setPrefWidth(300);
+            state.setPrefWidth(110);
+            progressBar.setPrefWidth(180);
+            HBox.setHgrow(name, Priority.ALWAYS);
+            content.setAlignment(Pos.CENTER_LEFT);
+            content.setSpacing(10);
+            content.getChildren().addAll(name, state, progressBar, cancelButton);
+        }
+
+        @Override
+        protected void updateItem(Job<?> item, boolean empty) {
+            super.updateItem(item, empty);
+            if (empty || item == null) {
+                setGraphic(null);
+                return;
+            }
+            name.setText((item.getKind() == Job.Kind.ENCRYPT ? "Encrypt: " : "Decrypt: ") + item.getName());
+            state.setText(item.getState().name());
+            progressBar.setProgress(item.getState() == Job.State.QUEUED ? 0 : item.getProgress() < 0 ? ProgressBar.INDETERMINATE_PROGRESS : item.getProgress());
+            progressBar.getStyleClass().setAll("progress-bar", item.getKind() == Job.Kind.ENCRYPT ? "Enc-progress" : "Dnc-progress");
+            setTooltip(item.getFailure() == null ? null : new Tooltip(item.getFailure().getMessage()));
+            cancelButton.setDisable(item.isDone());
+            cancelButton.setOnAction(e -> item.cancel());
+            MenuItem limitItem = new MenuItem(item.getRateLimiter().getRate() > 0 ? "Change bandwidth limit (" + item.getRateLimiter().getRate() / (1024 * 1024) + " MB/s)" : "Limit bandwidth");
+            limitItem.setDisable(item.isDone());
+            limitItem.setOnAction(e -> showLimitDialog(item));
+            setContextMenu(new ContextMenu(limitItem));
+            setGraphic(content);
+        }
+    }
+}
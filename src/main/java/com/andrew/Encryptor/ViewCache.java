@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.andrew.Encryptor;
+
+import javafx.application.Platform;
+import javafx.fxml.FXMLLoader;
+import javafx.scene.layout.AnchorPane;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the home view and one ready made copy of the encrypt and decrypt wizards, so a click swaps in a finished
+ * scene graph instead of parsing FXML and loading icons and CSS. The wizards keep state per visit, a taken copy is
+ * never handed out again and its replacement is built on the FX thread once it is idle. Only used on the FX thread
+ */
+final class ViewCache {
+    /**
+     * Controller factory of every view that is prepared ahead of time
+     */
+    private static final Map<String, Supplier<Object>> FACTORIES = Map.of(
+            "Encrypt.fxml", EncryptController::new,
+            "Decrypt.fxml", DecryptController::new);
+    /**
+     * Views built ahead of time and not yet shown, keyed by FXML file
+     */
+    private static final Map<String, AnchorPane> prepared = new HashMap<>();
+    /**
+     * The home view holds no state of its own so one instance is reused for the life of the window
+     */
+    private static AnchorPane home;
+
+    private ViewCache() {
+
+    }
+
+    static AnchorPane home() throws IOException {
+        if (home == null) {
+            home = FXMLLoader.load(ViewCache.class.getResource("Main.fxml"));
+        }
+        return home;
+    }
+
+    /**
+     * @param fxml one of the prepared views
+     * @return a view that has never been shown, the prepared copy if there is one
+     */
+    static AnchorPane take(String fxml) throws IOException {
+        AnchorPane view = prepared.remove(fxml);
+        if (view == null) {
+            view = load(fxml);
+        }
+        prefetch(fxml);
+        return view;
+    }
+
+    /**
+     * Queues building a copy of the view behind whatever the FX thread is doing right now
+     */
+    static void prefetch(String fxml) {
+        Platform.runLater(() -> {
+            if (prepared.containsKey(fxml)) {
+                return;
+            }
+            try {
+                prepared.put(fxml, load(fxml));
+            } catch (IOException e) {
+                System.err.println("failed to prepare " + fxml);
+            }
+        });
+    }
+
+    private static AnchorPane load(String fxml) throws IOException {
+        FXMLLoader loader = new FXMLLoader(ViewCache.class.getResource(fxml));
+        loader.setController(FACTORIES.get(fxml).get());
+        return loader.load();
+    }
+}
@@ -3,6 +3,10 @@ module com.andrew.Encryptor {
     requires javafx.fxml;
 
     requires org.kordamp.ikonli.javafx;
+    //custom flight recorder events of the crypto pipeline
+    requires jdk.jfr;
+    //multipart uploads of ObjectStoreSink
+    requires java.net.http;
 
     opens com.andrew.Encryptor to javafx.fxml;
     exports com.andrew.Encryptor;
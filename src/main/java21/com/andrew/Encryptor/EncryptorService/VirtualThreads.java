@@ -0,0 +1,45 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual thread support for Java 21 and later, packed into META-INF/versions/21 of the jar in place of the Java 17
+ * version which has no virtual threads
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+
+    }
+
+    /**
+     * @return true if this runtime can start virtual threads
+     */
+    static boolean supported() {
+        return true;
+    }
+
+    /**
+     * @param name prefix of the thread names
+     * @param platformThreads unused, virtual threads are cheap enough to start one for every task
+     * @return executor starting a new virtual thread for every task
+     */
+    static ExecutorService perTask(String name, int platformThreads) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+}
@@ -0,0 +1,154 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AESEncryptorTest {
+    private static final int LENGTH = 3_000_017;
+
+    @TempDir
+    Path directory;
+    private SecretKey key;
+
+    @BeforeEach
+    void generateKey() throws Exception {
+        key = AESEncryptor.generateKey();
+    }
+
+    @Test
+    void plainDigestIsStoredAndRevealed() throws Exception {
+        Path source = TestFiles.random(directory, "data.bin", LENGTH);
+        EncryptedFile file = TestFiles.read(encrypt(source, true));
+        assertNotNull(file.getPlainDigest());
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(source));
+        assertArrayEquals(expected, TestFiles.decryptor(key, file, directory).plainDigest(file));
+        //the header only holds the digest encrypted
+        assertFalse(Arrays.equals(expected, file.getPlainDigest()));
+        TestFiles.decryptor(key, file, directory).verify(file);
+        assertEquals(-1, Files.mismatch(source, TestFiles.decryptor(key, file, directory).decrypt(file)));
+        assertArrayEquals(Files.readAllBytes(source), TestFiles.decryptor(key, file, directory).decryptToMemory(file));
+    }
+
+    @Test
+    void changedBodyFailsPlainDigest() throws Exception {
+        Path encrypted = encrypt(TestFiles.random(directory, "data.bin", LENGTH), true);
+        EncryptedFile file = TestFiles.read(encrypted);
+        //a flipped bit in the middle of a CBC stream leaves the padding valid, only the digest notices
+        TestFiles.flipByte(encrypted, file.getByteOffset() + 1_000_000);
+        assertThrows(BadPaddingException.class, () -> TestFiles.decryptor(key, file, directory).verify(file));
+        //decrypt wraps the cipher error
+        GeneralSecurityException e = assertThrows(GeneralSecurityException.class, () -> TestFiles.decryptor(key, file, directory).decrypt(file));
+        assertInstanceOf(BadPaddingException.class, e.getCause());
+        assertThrows(BadPaddingException.class, () -> TestFiles.decryptor(key, file, directory).decryptToMemory(file));
+    }
+
+    @Test
+    void changedDigestEntryIsRejected() throws Exception {
+        EncryptedFile file = TestFiles.read(encrypt(TestFiles.random(directory, "data.bin", 10_000), true));
+        byte[] digest = file.getPlainDigest().clone();
+        digest[0] ^= 1;
+        file.setPlainDigest(digest);
+        assertThrows(BadPaddingException.class, () -> TestFiles.decryptor(key, file, directory).verify(file));
+    }
+
+    @Test
+    void plainDigestCanBeTurnedOff() throws Exception {
+        Path source = TestFiles.random(directory, "data.bin", 10_000);
+        EncryptedFile file = TestFiles.read(encrypt(source, false));
+        assertNull(file.getPlainDigest());
+        assertNull(TestFiles.decryptor(key, file, directory).plainDigest(file));
+        assertEquals(-1, Files.mismatch(source, TestFiles.decryptor(key, file, directory).decrypt(file)));
+    }
+
+    @Test
+    void passwordFileRecordsItsIterations() throws Exception {
+        Path source = TestFiles.random(directory, "data.bin", 10_000);
+        AESEncryptor encryptor = AESEncryptor.init("secret", 60_000);
+        encryptor.setWorkDirectory(directory);
+        EncryptedFile file = TestFiles.read(encryptor.encrypt(TestFiles.plain(source)).getFile());
+        assertEquals(60_000, file.getKdfIterations());
+        AESEncryptor decryptor = AESEncryptor.init_password("secret", file);
+        decryptor.setWorkDirectory(directory);
+        assertEquals(-1, Files.mismatch(source, decryptor.decrypt(file)));
+        AESEncryptor wrong = AESEncryptor.init_password("guess", file);
+        wrong.setWorkDirectory(directory);
+        assertThrows(GeneralSecurityException.class, () -> wrong.decrypt(file));
+    }
+
+    /**
+     * Files from before the KDF, length and digest entries have a six line header and were keyed with 50000 PBKDF2
+     * iterations, they must keep decrypting
+     */
+    @Test
+    void oldFormatStillDecrypts() throws Exception {
+        byte[] plain = new byte[100_003];
+        new Random(5).nextBytes(plain);
+        byte[] iv = new byte[16];
+        byte[] salt = new byte[16];
+        new Random(6).nextBytes(iv);
+        new Random(7).nextBytes(salt);
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] keyBytes = factory.generateSecret(new PBEKeySpec("old password".toCharArray(), salt, 50000, 256)).getEncoded();
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new IvParameterSpec(iv));
+        byte[] IVAndSalt = new byte[32];
+        System.arraycopy(iv, 0, IVAndSalt, 0, 16);
+        System.arraycopy(salt, 0, IVAndSalt, 16, 16);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        written.write(("BOF:6\nFileName:notes\nFileType:.txt\nEncryptionType:AES\nIV:" + Utils.encodeBase64(IVAndSalt) + "\nEOF\n").getBytes(StandardCharsets.UTF_8));
+        written.write(cipher.doFinal(plain));
+        Path old = Files.write(directory.resolve("notes.txt.enc"), written.toByteArray());
+
+        EncryptedFile file = TestFiles.read(old);
+        assertEquals(50000, file.getKdfIterations());
+        assertNull(file.getPlainDigest());
+        assertFalse(file.hasIntegrityTree());
+        AESEncryptor decryptor = AESEncryptor.init_password("old password", file);
+        decryptor.setWorkDirectory(directory);
+        assertArrayEquals(plain, Files.readAllBytes(decryptor.decrypt(file)));
+        AESEncryptor legacy = AESEncryptor.init_password("old password", file.getIV());
+        legacy.setWorkDirectory(directory);
+        assertArrayEquals(plain, legacy.decryptToMemory(file));
+    }
+
+    private Path encrypt(Path source, boolean plainDigest) throws Exception {
+        AESEncryptor encryptor = AESEncryptor.init(key);
+        encryptor.setWorkDirectory(directory);
+        encryptor.setPlainDigest(plainDigest);
+        return encryptor.encrypt(TestFiles.plain(source)).getFile();
+    }
+}
@@ -0,0 +1,44 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AutoTunerTest {
+    @Test
+    void workersFollowCoresWhenDiskKeepsUp() {
+        assertEquals(8, AutoTuner.workerCount(8, 40_000_000, 2_000_000));
+    }
+
+    @Test
+    void slowDiskCapsWorkersButKeepsTwo() {
+        assertEquals(3, AutoTuner.workerCount(16, 30_000_000, 10_000_000));
+        assertEquals(2, AutoTuner.workerCount(16, 10_000_000, 50_000_000));
+    }
+
+    @Test
+    void neverMoreWorkersThanCores() {
+        assertEquals(1, AutoTuner.workerCount(1, 40_000_000, 1));
+        assertEquals(1, AutoTuner.workerCount(1, 1, 40_000_000));
+    }
+
+    @Test
+    void currentIsStableOnceCalibrated() {
+        assertSame(AutoTuner.current(), AutoTuner.current());
+    }
+}
@@ -0,0 +1,82 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DedupStoreTest {
+    @TempDir
+    Path directory;
+    private SecretKey key;
+    private DedupStore store;
+
+    @BeforeEach
+    void open() throws Exception {
+        key = AESEncryptor.generateKey();
+        store = DedupStore.open(directory.resolve("store"), key);
+    }
+
+    @Test
+    void manifestRestoresTheFile() throws Exception {
+        Path source = TestFiles.random(directory, "data.bin", 2_000_000);
+        EncryptedFile manifest = TestFiles.read(store.store(TestFiles.plain(source)).getManifest());
+        assertTrue(manifest.isDedupManifest());
+        assertEquals(-1, Files.mismatch(source, store.restore(manifest)));
+        //the second copy adds no chunks
+        assertEquals(0, store.store(TestFiles.plain(source)).getNewChunkCount());
+    }
+
+    @Test
+    void manifestIsNotDecryptedAsAFile() throws Exception {
+        Path source = TestFiles.random(directory, "data.bin", 100_000);
+        EncryptedFile manifest = TestFiles.read(store.store(TestFiles.plain(source)).getManifest());
+        AESEncryptor decryptor = TestFiles.decryptor(key, manifest, directory);
+        assertThrows(IllegalArgumentException.class, () -> decryptor.decrypt(manifest));
+        assertThrows(IllegalArgumentException.class, () -> decryptor.decryptToMemory(manifest));
+        assertThrows(IllegalArgumentException.class, () -> decryptor.verify(manifest));
+    }
+
+    @Test
+    void malformedChunkIdsAreRejected() throws Exception {
+        //long enough to pass for a stored chunk if the path were followed
+        TestFiles.random(directory, "outside", 64);
+        for (String id : new String[]{"a", "../../outside", "ab/../../../outside", "A".repeat(64), "0".repeat(65)}) {
+            EncryptedFile manifest = manifest(id + " 11");
+            assertThrows(IOException.class, () -> store.restore(manifest), id);
+        }
+    }
+
+    /**
+     * @return a manifest with the given chunk list, written the way the store writes its own
+     */
+    private EncryptedFile manifest(String chunkList) throws Exception {
+        Path list = Files.write(directory.resolve("list.txt"), (chunkList + "\n").getBytes(StandardCharsets.UTF_8));
+        AESEncryptor encryptor = AESEncryptor.init(key);
+        encryptor.setWorkDirectory(directory);
+        encryptor.setHeaderProperty("Dedup", DedupStore.MANIFEST_FORMAT);
+        return TestFiles.read(encryptor.encrypt(TestFiles.plain(list)).getFile());
+    }
+}
@@ -0,0 +1,94 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FolderWatcherTest {
+    @TempDir
+    Path directory;
+    private Path inbox;
+    private Path outbox;
+    private SecretKey key;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        inbox = Files.createDirectory(directory.resolve("inbox"));
+        outbox = directory.resolve("outbox");
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        key = generator.generateKey();
+    }
+
+    @Test
+    void droppingAFileAgainEncryptsItAgain() throws Exception {
+        Path source = TestFiles.random(inbox, "report.txt", 3000);
+        Files.setLastModifiedTime(source, FileTime.fromMillis(1_000_000_000_000L));
+        try (FolderWatcher watcher = watcher()) {
+            watcher.start();
+            await(() -> watcher.getEncryptedCount() == 1 && watcher.getBacklog() == 0);
+            assertArrayEquals(Files.readAllBytes(source), decryptOutput());
+            //same name, new content
+            byte[] replacement = Files.readAllBytes(TestFiles.random(directory, "replacement.txt", 5000));
+            Files.write(source, replacement);
+            await(() -> watcher.getEncryptedCount() == 2 && watcher.getBacklog() == 0);
+            assertArrayEquals(replacement, decryptOutput());
+        }
+    }
+
+    @Test
+    void unchangedFileIsSkippedOnRestart() throws Exception {
+        TestFiles.random(inbox, "report.txt", 3000);
+        try (FolderWatcher watcher = watcher()) {
+            watcher.start();
+            await(() -> watcher.getEncryptedCount() == 1 && watcher.getBacklog() == 0);
+        }
+        try (FolderWatcher watcher = watcher()) {
+            watcher.start();
+            await(() -> watcher.getSkippedCount() == 1);
+            assertEquals(0, watcher.getEncryptedCount());
+        }
+    }
+
+    private FolderWatcher watcher() throws Exception {
+        return new FolderWatcher(inbox, outbox, key, 2, Duration.ofMillis(100), false);
+    }
+
+    private byte[] decryptOutput() throws Exception {
+        EncryptedFile file = TestFiles.read(outbox.resolve("report.txt.enc"));
+        return Files.readAllBytes(TestFiles.decryptor(key, file, directory).decrypt(file));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(20).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "watcher did not get there in time");
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeaderIndexTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void storedEntriesKeepEveryHeaderEntry() throws Exception {
+        SecretKey key = AESEncryptor.generateKey();
+        Path archive = Files.createDirectories(directory.resolve("archive"));
+        Path image = directory.resolve("disk.img");
+        try (RandomAccessFile file = new RandomAccessFile(image.toFile(), "rw")) {
+            file.setLength(3_000_000);
+            file.seek(1_000_000);
+            file.write(new byte[]{1, 2, 3});
+        }
+        AESEncryptor sparse = AESEncryptor.init(key);
+        sparse.setWorkDirectory(archive);
+        sparse.setSparse(true);
+        sparse.setIntegrityChunkSize(64 * 1024);
+        Files.move(sparse.encrypt(TestFiles.plain(image)).getFile(), archive.resolve("disk.img.enc"));
+        AESEncryptor splitter = AESEncryptor.init("password");
+        splitter.setWorkDirectory(archive);
+        List<Path> parts = splitter.encryptSplit(TestFiles.plain(TestFiles.random(directory, "data.bin", 300_000)), 100_000);
+        for (int i = 0; i < parts.size(); i++) {
+            Files.move(parts.get(i), archive.resolve("data.bin.enc." + AESEncryptor.partSuffix(i) + ".enc"));
+        }
+
+        assertEquals(parts.size() + 1, HeaderIndex.open(archive).refresh());
+        //a fresh index only has what was stored on disk
+        HeaderIndex reopened = HeaderIndex.open(archive);
+        assertEquals(0, reopened.refresh());
+        List<HeaderIndex.Entry> entries = reopened.getEntries();
+        assertEquals(parts.size() + 1, entries.size());
+        for (HeaderIndex.Entry entry : entries) {
+            EncryptedFile indexed = entry.toEncryptedFile();
+            assertEquals(EncryptedFile.initRead(entry.getPath().toFile()), indexed);
+        }
+        EncryptedFile indexed = reopened.search("disk").get(0).toEncryptedFile();
+        assertTrue(indexed.isSparse());
+        assertTrue(indexed.hasIntegrityTree());
+        assertNotNull(indexed.getPlainDigest());
+        assertEquals(3_000_000, indexed.getPlainLength());
+        assertEquals(-1, Files.mismatch(image, TestFiles.decryptor(key, indexed, directory).decrypt(indexed)));
+    }
+}
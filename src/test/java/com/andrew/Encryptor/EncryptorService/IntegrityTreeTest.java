@@ -0,0 +1,117 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntegrityTreeTest {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int LENGTH = 1_000_000;
+
+    @TempDir
+    Path directory;
+    private SecretKey key;
+
+    @BeforeEach
+    void generateKey() throws Exception {
+        key = AESEncryptor.generateKey();
+    }
+
+    @Test
+    void intactFileVerifiesAndDecrypts() throws Exception {
+        Path source = TestFiles.random(directory, "data.bin", LENGTH);
+        EncryptedFile file = TestFiles.read(encrypt(source));
+        assertTrue(file.hasIntegrityTree());
+        IntegrityTree.Report report = TestFiles.decryptor(key, file, directory).verifyIntegrity(file);
+        assertTrue(report.isIntact());
+        assertTrue(report.isTreeIntact());
+        assertEquals((LENGTH + CHUNK_SIZE - 1) / CHUNK_SIZE, report.getChunksChecked());
+        assertEquals(-1, Files.mismatch(source, TestFiles.decryptor(key, file, directory).decrypt(file)));
+    }
+
+    @Test
+    void damagedChunkIsReported() throws Exception {
+        Path encrypted = encrypt(TestFiles.random(directory, "data.bin", LENGTH));
+        EncryptedFile file = TestFiles.read(encrypted);
+        TestFiles.flipByte(encrypted, file.getByteOffset() + 5L * CHUNK_SIZE + 100);
+        IntegrityTree.Report report = TestFiles.decryptor(key, file, directory).verifyIntegrity(file);
+        assertFalse(report.isIntact());
+        assertTrue(report.isTreeIntact());
+        assertEquals(List.of(5), report.getDamagedChunks());
+    }
+
+    @Test
+    void rangeOnlyChecksItsChunks() throws Exception {
+        Path encrypted = encrypt(TestFiles.random(directory, "data.bin", LENGTH));
+        EncryptedFile file = TestFiles.read(encrypted);
+        TestFiles.flipByte(encrypted, file.getByteOffset() + 10L * CHUNK_SIZE);
+        IntegrityTree.Report report = TestFiles.decryptor(key, file, directory).verifyIntegrity(file, 2L * CHUNK_SIZE, CHUNK_SIZE);
+        assertTrue(report.isIntact());
+        assertEquals(2, report.getFirstChunk());
+        assertEquals(1, report.getChunksChecked());
+    }
+
+    @Test
+    void tamperedLeafFailsTheRoot() throws Exception {
+        Path encrypted = encrypt(TestFiles.random(directory, "data.bin", LENGTH));
+        EncryptedFile file = TestFiles.read(encrypted);
+        //the last leaf sits right before the leaf count at the end of the file
+        TestFiles.flipByte(encrypted, Files.size(encrypted) - Integer.BYTES - 1);
+        IntegrityTree.Report report = TestFiles.decryptor(key, file, directory).verifyIntegrity(file);
+        assertFalse(report.isTreeIntact());
+        assertFalse(report.isIntact());
+    }
+
+    @Test
+    void chunkSplicedFromAnotherFileIsCaught() throws Exception {
+        Path first = encrypt(TestFiles.random(directory, "first.bin", LENGTH));
+        Path second = encrypt(TestFiles.random(directory, "second.bin", LENGTH + 1));
+        EncryptedFile from = TestFiles.read(first);
+        EncryptedFile into = TestFiles.read(second);
+        byte[] source = Files.readAllBytes(first);
+        byte[] target = Files.readAllBytes(second);
+        //move chunk 3 together with its leaf, both are valid under the same key
+        int chunk = 3;
+        System.arraycopy(source, (int) from.getByteOffset() + chunk * CHUNK_SIZE, target, (int) into.getByteOffset() + chunk * CHUNK_SIZE, CHUNK_SIZE);
+        System.arraycopy(source, leafPosition(source, chunk), target, leafPosition(target, chunk), IntegrityTree.HASH_SIZE);
+        Files.write(second, target);
+        IntegrityTree.Report report = TestFiles.decryptor(key, into, directory).verifyIntegrity(TestFiles.read(second));
+        assertFalse(report.isTreeIntact());
+        assertEquals(List.of(chunk), report.getDamagedChunks());
+    }
+
+    private Path encrypt(Path source) throws Exception {
+        AESEncryptor encryptor = AESEncryptor.init(key);
+        encryptor.setWorkDirectory(directory);
+        encryptor.setIntegrityChunkSize(CHUNK_SIZE);
+        return encryptor.encrypt(TestFiles.plain(source)).getFile();
+    }
+
+    private static int leafPosition(byte[] file, int chunk) {
+        int leaves = ByteBuffer.wrap(file, file.length - Integer.BYTES, Integer.BYTES).getInt();
+        return file.length - Integer.BYTES - leaves * IntegrityTree.HASH_SIZE + chunk * IntegrityTree.HASH_SIZE;
+    }
+}
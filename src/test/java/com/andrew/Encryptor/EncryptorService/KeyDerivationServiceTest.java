@@ -0,0 +1,70 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyDerivationServiceTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void sameSaltIsDerivedOnce() throws Exception {
+        //fresh password so the shared cache can not already hold the key
+        String password = "batch " + System.nanoTime();
+        EncryptedFile file = encrypt(password);
+        long misses = Metrics.counter("kdf.cache.miss").getCount();
+        try (KeyDerivationService service = new KeyDerivationService(4)) {
+            List<AESEncryptor> encryptors = service.deriveAll(password, Collections.nCopies(6, file));
+            assertEquals(6, encryptors.size());
+            AESEncryptor decryptor = encryptors.get(5);
+            decryptor.setWorkDirectory(directory);
+            assertEquals(-1, Files.mismatch(directory.resolve("data.bin"), decryptor.decrypt(file)));
+        }
+        assertEquals(misses + 1, Metrics.counter("kdf.cache.miss").getCount());
+    }
+
+    @Test
+    void failedDerivationDoesNotStallWaiters() throws Exception {
+        String password = "broken " + System.nanoTime();
+        EncryptedFile file = encrypt(password);
+        file.setKdfAlgorithm("scrypt");
+        try (KeyDerivationService service = new KeyDerivationService(2)) {
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                GeneralSecurityException e = assertThrows(GeneralSecurityException.class, () -> service.deriveAll(password, Collections.nCopies(3, file)));
+                assertInstanceOf(NoSuchAlgorithmException.class, e);
+            });
+        }
+    }
+
+    private EncryptedFile encrypt(String password) throws Exception {
+        Path source = TestFiles.random(directory, "data.bin", 1000);
+        AESEncryptor encryptor = AESEncryptor.init(password, 10_000);
+        encryptor.setWorkDirectory(directory);
+        return TestFiles.read(encryptor.encrypt(TestFiles.plain(source)).getFile());
+    }
+}
@@ -0,0 +1,302 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Small in-process stand-in for an S3 style object store, serving the requests {@link ObjectStoreSink} sends out of a
+ * local directory. Objects end up at directory/bucket/key. Lets the tests upload without a real store, it has no
+ * authentication and only listens on the loopback address
+ */
+final class LocalObjectStore implements Closeable {
+    private static final Pattern COMPLETED_PART = Pattern.compile("<Part><PartNumber>(\\d+)</PartNumber><ETag>([^<]*)</ETag></Part>");
+    /**
+     * Uploads in progress live here, one directory per upload id
+     */
+    private static final String UPLOADS = ".uploads";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Path root;
+
+    private LocalObjectStore(HttpServer server, ExecutorService executor, Path root) {
+        this.server = server;
+        this.executor = executor;
+        this.root = root;
+    }
+
+    /**
+     * @param root directory the buckets are stored in, created if missing
+     * @param port port to listen on, 0 for any free port
+     * @param threads number of requests served at once
+     * @return the running store
+     * @throws IOException if the port can not be bound
+     */
+    static LocalObjectStore start(Path root, int port, int threads) throws IOException {
+        Path directory = Files.createDirectories(root).toRealPath();
+        Files.createDirectories(directory.resolve(UPLOADS));
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService executor = WorkExecutors.io("object-store-server", threads);
+        LocalObjectStore store = new LocalObjectStore(server, executor, directory);
+        server.createContext("/", store::handle);
+        server.setExecutor(executor);
+        server.start();
+        return store;
+    }
+
+    /**
+     * @return base URI of the store, append a bucket name to get the URI {@link ObjectStoreSink} takes
+     */
+    URI getEndpoint() {
+        InetSocketAddress address = server.getAddress();
+        return URI.create("http://" + address.getHostString() + ":" + address.getPort() + "/");
+    }
+
+    /**
+     * @return the file an object is stored in
+     */
+    Path resolve(String bucket, String key) {
+        return root.resolve(bucket).resolve(key);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            Path object = objectPath(exchange.getRequestURI().getPath());
+            if (object == null) {
+                reply(exchange, 400, "<Error><Code>InvalidObjectName</Code></Error>");
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            if (method.equals("POST") && query.containsKey("uploads")) {
+                String uploadId = UUID.randomUUID().toString();
+                Files.createDirectories(root.resolve(UPLOADS).resolve(uploadId));
+                reply(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            } else if (method.equals("PUT") && query.containsKey("uploadId")) {
+                Path upload = upload(query.get("uploadId"));
+                int number = partNumber(query.get("partNumber"));
+                if (upload == null || number < 1) {
+                    reply(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                    return;
+                }
+                String etag = store(exchange.getRequestBody(), upload.resolve(Integer.toString(number)));
+                exchange.getResponseHeaders().set("ETag", etag);
+                reply(exchange, 200, "");
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                complete(exchange, upload(query.get("uploadId")), object);
+            } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+                Path upload = upload(query.get("uploadId"));
+                if (upload != null) {
+                    deleteUpload(upload);
+                }
+                reply(exchange, 204, null);
+            } else if (method.equals("PUT")) {
+                Files.createDirectories(object.getParent());
+                Path temp = Files.createTempFile(root.resolve(UPLOADS), "put", ".tmp");
+                String etag = store(exchange.getRequestBody(), temp);
+                Files.move(temp, object, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                exchange.getResponseHeaders().set("ETag", etag);
+                reply(exchange, 200, "");
+            } else if (method.equals("GET") && Files.isRegularFile(object)) {
+                exchange.sendResponseHeaders(200, Files.size(object));
+                try (OutputStream body = exchange.getResponseBody()) {
+                    Files.copy(object, body);
+                }
+            } else if (method.equals("DELETE")) {
+                Files.deleteIfExists(object);
+                reply(exchange, 204, null);
+            } else {
+                reply(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>");
+            }
+        }
+    }
+
+    /**
+     * Joins the parts listed in the request into the object, in the order given and checked against their ETags
+     */
+    private void complete(HttpExchange exchange, Path upload, Path object) throws IOException {
+        if (upload == null) {
+            reply(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+            return;
+        }
+        String request;
+        try (InputStream body = exchange.getRequestBody()) {
+            request = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Matcher matcher = COMPLETED_PART.matcher(request);
+        Path temp = Files.createTempFile(root.resolve(UPLOADS), "complete", ".tmp");
+        MessageDigest etags = md5();
+        int expected = 1;
+        try (OutputStream output = Files.newOutputStream(temp, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Path previous = null;
+            while (matcher.find()) {
+                int number = Integer.parseInt(matcher.group(1));
+                Path part = upload.resolve(Integer.toString(number));
+                if (number != expected++ || !Files.isRegularFile(part) || !matcher.group(2).equals(etag(part))) {
+                    Files.delete(temp);
+                    reply(exchange, 400, "<Error><Code>InvalidPart</Code><PartNumber>" + number + "</PartNumber></Error>");
+                    return;
+                }
+                //like s3, only the last part may be smaller than the minimum
+                if (previous != null && Files.size(previous) < ObjectStoreSink.MIN_PART_SIZE) {
+                    Files.delete(temp);
+                    reply(exchange, 400, "<Error><Code>EntityTooSmall</Code><PartNumber>" + (number - 1) + "</PartNumber></Error>");
+                    return;
+                }
+                Files.copy(part, output);
+                etags.update(HexFormat.of().parseHex(matcher.group(2).replace("\"", "")));
+                previous = part;
+            }
+        }
+        if (expected == 1) {
+            Files.delete(temp);
+            reply(exchange, 400, "<Error><Code>MalformedXML</Code></Error>");
+            return;
+        }
+        Files.createDirectories(object.getParent());
+        Files.move(temp, object, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteUpload(upload);
+        reply(exchange, 200, "<CompleteMultipartUploadResult><ETag>\"" + HexFormat.of().formatHex(etags.digest()) + "-" + (expected - 1) + "\"</ETag></CompleteMultipartUploadResult>");
+    }
+
+    /**
+     * Writes a request body to a file
+     * @return the quoted MD5 of the body, the ETag s3 gives a part or single put object
+     */
+    private static String store(InputStream body, Path target) throws IOException {
+        MessageDigest digest = md5();
+        try (InputStream input = new DigestInputStream(body, digest)) {
+            Files.copy(input, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return "\"" + HexFormat.of().formatHex(digest.digest()) + "\"";
+    }
+
+    private static String etag(Path part) throws IOException {
+        MessageDigest digest = md5();
+        try (InputStream input = new DigestInputStream(Files.newInputStream(part), digest)) {
+            input.transferTo(OutputStream.nullOutputStream());
+        }
+        return "\"" + HexFormat.of().formatHex(digest.digest()) + "\"";
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required of every java runtime", e);
+        }
+    }
+
+    /**
+     * @return the directory of an upload in progress, null if there is none with that id
+     */
+    private Path upload(String uploadId) {
+        if (uploadId == null || !uploadId.matches("[0-9a-f-]{36}")) {
+            return null;
+        }
+        Path upload = root.resolve(UPLOADS).resolve(uploadId);
+        return Files.isDirectory(upload) ? upload : null;
+    }
+
+    private static void deleteUpload(Path upload) throws IOException {
+        try (Stream<Path> parts = Files.list(upload)) {
+            for (Path part : (Iterable<Path>) parts::iterator) {
+                Files.deleteIfExists(part);
+            }
+        }
+        Files.deleteIfExists(upload);
+    }
+
+    /**
+     * @return the file of the object named by the request path, null if the path has no key or leaves the root
+     */
+    private Path objectPath(String path) {
+        String[] segments = path.replaceFirst("^/", "").split("/", 2);
+        if (segments.length < 2 || segments[0].isEmpty() || segments[1].isEmpty() || segments[0].equals(UPLOADS)) {
+            return null;
+        }
+        Path object = root.resolve(segments[0]).resolve(segments[1]).normalize();
+        return object.startsWith(root.resolve(segments[0])) && !object.equals(root.resolve(segments[0])) ? object : null;
+    }
+
+    private static int partNumber(String value) {
+        try {
+            return value == null ? -1 : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> values = new HashMap<>();
+        if (query == null) {
+            return values;
+        }
+        for (String pair : query.split("&")) {
+            int split = pair.indexOf('=');
+            String name = URLDecoder.decode(split < 0 ? pair : pair.substring(0, split), StandardCharsets.UTF_8);
+            values.put(name, split < 0 ? "" : URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8));
+        }
+        return values;
+    }
+
+    private static void reply(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(bytes);
+            }
+        }
+    }
+}
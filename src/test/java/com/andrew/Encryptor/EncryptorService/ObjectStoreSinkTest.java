@@ -0,0 +1,110 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ObjectStoreSinkTest {
+    @TempDir
+    Path directory;
+    private LocalObjectStore store;
+    private URI bucket;
+    private SecretKey key;
+
+    @BeforeEach
+    void start() throws Exception {
+        store = LocalObjectStore.start(directory.resolve("store"), 0, 4);
+        bucket = store.getEndpoint().resolve("backups");
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        key = generator.generateKey();
+    }
+
+    @AfterEach
+    void stop() {
+        store.close();
+    }
+
+    @Test
+    void uploadsInPartsAndDecrypts() throws Exception {
+        //a bit over two minimum parts, so the upload has a short last part
+        Path source = write("disk.img", 2 * ObjectStoreSink.MIN_PART_SIZE + 12345);
+        try (ObjectStoreSink sink = new ObjectStoreSink(bucket, 2)) {
+            sink.setPartSize(ObjectStoreSink.MIN_PART_SIZE);
+            AESEncryptor.init(key).encryptTo(encryptedFile(source), sink, "nested/disk.img.enc");
+        }
+        assertArrayEquals(Files.readAllBytes(source), decrypt(store.resolve("backups", "nested/disk.img.enc")));
+    }
+
+    @Test
+    void uploadsEmptyFile() throws Exception {
+        Path source = write("empty.bin", 0);
+        try (ObjectStoreSink sink = new ObjectStoreSink(bucket, 2)) {
+            AESEncryptor.init(key).encryptTo(encryptedFile(source), sink, "empty.bin.enc");
+        }
+        assertEquals(0, decrypt(store.resolve("backups", "empty.bin.enc")).length);
+    }
+
+    @Test
+    void failedUploadLeavesNoObject() throws Exception {
+        Path source = write("data.bin", 1000);
+        store.close();
+        try (ObjectStoreSink sink = new ObjectStoreSink(bucket, 2)) {
+            assertThrows(IOException.class, () -> AESEncryptor.init(key).encryptTo(encryptedFile(source), sink, "data.bin.enc"));
+        }
+        assertFalse(Files.exists(store.resolve("backups", "data.bin.enc")));
+    }
+
+    @Test
+    void rejectsPartsBelowMinimum() {
+        try (ObjectStoreSink sink = new ObjectStoreSink(bucket, 1)) {
+            assertThrows(IllegalArgumentException.class, () -> sink.setPartSize(ObjectStoreSink.MIN_PART_SIZE - 1));
+            sink.setPartSize(ObjectStoreSink.MAX_PART_SIZE);
+            assertEquals(ObjectStoreSink.MAX_PART_SIZE, sink.getPartSize());
+        }
+    }
+
+    private Path write(String name, int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return Files.write(directory.resolve(name), data);
+    }
+
+    private EncryptedFile encryptedFile(Path path) {
+        String name = path.getFileName().toString();
+        return new EncryptedFile(Utils.getFileName(name), Utils.getFileExtension(name), EncryptedFile.EncryptionType.AES, path.toFile());
+    }
+
+    private byte[] decrypt(Path object) throws Exception {
+        EncryptedFile file = EncryptedFile.initRead(object.toFile());
+        AESEncryptor encryptor = AESEncryptor.init_key(Utils.encodeBase64(key.getEncoded()), file.getIV());
+        encryptor.setWorkDirectory(directory);
+        return Files.readAllBytes(encryptor.decrypt(file));
+    }
+}
@@ -0,0 +1,73 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+    @Test
+    void raisingTheRateShortensAWaitInProgress() {
+        RateLimiter limiter = new RateLimiter(1000);
+        //ten seconds of debt at the old rate
+        CompletableFuture<Void> waiting = acquireAsync(limiter, 10_000);
+        pause();
+        limiter.setRate(1_000_000);
+        assertTimeout(Duration.ofSeconds(2), () -> waiting.get());
+    }
+
+    @Test
+    void removingTheLimitWakesWaiters() {
+        RateLimiter parent = new RateLimiter(1000);
+        RateLimiter limiter = new RateLimiter(0, parent);
+        CompletableFuture<Void> waiting = acquireAsync(limiter, 10_000);
+        pause();
+        parent.setRate(0);
+        assertTimeout(Duration.ofSeconds(2), () -> waiting.get());
+    }
+
+    @Test
+    void loweringTheRateStillThrottles() throws Exception {
+        RateLimiter limiter = new RateLimiter(1_000_000);
+        limiter.setRate(1000);
+        long start = System.nanoTime();
+        limiter.acquire(200);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    private static CompletableFuture<Void> acquireAsync(RateLimiter limiter, long bytes) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                limiter.acquire(bytes);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
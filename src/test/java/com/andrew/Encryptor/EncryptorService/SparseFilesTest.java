@@ -0,0 +1,111 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.SecretKey;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SparseFilesTest {
+    @TempDir
+    Path directory;
+    private SecretKey key;
+
+    @BeforeEach
+    void generateKey() throws Exception {
+        key = AESEncryptor.generateKey();
+    }
+
+    @Test
+    void zeroRunsAreSkippedAndRestored() throws Exception {
+        Path source = image("disk.img", 20_000_000);
+        Path encrypted = encrypt(source);
+        EncryptedFile file = TestFiles.read(encrypted);
+        assertTrue(file.isSparse());
+        //only the two data runs and the manifest are stored
+        assertTrue(Files.size(encrypted) < 1_000_000);
+        TestFiles.decryptor(key, file, directory).verify(file);
+        assertEquals(-1, Files.mismatch(source, TestFiles.decryptor(key, file, directory).decrypt(file)));
+    }
+
+    @Test
+    void trailingZeroRunKeepsLength() throws Exception {
+        Path source = directory.resolve("tail.img");
+        try (RandomAccessFile file = new RandomAccessFile(source.toFile(), "rw")) {
+            file.write(new byte[]{5, 6, 7});
+            file.setLength(5_000_000);
+        }
+        EncryptedFile file = TestFiles.read(encrypt(source));
+        assertEquals(-1, Files.mismatch(source, TestFiles.decryptor(key, file, directory).decrypt(file)));
+    }
+
+    @Test
+    void emptyFileRoundTrips() throws Exception {
+        Path source = Files.createFile(directory.resolve("empty.img"));
+        EncryptedFile file = TestFiles.read(encrypt(source));
+        assertEquals(0, Files.size(TestFiles.decryptor(key, file, directory).decrypt(file)));
+    }
+
+    @Test
+    void tamperedManifestIsRejected() throws Exception {
+        Path encrypted = encrypt(image("disk.img", 20_000_000));
+        EncryptedFile file = TestFiles.read(encrypted);
+        //the manifest and its mac are the tail of the file
+        TestFiles.flipByte(encrypted, Files.size(encrypted) - 50);
+        assertThrows(BadPaddingException.class, () -> TestFiles.decryptor(key, file, directory).decrypt(file));
+        assertThrows(BadPaddingException.class, () -> TestFiles.decryptor(key, file, directory).verify(file));
+    }
+
+    @Test
+    void wrongKeyIsRejected() throws Exception {
+        EncryptedFile file = TestFiles.read(encrypt(image("disk.img", 20_000_000)));
+        SecretKey other = AESEncryptor.generateKey();
+        assertThrows(BadPaddingException.class, () -> TestFiles.decryptor(other, file, directory).decrypt(file));
+    }
+
+    /**
+     * @return a sparse file with two runs of data in it
+     */
+    private Path image(String name, long length) throws Exception {
+        Path path = directory.resolve(name);
+        byte[] data = new byte[300_000];
+        new Random(1).nextBytes(data);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(length);
+            file.seek(1_000_000);
+            file.write(data);
+            file.seek(length / 2 + 1);
+            file.write(data);
+        }
+        return path;
+    }
+
+    private Path encrypt(Path source) throws Exception {
+        AESEncryptor encryptor = AESEncryptor.init(key);
+        encryptor.setWorkDirectory(directory);
+        encryptor.setSparse(true);
+        return encryptor.encrypt(TestFiles.plain(source)).getFile();
+    }
+}
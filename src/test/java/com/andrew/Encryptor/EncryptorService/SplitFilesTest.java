@@ -0,0 +1,120 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SplitFilesTest {
+    private static final String PASSWORD = "correct horse";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void partsJoinBackInAnyOrder() throws Exception {
+        Path source = TestFiles.random(directory, "data.bin", 1_000_001);
+        List<EncryptedFile> parts = split(source, 100_000);
+        assertEquals(11, parts.size());
+        Collections.shuffle(parts, new Random(7));
+        AESEncryptor decryptor = decryptor(parts.get(0));
+        assertEquals(-1, Files.mismatch(source, decryptor.decryptParts(parts)));
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        decryptor.decryptParts(parts, Channels.newChannel(streamed));
+        assertArrayEquals(Files.readAllBytes(source), streamed.toByteArray());
+    }
+
+    @Test
+    void missingPartIsRejected() throws Exception {
+        List<EncryptedFile> parts = split(TestFiles.random(directory, "data.bin", 500_000), 100_000);
+        parts.remove(2);
+        assertThrows(IllegalArgumentException.class, () -> decryptor(parts.get(0)).decryptParts(parts));
+    }
+
+    @Test
+    void repeatedPartIsRejected() throws Exception {
+        List<EncryptedFile> parts = split(TestFiles.random(directory, "data.bin", 500_000), 100_000);
+        parts.set(3, parts.get(1));
+        assertThrows(IllegalArgumentException.class, () -> decryptor(parts.get(0)).decryptParts(parts));
+    }
+
+    @Test
+    void partOfAnotherSplitIsRejected() throws Exception {
+        List<EncryptedFile> parts = split(TestFiles.random(directory, "data.bin", 500_000), 100_000);
+        List<EncryptedFile> others = split(TestFiles.random(directory, "other.bin", 500_001), 100_000);
+        parts.set(1, others.get(1));
+        assertThrows(IllegalArgumentException.class, () -> decryptor(parts.get(0)).decryptParts(parts));
+    }
+
+    @Test
+    void tamperedPartIsRejected() throws Exception {
+        List<EncryptedFile> parts = split(TestFiles.random(directory, "data.bin", 500_000), 100_000);
+        EncryptedFile part = parts.get(1);
+        TestFiles.flipByte(part.getFile().toPath(), part.getByteOffset() + 50_000);
+        assertThrows(GeneralSecurityException.class, () -> decryptor(parts.get(0)).decryptParts(parts));
+    }
+
+    @Test
+    void singlePartIsNotDecryptedAlone() throws Exception {
+        List<EncryptedFile> parts = split(TestFiles.random(directory, "data.bin", 500_000), 100_000);
+        EncryptedFile part = parts.get(0);
+        AESEncryptor decryptor = decryptor(part);
+        assertThrows(IllegalArgumentException.class, () -> decryptor.decrypt(part));
+        assertThrows(IllegalArgumentException.class, () -> decryptor.decryptToMemory(part));
+        assertThrows(IllegalArgumentException.class, () -> decryptor.verify(part));
+    }
+
+    @Test
+    void emptyFileIsOnePart() throws Exception {
+        List<EncryptedFile> parts = split(Files.createFile(directory.resolve("empty.bin")), 4096);
+        assertEquals(1, parts.size());
+        assertEquals(0, Files.size(decryptor(parts.get(0)).decryptParts(parts)));
+    }
+
+    @Test
+    void partTooSmallForHeaderIsRejected() throws Exception {
+        Path source = TestFiles.random(directory, "data.bin", 10_000);
+        assertThrows(IllegalArgumentException.class, () -> split(source, 200));
+    }
+
+    private List<EncryptedFile> split(Path source, long maxPartSize) throws Exception {
+        AESEncryptor encryptor = AESEncryptor.init(PASSWORD);
+        encryptor.setWorkDirectory(directory);
+        List<EncryptedFile> parts = new ArrayList<>();
+        for (Path part : encryptor.encryptSplit(TestFiles.plain(source), maxPartSize)) {
+            parts.add(TestFiles.read(part));
+        }
+        return parts;
+    }
+
+    private AESEncryptor decryptor(EncryptedFile part) throws Exception {
+        AESEncryptor decryptor = AESEncryptor.init_password(PASSWORD, part);
+        decryptor.setWorkDirectory(directory);
+        return decryptor;
+    }
+}
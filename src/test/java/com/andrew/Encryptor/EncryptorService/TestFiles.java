@@ -0,0 +1,78 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Files and encryptors the encryptor tests share
+ */
+final class TestFiles {
+    private TestFiles() {
+
+    }
+
+    /**
+     * @return a new file of random bytes, the same bytes for the same length
+     */
+    static Path random(Path directory, String name, int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return Files.write(directory.resolve(name), data);
+    }
+
+    /**
+     * @return the plain file ready to be encrypted
+     */
+    static EncryptedFile plain(Path path) {
+        String name = path.getFileName().toString();
+        return new EncryptedFile(Utils.getFileName(name), Utils.getFileExtension(name), EncryptedFile.EncryptionType.AES, path.toFile());
+    }
+
+    /**
+     * @return the header of an encrypted file
+     */
+    static EncryptedFile read(Path path) throws IOException, UnsupportedFileException {
+        return EncryptedFile.initRead(path.toFile());
+    }
+
+    /**
+     * @return a decryptor for the file that writes into the directory
+     */
+    static AESEncryptor decryptor(SecretKey key, EncryptedFile file, Path directory) throws GeneralSecurityException {
+        AESEncryptor encryptor = AESEncryptor.init_key(Utils.encodeBase64(key.getEncoded()), file.getIV());
+        encryptor.setWorkDirectory(directory);
+        return encryptor;
+    }
+
+    /**
+     * Flips the lowest bit of one byte of the file
+     */
+    static void flipByte(Path path, long position) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 1);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.andrew.Encryptor.EncryptorService;/*
+ * Copyright (c) Andrew Pegg 2022.
+ * All rights reversed
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkExecutorsTest {
+    @Test
+    void ioRunsTasksOnEveryRuntime() throws Exception {
+        ExecutorService executor = WorkExecutors.io("test-io", 2);
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get(10, TimeUnit.SECONDS);
+            assertTrue(thread.getName().startsWith("test-io-"));
+            assertTrue(thread.isDaemon());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void perTaskFallsBackToPlatformThreadsWithoutVirtualThreads() throws Exception {
+        ExecutorService executor = VirtualThreads.perTask("test-task", WorkExecutors.UNBOUNDED);
+        try {
+            assertEquals(42, executor.submit(() -> 42).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void callOnRethrowsUncheckedExceptions() {
+        ExecutorService executor = WorkExecutors.cpu("test-cpu", 1);
+        try {
+            assertThrows(IllegalStateException.class, () -> WorkExecutors.callOn(executor, () -> {
+                throw new IllegalStateException("cipher failed");
+            }));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}